@@ -5,6 +5,7 @@ import com.google.common.io.Files;
 import edu.isi.nlp.symbols.Symbol;
 import com.google.common.base.Optional;
 import edu.isi.nlp.io.OriginalTextSource;
+import edu.isi.vista.corpus.SgmlNormalizer;
 import java.io.File;
 import java.lang.reflect.Array;
 import java.nio.file.Path;
@@ -52,8 +53,6 @@ public final class AceCorpusTextSource implements OriginalTextSource{
         // The ace corpus annotation offests treat newlines as a single character (so \r\n is
         // changed to \n) and do not count tags (so all tags '<>' and it's enclosing content is
         // removed)
-        return rawSourceText
-                .replaceAll("\\r\\n", "\n")
-                .replaceAll("<[\\s\\S]*?>", "");
+        return SgmlNormalizer.normalize(rawSourceText, true).getText();
     }
 }
@@ -6,20 +6,15 @@ import com.fasterxml.jackson.databind.node.ArrayNode
 import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import com.github.kittinunf.fuel.core.FileDataPart
-import com.github.kittinunf.fuel.core.Request
-import com.github.kittinunf.fuel.core.extensions.authentication
-import com.github.kittinunf.fuel.httpDelete
-import com.github.kittinunf.fuel.httpGet
-import com.github.kittinunf.fuel.httpUpload
-import com.google.common.jimfs.Configuration
-import com.google.common.jimfs.Jimfs
 import edu.isi.nlp.parameters.serifstyle.SerifStyleParameterFileLoader
-import net.java.truevfs.comp.zip.ZipEntry
-import net.java.truevfs.comp.zip.ZipFile
-import net.java.truevfs.comp.zip.ZipOutputStream
+import java.io.BufferedInputStream
 import java.io.BufferedOutputStream
 import java.io.File
 import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
 
 /**
  * Takes existing Inception projects and adds new argument labels.
@@ -67,6 +62,7 @@ import java.nio.file.Files
  *     <li> `modifyLocalOnly`: if true, none of the modified projects will be imported
  *     to Inception, and their original projects will not be deleted from the server.
  *     If false (default), the program will run its normal course.</li>
+ *     <li> the connection and timeout parameters of [InceptionClient]. </li>
  * </ul>
  */
 
@@ -80,8 +76,6 @@ fun main(argv: Array<String>) {
 
     // load parameters
     val inceptionUrl = params.getString("inceptionUrl")
-    val inceptionUserName = params.getString("inceptionUsername")
-    val inceptionPassword = params.getString("inceptionPassword")
 
     val originalExportDir = params.getCreatableDirectory("originalExportDir")
     val userSet = params.getExistingFile("userList").readLines().toSet()
@@ -101,20 +95,17 @@ fun main(argv: Array<String>) {
     val eventTypesToModify: MutableSet<String> = eventTypesToNewTags.fieldNames().asSequence().toMutableSet()
     val languagePrefixes = arrayListOf("russian", "spanish")
 
-    // extension function to avoid authentication boilerplate
-    fun Request.authenticateToInception() =
-            this.authentication().basic(inceptionUserName, inceptionPassword)
+    val inception = InceptionClient.fromParameters(params)
 
     // Get the list of projects on the server
-    val serverProjects = retryOnFuelError {
-        "$inceptionUrl/api/aero/v1/projects".httpGet()
-                .authenticateToInception()
+    val serverProjects = inception.withRetries {
+        inception.get(InceptionClient.Endpoint.METADATA, "/api/aero/v1/projects")
                 .resultObjectThrowingExceptionOnFailure<AeroResult<Project>>(mapper)
                 .body
     }
             ?: throw java.lang.RuntimeException("Could not fetch projects from $inceptionUrl. Aborting")
     logger.info { "Projects on server ${serverProjects.map { it.name }}" }
-    val importUrl = "$inceptionUrl/api/aero/v1/projects/import"
+    val importPath = "/api/aero/v1/projects/import"
     val failureSet = mutableSetOf<String>()  // will hold names of projects that were not modified
 
     // Determine which projects need to be processed
@@ -142,69 +133,47 @@ fun main(argv: Array<String>) {
     for (project in projectsToEventTypes) {
         // Step 1: export relevant projects from Inception.
         logger.info { "Now exporting ${project.key.name}" }
-        val getExportUrl = "$inceptionUrl/api/aero/v1/projects/${project.key.id}/export.zip"
-        val exportZip = retryOnFuelError {
-            getExportUrl.httpGet()
-                    .authenticateToInception()
-                    .retryOnResponseFailure()
+        val getExportPath = "/api/aero/v1/projects/${project.key.id}/export.zip"
+        // Save the zip file so that it can be re-imported later if needed. It is written
+        // as it is downloaded rather than held in memory, since exports can be large.
+        val zipOutputFile = File(originalExportDir, "${project.key.name}.zip")
+        val zipOutputPath = zipOutputFile.toPath()
+        val exportZip = inception.withRetries {
+            inception.get(InceptionClient.Endpoint.PROJECT_EXPORT, getExportPath)
+                    .responseThrowingExceptionOnFailure { body ->
+                        Files.copy(body, zipOutputPath, StandardCopyOption.REPLACE_EXISTING)
+                    }
         }
         if (exportZip != null) {
             // Step 2: add new tags by creating modified copies
             // of the original projects.
-            val inMemoryFileSystem = Jimfs.newFileSystem(Configuration.unix())
-            val exportInMemoryZip = inMemoryFileSystem.getPath("/export.zip")
-            Files.write(exportInMemoryZip, exportZip)
-
-            // Save the zip file so that it can be re-imported later if needed
-            val zipOutputFile = File(originalExportDir, "${project.key.name}.zip")
-            val zipOutputPath = zipOutputFile.toPath()
-            Files.write(zipOutputPath, exportZip)
             val modifiedZipOutputFile = modifiedOutputDir.resolve("${project.key.name}.zip")
             val modifiedZipOutputPath = modifiedZipOutputFile.toPath()
-            val modifiedZipInMemory = inMemoryFileSystem.getPath("/modified_export.zip")
             var replaceProject = false
 
-            ZipFile(exportInMemoryZip).use {
-                val zipOutputStream = ZipOutputStream(
+            // copy the export entry by entry, replacing only the project description
+            ZipInputStream(BufferedInputStream(Files.newInputStream(zipOutputPath))).use { zipInputStream ->
+                ZipOutputStream(
                         BufferedOutputStream(
                                 Files.newOutputStream(modifiedZipOutputPath)
                         )
-                )
-                for (projectFile in it) {
-                    val inMemoryProjectPath = inMemoryFileSystem.getPath(projectFile.name)
-                    val projectBytes = it.getInputStream(projectFile.name)?.readBytes()
-                    if (projectBytes != null) {
-                        if (inMemoryProjectPath.count() > 1) {
-                            // Create any parent directories if they don't already exist
-                            if (!Files.exists(inMemoryProjectPath.parent)) {
-                                Files.createDirectories(inMemoryProjectPath.parent)
-                            }
-                        }
-                        Files.write(inMemoryProjectPath, projectBytes)
-                    }
-                    if (projectFile.name.contains("exportedproject")) {
-                        val jsonBytes = it.getInputStream(projectFile.name)?.readBytes()
-                        if (jsonBytes != null) {
-                            Files.delete(inMemoryProjectPath)
-                            val inMemoryJson = inMemoryFileSystem.getPath(projectFile.name)
-                            val jsonTree = objectMapper.readTree(jsonBytes)
+                ).use { zipOutputStream ->
+                    var projectFile = zipInputStream.nextEntry
+                    while (projectFile != null) {
+                        zipOutputStream.putNextEntry(ZipEntry(projectFile.name))
+                        if (projectFile.name.contains("exportedproject")) {
+                            val jsonTree = objectMapper.readTree(zipInputStream.readBytes())
                             val arguments = eventTypesToNewTags[project.value]
                             replaceProject = addArgumentsToJson(jsonTree, project.key.name, arguments)
                             val jsonToWrite = prettyPrinter.writeValueAsString(jsonTree)
-                            Files.write(inMemoryJson, jsonToWrite.toByteArray())
-                            zipOutputStream.putNextEntry(ZipEntry(inMemoryJson.toString()))
-                            Files.copy(inMemoryJson, zipOutputStream)
+                            zipOutputStream.write(jsonToWrite.toByteArray())
                         } else {
-                            throw RuntimeException("Corrupt zip file returned")
+                            zipInputStream.copyTo(zipOutputStream)
                         }
-                    } else {
-                        zipOutputStream.putNextEntry(ZipEntry(inMemoryProjectPath.toString()))
-                        Files.copy(inMemoryProjectPath, zipOutputStream)
+                        zipOutputStream.closeEntry()
+                        projectFile = zipInputStream.nextEntry
                     }
-                    zipOutputStream.closeEntry()
                 }
-                zipOutputStream.close()
-                Files.copy(modifiedZipOutputPath, modifiedZipInMemory)
             }
 
             if (modifyLocalOnly == false && replaceProject) {
@@ -215,31 +184,33 @@ fun main(argv: Array<String>) {
                 // when there is already a project of the same name on Inception),
                 // we delete the original projects before importing the modified ones.
                 logger.info { "Deleting project ${project.key.name}" }
-                retryOnFuelError {
-                    "$inceptionUrl/api/aero/v1/projects/${project.key.id}".httpDelete()
-                            .authenticateToInception()
-                            .retryOnResponseFailure()
+                inception.withRetries {
+                    inception.delete(InceptionClient.Endpoint.METADATA,
+                            "/api/aero/v1/projects/${project.key.id}")
+                            .responseBytesThrowingExceptionOnFailure()
                 }
 
                 // Step 4: import the new projects.
                 logger.info { "Importing project $modifiedZipOutputFile" }
-                retryOnFuelError {
-                    importUrl.httpUpload()
-                            .add(
+                inception.withRetries {
+                    inception
+                            .upload(
+                                    InceptionClient.Endpoint.PROJECT_IMPORT,
+                                    importPath,
                                     FileDataPart(
                                             modifiedZipOutputFile,
                                             name = "file",
                                             filename = "$modifiedZipOutputFile"
                                     )
                             )
-                            .authenticateToInception()
-                            .retryOnResponseFailure()
+                            .responseBytesThrowingExceptionOnFailure()
                 }
             }
         } else {
             failureSet.add(project.key.name)
         }
     }
+    inception.logMetrics()
     logger.info { "All done!" }
     if (failureSet.size > 0) {
         logger.info {
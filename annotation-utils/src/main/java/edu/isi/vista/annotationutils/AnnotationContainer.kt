@@ -0,0 +1,215 @@
+package edu.isi.vista.annotationutils
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonToken
+import java.io.File
+import java.io.FilterInputStream
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * The name of a project's annotation container in its output directory
+ */
+const val ANNOTATION_CONTAINER = "annotations.jsonl"
+
+/**
+ * All of a project's exported annotations, stored in a single file instead of a file for each
+ * annotation, which is much faster to walk, zip and commit. `ExportAnnotations` writes these when
+ * its `outputFormat` is `container`.
+ *
+ * The file is in JSON Lines format. Each line is a record
+ * `{"name": "documentName-userName.json", "cas": {...}}` holding the compact UIMA CAS JSON which
+ * would otherwise have been written to the file `name`. Records are only ever appended, so a
+ * later export can add the annotations which have changed since; the last record with a given
+ * name is the current one. [compact] drops the records which are no longer current, e.g. once a
+ * full export has appended a new record for every annotation.
+ *
+ * Reading builds an index of where the current record of each name is in the file, in a single
+ * pass which does not hold any annotation in memory, and then reads the annotations from their
+ * place in the file.
+ */
+class AnnotationContainer(val file: Path) {
+    private class Record(val name: String, val offset: Long, val length: Long)
+
+    // the current records, and how many records there are in all
+    private class Index(val records: List<Record>, val recordCount: Int)
+
+    /**
+     * Appends the annotation `name`, whose CAS JSON is in the file `casJson`. It must be compact,
+     * i.e. on a single line. Safe to call from several threads at once.
+     */
+    fun append(name: String, casJson: Path) {
+        synchronized(this) {
+            Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+                    .buffered().use { output ->
+                        writeRecord(output, name) { Files.copy(casJson, it) }
+                    }
+        }
+    }
+
+    /**
+     * Rewrites the container with only the current record of each name, leaving it as it is if
+     * there are no others. The rewritten container replaces the old one once it is complete.
+     * Returns whether any records were dropped.
+     */
+    fun compact(): Boolean {
+        synchronized(this) {
+            val index = index()
+            if (index.records.size == index.recordCount) {
+                return false
+            }
+            val compacted = Files.createTempFile(file.toAbsolutePath().parent,
+                    file.fileName.toString(), ".tmp")
+            try {
+                Files.newOutputStream(compacted).buffered().use { output ->
+                    forEachRecord(index.records) { name, cas ->
+                        writeRecord(output, name) { cas.copyTo(it) }
+                    }
+                }
+                Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                Files.deleteIfExists(compacted)
+            }
+            return true
+        }
+    }
+
+    /**
+     * The names of the annotations in the container, in the order they were last written.
+     */
+    fun names(): List<String> = index().records.map { it.name }
+
+    /**
+     * Calls `read` with the name and CAS JSON of each annotation in the container, in the order
+     * they were last written. The stream is only valid during the call.
+     */
+    fun forEachAnnotation(read: (String, InputStream) -> Unit) {
+        forEachRecord(index().records, read)
+    }
+
+    private fun forEachRecord(records: List<Record>, read: (String, InputStream) -> Unit) {
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            for (record in records) {
+                channel.position(record.offset)
+                val recordStream = object : FilterInputStream(
+                        BoundedInputStream(Channels.newInputStream(channel), record.length)) {
+                    // the channel is closed once all records are read
+                    override fun close() {}
+                }
+                read(record.name, recordStream.buffered())
+            }
+        }
+    }
+
+    // writes a record holding the CAS JSON which `writeCas` writes to the stream it is given
+    private fun writeRecord(output: OutputStream, name: String, writeCas: (OutputStream) -> Unit) {
+        jsonFactory.createGenerator(output).use { generator ->
+            generator.writeStartObject()
+            generator.writeStringField("name", name)
+            generator.writeFieldName("cas")
+            // the JSON is written as it is rather than parsed and written again
+            generator.writeRawValue("")
+            generator.flush()
+            writeCas(output)
+            generator.writeEndObject()
+        }
+        output.write('\n'.toInt())
+    }
+
+    private fun index(): Index {
+        if (!Files.exists(file)) {
+            return Index(listOf(), 0)
+        }
+        val records = LinkedHashMap<String, Record>()
+        var recordCount = 0
+        jsonFactory.createParser(file.toFile()).use { parser ->
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                var name: String? = null
+                var offset = -1L
+                var length = -1L
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    val field = parser.currentName
+                    parser.nextToken()
+                    if (field == "name") {
+                        name = parser.text
+                    } else if (field == "cas") {
+                        offset = parser.tokenLocation.byteOffset
+                        parser.skipChildren()
+                        length = parser.currentLocation.byteOffset - offset
+                    } else {
+                        parser.skipChildren()
+                    }
+                }
+                if (name == null || offset < 0) {
+                    throw RuntimeException("Record without a name or CAS in $file at ${parser.currentLocation}")
+                }
+                // the latest record for a name goes last
+                records.remove(name)
+                records[name] = Record(name, offset, length)
+                recordCount += 1
+            }
+        }
+        return Index(records.values.toList(), recordCount)
+    }
+
+    // reads at most `remaining` bytes from `input`
+    private class BoundedInputStream(input: InputStream, private var remaining: Long)
+        : FilterInputStream(input) {
+        override fun read(): Int {
+            if (remaining <= 0) {
+                return -1
+            }
+            val ret = super.read()
+            if (ret >= 0) {
+                remaining -= 1
+            }
+            return ret
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (remaining <= 0) {
+                return -1
+            }
+            val ret = super.read(b, off, Math.min(len.toLong(), remaining).toInt())
+            if (ret > 0) {
+                remaining -= ret
+            }
+            return ret
+        }
+
+        override fun skip(n: Long): Long {
+            val ret = super.skip(Math.min(n, remaining))
+            remaining -= ret
+            return ret
+        }
+
+        override fun available(): Int = Math.min(super.available().toLong(), remaining).toInt()
+    }
+
+    companion object {
+        // records are written to a stream which goes on to the next line
+        private val jsonFactory = JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+    }
+}
+
+/**
+ * Calls `read` with the name and CAS JSON of each exported annotation stored in `file`, whether it
+ * is a project's [AnnotationContainer] or the JSON file of a single annotation. Does nothing for
+ * any other file (such as a project's event log). This lets tools read exported annotations
+ * whichever `outputFormat` they were exported with.
+ */
+fun forEachExportedAnnotation(file: File, read: (String, InputStream) -> Unit) {
+    if (file.name == ANNOTATION_CONTAINER) {
+        AnnotationContainer(file.toPath()).forEachAnnotation(read)
+    } else if (file.name.endsWith(".json")) {
+        file.inputStream().buffered().use { read(file.name, it) }
+    }
+}
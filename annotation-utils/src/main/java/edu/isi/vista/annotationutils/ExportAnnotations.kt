@@ -1,30 +1,52 @@
 package edu.isi.vista.annotationutils
 
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonToken
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.node.ObjectNode
 import com.fasterxml.jackson.module.kotlin.registerKotlinModule
 import com.github.kittinunf.fuel.core.FuelError
 import com.github.kittinunf.fuel.core.Request
-import com.github.kittinunf.fuel.core.extensions.authentication
-import com.github.kittinunf.fuel.httpGet
+import com.github.kittinunf.fuel.core.ResponseDeserializable
+import com.github.kittinunf.fuel.core.response
 import com.github.kittinunf.fuel.jackson.responseObject
 import com.github.kittinunf.result.Result
-import com.google.common.jimfs.Configuration
-import com.google.common.jimfs.Jimfs
 import edu.isi.nlp.parameters.serifstyle.SerifStyleParameterFileLoader
+import edu.isi.vista.corpus.BoundedIoExecutor
 import mu.KLogging
 import net.java.truevfs.comp.zip.ZipEntry
 import net.java.truevfs.comp.zip.ZipFile
 import net.java.truevfs.comp.zip.ZipOutputStream
+import org.apache.uima.cas.CAS
+import org.apache.uima.json.JsonCasSerializer
 import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
 import java.io.File
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
 import java.nio.file.Files
 import java.nio.file.Path
-import java.util.concurrent.TimeUnit
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.ZipInputStream
 
 val logger = KLogging().logger
 const val EVENT_LOG = "event.log"
 
+// the serialized CAS of each user's annotations of each document in a project export
+private val SERIALIZED_CAS_ENTRY = Regex("annotation_ser/(.+)/([^/]+)\\.ser")
+// serialized CASes in a project export which are not any annotator's work
+private val NON_ANNOTATOR_CASES = setOf("INITIAL_CAS", "CURATION_USER")
+
 /**
  * Downloads all the annotations from an Inception annotation server.
  *
@@ -56,7 +78,37 @@ const val EVENT_LOG = "event.log"
  *     <li> `compressOutput` determines whether the project directories will be copied to zip archives.
  *     The default is false. </li>
  *     <li> `zipExportRoot` is the directory where the zipped output will be saved.
- *     If no value is given, the output will not have a compressed version. </li>
+ *     If no value is given, the output will not have a compressed version. An archive is only
+ *     made again if its project's files have changed since it was made. </li>
+ *     <li> `maxConcurrentZips` is how many projects may be compressed at once. The default is 1.
+ *     </li>
+ *     <li> `maxConcurrentRequests` is how many requests may be made to the Inception server at once.
+ *     The default is 1. When built with the `virtual-threads` profile, this can be set very high
+ *     at little cost. </li>
+ *     <li> `maxConcurrentRequestsPerProject` is how many of a single project's documents may be
+ *     downloaded at once, so one large project does not take all of `maxConcurrentRequests`.
+ *     The default is `maxConcurrentRequests`. </li>
+ *     <li> `maxConcurrentProjects` is how many projects may be exported at once. The default is 1.
+ *     The output is the same whatever these are set to. </li>
+ *     <li> `exportManifest` is a file recording the timestamp and state of each annotation record
+ *     exported (see [ExportManifest]). If given, only annotations whose record has changed since
+ *     the last run are downloaded, and a project's `event.log` is only downloaded again if one of
+ *     its annotations changed. The manifest is created if it does not exist; delete it to force a
+ *     full export. It should be kept outside `exportedAnnotationRoot`. </li>
+ *     <li> `annotationsFromProjectExport`: if true, each project's annotations are read from the
+ *     serialized CASes in its `export.zip` rather than downloaded document by document, so a
+ *     project takes a single request. The JSON is converted from the CASes locally, imitating
+ *     the remote API's, but it has not been checked to match a download byte for byte, so compare
+ *     a few documents before switching an existing export to this mode. A CAS which cannot be
+ *     converted is logged and skipped. `exportManifest` is not used in this mode. The default is
+ *     false. </li>
+ *     <li> `outputFormat` is `files` (the default) to write each annotation to its own JSON file
+ *     as described above, or `container` to append them all to a single compact file in each
+ *     project directory (see [AnnotationContainer]), which is much faster to handle for large
+ *     projects. Annotations exported again replace their earlier record at the end of the run.
+ *     Use [forEachExportedAnnotation] to read either. Delete `exportManifest`, if any, when
+ *     changing this. </li>
+ *     <li> the connection and timeout parameters of [InceptionClient]. </li>
  * </ul>
  */
 
@@ -70,39 +122,61 @@ class ExportAnnotations {
             val paramsLoader = SerifStyleParameterFileLoader.Builder()
                     .interpolateEnvironmentalVariables(true).build()
             val params = paramsLoader.load(File(argv[0]))
+            configureConnectionPool(params)
             export(params)
         }
 
+        /**
+         * Sizes the JVM's HTTP connection pool for `maxConcurrentRequests` (see
+         * [InceptionClient.configureConnectionPool]). Programs running [export] should call this
+         * before making any HTTP request.
+         */
+        fun configureConnectionPool(params: edu.isi.nlp.parameters.Parameters) {
+            InceptionClient.configureConnectionPool(
+                    params.getOptionalPositiveInteger("maxConcurrentRequests").or(1))
+        }
+
         fun export(params: edu.isi.nlp.parameters.Parameters) {
             val inceptionUrl = params.getString("inceptionUrl")
-            val inceptionUserName = params.getString("inceptionUsername")
-            val inceptionPassword = params.getString("inceptionPassword")
 
             val exportedAnnotationRoot = params.getCreatableDirectory("exportedAnnotationRoot")
             val exportedAnnotationRootPath = exportedAnnotationRoot.toPath()
             val usernameJson = params.getOptionalExistingFile("usernameJson").orNull()
             val compressOutput = params.getOptionalBoolean("compressOutput").or(false)
             val zipExportRoot = params.getOptionalCreatableDirectory("zipExportRoot").orNull()
+            val maxConcurrentRequests = params.getOptionalPositiveInteger("maxConcurrentRequests").or(1)
+            val maxConcurrentRequestsPerProject = params
+                    .getOptionalPositiveInteger("maxConcurrentRequestsPerProject").or(maxConcurrentRequests)
+            val maxConcurrentProjects = params.getOptionalPositiveInteger("maxConcurrentProjects").or(1)
+            val maxConcurrentZips = params.getOptionalPositiveInteger("maxConcurrentZips").or(1)
+            val manifestFile = params.getOptionalCreatableFile("exportManifest").orNull()
+            val manifest = if (manifestFile != null) ExportManifest.load(manifestFile) else null
+            if (manifest != null) {
+                logger.info { "Loaded export manifest with ${manifest.size} entries from $manifestFile" }
+            }
+            val unchangedAnnotations = AtomicInteger()
+            val annotationsFromProjectExport =
+                    params.getOptionalBoolean("annotationsFromProjectExport").or(false)
+            val outputToContainer = when (val outputFormat = params.getOptionalString("outputFormat").or("files")) {
+                "files" -> false
+                "container" -> true
+                else -> throw RuntimeException("Unknown outputFormat $outputFormat; expected files or container")
+            }
 
             if (!inceptionUrl.startsWith("http://")) {
                 throw RuntimeException("Inception URL must start with http:// but got $inceptionUrl")
             }
             logger.info { "Connecting to Inception at $inceptionUrl" }
+            val inception = InceptionClient.fromParameters(params)
 
             val mapper = ObjectMapper().registerKotlinModule()
-            val writer = ObjectMapper().writerWithDefaultPrettyPrinter()
 
             // load the usernames map if one is given
             val usernameMap = if (usernameJson != null)
                 mapper.readTree(usernameJson) as ObjectNode else mapper.readTree("{}") as ObjectNode
 
-            // extension function to avoid authentication boilerplate
-            fun Request.authenticateToInception() =
-                    this.authentication().basic(inceptionUserName, inceptionPassword)
-
-            val projects = retryOnFuelError {
-                "$inceptionUrl/api/aero/v1/projects".httpGet()
-                        .authenticateToInception()
+            val projects = inception.withRetries {
+                inception.get(InceptionClient.Endpoint.METADATA, "/api/aero/v1/projects")
                         .resultObjectThrowingExceptionOnFailure<AeroResult<Project>>(mapper)
                         .body
             }
@@ -113,25 +187,222 @@ class ExportAnnotations {
             }
             logger.info { "Projects on server ${projects.map { it.name }}" }
 
-            for (project in projects) {
-                if (bannedProjectStrings.any { project.name.contains(it) }) {
-                    logger.info { "Skipping project $project because we are not interested in this data." }
-                    continue
+            // every request to Inception is made on ioExecutor, so at most maxConcurrentRequests
+            // are in flight at once however many projects are being exported
+            val ioExecutor = BoundedIoExecutor.create("inception", maxConcurrentRequests)
+
+            fun <T> onInceptionServer(request: () -> T): T =
+                    ioExecutor.submit(Callable { request() }).get()
+
+            // Writes the annotations of `user` on a document, given as the UIMA CAS JSON Inception
+            // exports, to the project's output directory if they should be shared. Returns the name
+            // of the file written, if any.
+            // Each project's container is shared by all the threads exporting the project.
+            val containers = ConcurrentHashMap<Path, AnnotationContainer>()
+            fun writeAnnotationJson(documentName: String, user: String, json: InputStream,
+                                    projectOutputDir: Path, outputUsername: String?): String? {
+                val documentUsername = usernameMap.get(user)?.toString()?.removeSurrounding("\"")
+                // Skip documents where the annotator (usually an admin user)
+                // is not the project's annotator.
+                if (documentUsername != outputUsername) {
+                    logger.info { "Skipping document from $user because it is not part of this project" }
+                    return null
                 }
-                logger.info { "Processing project $project" }
-                val getDocsUrl = "$inceptionUrl/api/aero/v1/projects/${project.id}/documents"
-                val getExportUrl = "$inceptionUrl/api/aero/v1/projects/${project.id}/export.zip"
-                val documents = retryOnFuelError {
-                    getDocsUrl.httpGet(
-                            parameters = listOf("projectId" to project.id))
-                            .authenticateToInception()
-                            .resultObjectThrowingExceptionOnFailure<DocumentResult>(mapper)
-                            .body
+                // Our LDC license does not permit us to distribute the full document text.
+                // Users may retrieve the text from the original LDC source document releases.
+                // The JSON is redacted as it is copied, so it is never held in memory, to a
+                // temporary file which is only kept if the document turns out to be annotated.
+                val redactedJson = Files.createTempFile("annotation-", ".json")
+                try {
+                    val annotated = Files.newOutputStream(redactedJson).use {
+                        rewriteSofaStrings(json, it, "__DOCUMENT_TEXT_REDACTED_FOR_IP_REASONS__",
+                                prettyPrint = !outputToContainer)
+                    }
+                    // If there is no CTEventSpan field, that indicates there were no marked spans
+                    // in the document and we can skip them.
+                    if (!annotated) {
+                        logger.info { "Skipping $documentName because it has no annotations"}
+                        return null
+                    }
+                    // Note that output file paths are unique because they include the project name,
+                    // the document id, and the annotator name. Each annotator can only annotate
+                    // a document once in a project.
+                    val outFileName = "$documentName-$documentUsername.json"
+                    if (outputToContainer) {
+                        containers.computeIfAbsent(projectOutputDir) {
+                            AnnotationContainer(it.resolve(ANNOTATION_CONTAINER))
+                        }.append(outFileName, redactedJson)
+                        return ANNOTATION_CONTAINER
+                    }
+                    Files.move(redactedJson, projectOutputDir.resolve(outFileName),
+                            StandardCopyOption.REPLACE_EXISTING)
+                    return outFileName
+                } finally {
+                    Files.deleteIfExists(redactedJson)
                 }
-                if (documents == null) {
+            }
+
+            // Downloads the project's export.zip, passing the name and contents of each entry to
+            // `readEntry` as it arrives rather than holding the archive in memory, since it holds
+            // every document of the project. Returns false if the download failed.
+            fun scanProjectExport(project: Project, readEntry: (String, ZipInputStream) -> Unit): Boolean {
+                val getExportPath = "/api/aero/v1/projects/${project.id}/export.zip"
+                return onInceptionServer {
+                    inception.withRetries {
+                        inception.get(InceptionClient.Endpoint.PROJECT_EXPORT, getExportPath)
+                                .responseThrowingExceptionOnFailure { body ->
+                                    ZipInputStream(body).use { zip ->
+                                        var entry = zip.nextEntry
+                                        while (entry != null) {
+                                            readEntry(entry.name, zip)
+                                            entry = zip.nextEntry
+                                        }
+                                    }
+                                }
+                    }
+                } != null
+            }
+
+            // Gets every annotator's annotations on the project's documents from the serialized
+            // CASes in its export.zip, along with its event log, so the project takes one request
+            fun exportProjectFromArchive(project: Project, projectOutputDir: Path,
+                                         outputUsername: String?) {
+                val downloaded = scanProjectExport(project) { entryName, zip ->
+                    if (entryName == EVENT_LOG) {
+                        Files.createDirectories(projectOutputDir)
+                        Files.copy(zip, projectOutputDir.resolve(EVENT_LOG),
+                                StandardCopyOption.REPLACE_EXISTING)
+                        return@scanProjectExport
+                    }
+                    val casEntry = SERIALIZED_CAS_ENTRY.matchEntire(entryName)
+                            ?: return@scanProjectExport
+                    val (documentName, user) = casEntry.destructured
+                    if (user in NON_ANNOTATOR_CASES) {
+                        return@scanProjectExport
+                    }
+                    // The CAS is copied out of the download before it is converted, so a corrupt
+                    // CAS is skipped here rather than failing (and retrying) the whole download.
+                    val serializedCas = Files.createTempFile("annotation-", ".ser")
+                    val casJson = Files.createTempFile("annotation-", ".json")
+                    try {
+                        Files.copy(zip, serializedCas, StandardCopyOption.REPLACE_EXISTING)
+                        try {
+                            val cas = Files.newInputStream(serializedCas).use {
+                                SerializedCasConverter.readCas(it)
+                            }
+                            Files.newOutputStream(casJson).use { casToJson(cas, it) }
+                        } catch (e: Exception) {
+                            logger.error(e) { "Skipping $entryName of $project: could not convert it to JSON" }
+                            return@scanProjectExport
+                        }
+                        Files.createDirectories(projectOutputDir)
+                        Files.newInputStream(casJson).use {
+                            writeAnnotationJson(documentName, user, it, projectOutputDir, outputUsername)
+                        }
+                    } finally {
+                        Files.deleteIfExists(serializedCas)
+                        Files.deleteIfExists(casJson)
+                    }
+                }
+                if (!downloaded) {
                     logger.warn { "Skipping $project due to web errors" }
-                    continue
                 }
+            }
+
+            // returns whether any of the document's annotations were downloaded
+            fun exportDocument(project: Project, document: Document, projectOutputDir: Path,
+                               outputUsername: String?): Boolean {
+                // each annotator's annotation for a document are stored separately
+                val getAnnotatingUsersPath = "/api/aero/v1/projects/" +
+                        "${project.id}/documents/${document.id}/annotations"
+                val annotationRecords = inception.withRetries {
+                    inception
+                            .get(
+                                    InceptionClient.Endpoint.METADATA,
+                                    getAnnotatingUsersPath,
+                                    parameters = listOf(
+                                            "projectId" to project.id,
+                                            "documentId" to document.id
+                                    )
+                            )
+                            .resultObjectThrowingExceptionOnFailure<AeroResult<AnnotatorRecord>>(mapper)
+                            .body
+                }
+                if (annotationRecords == null) {
+                    logger.warn { "Skipping $document due to network errors" }
+                    return false
+                }
+                var anyDownloaded = false
+
+                // an annotation record records user's annotate state for the document
+                for (annotationRecord in annotationRecords) {
+                    if (annotationRecord.state == "NEW") {
+                        // no actual annotation
+                        logger.warn { "Skipping $annotationRecord because it is NEW" }
+                        continue
+                    }
+                    if (manifest != null && manifest.isUpToDate(project.name, document.name,
+                                    annotationRecord.user, annotationRecord.timestamp,
+                                    annotationRecord.state, projectOutputDir)) {
+                        // exported by an earlier run and not changed since
+                        unchangedAnnotations.incrementAndGet()
+                        continue
+                    }
+                    val getAnnotationsPath = "/api/aero/v1/projects/${project.id}" +
+                            "/documents/${document.id}/annotations/${annotationRecord.user}"
+
+                    // the return from this will be the bytes of a a zip file which contains the
+                    // JSON representation of the annotation
+                    val annotationFileBytes = inception.withRetries {
+                        inception
+                                .get(
+                                        InceptionClient.Endpoint.ANNOTATION,
+                                        getAnnotationsPath,
+                                        parameters = listOf(
+                                                "projectId" to project.id,
+                                                "documentId" to document.id,
+                                                "userId" to annotationRecord.user,
+                                                // without this, it just downloads the original source
+                                                // text
+                                                "format" to "json"
+                                        )
+                                )
+                                .responseBytesThrowingExceptionOnFailure()
+                    }
+                    if (annotationFileBytes == null) {
+                        logger.warn { "Skipping $annotationRecord due to network errors" }
+                        continue
+                    }
+                    anyDownloaded = true
+
+                    // filename manipulation is to work around
+                    // https://github.com/inception-project/inception/issues/1174
+                    val lastDotInDocumentNameIndex = document.name.lastIndexOf('.')
+                    // note documents cannot have empty names
+                    val zipEntryName = if (lastDotInDocumentNameIndex >= 0) {
+                        document.name.substring(0, lastDotInDocumentNameIndex)
+                    } else {
+                        document.name
+                    }
+
+                    val json = openZipEntry(annotationFileBytes, "$zipEntryName.json")
+                            ?: throw RuntimeException("Corrupt zip file returned")
+                    val outputFile = json.use {
+                        writeAnnotationJson(document.name, annotationRecord.user, it,
+                                projectOutputDir, outputUsername)
+                    }
+                    manifest?.record(project.name, document.name, annotationRecord.user,
+                            annotationRecord.timestamp, annotationRecord.state, outputFile)
+                }
+                return anyDownloaded
+            }
+
+            fun exportProject(project: Project) {
+                if (bannedProjectStrings.any { project.name.contains(it) }) {
+                    logger.info { "Skipping project $project because we are not interested in this data." }
+                    return
+                }
+                logger.info { "Processing project $project" }
 
                 // Get the modified user/project names and use them to write the output file paths.
                 // These names will not change if usernameJson is not found
@@ -147,147 +418,98 @@ class ExportAnnotations {
                 if (projectUsername != null && outputUsername != null) {
                     finalProjectName = project.name.substring(0, userSeparatorIndex + 1) + outputUsername
                 }
+                val projectOutputDir = exportedAnnotationRootPath.resolve(finalProjectName)
+                if (annotationsFromProjectExport) {
+                    exportProjectFromArchive(project, projectOutputDir, outputUsername)
+                    return
+                }
 
+                val getDocsPath = "/api/aero/v1/projects/${project.id}/documents"
+                val documents = onInceptionServer {
+                    inception.withRetries {
+                        inception.get(InceptionClient.Endpoint.METADATA, getDocsPath,
+                                parameters = listOf("projectId" to project.id))
+                                .resultObjectThrowingExceptionOnFailure<DocumentResult>(mapper)
+                                .body
+                    }
+                }
+                if (documents == null) {
+                    logger.warn { "Skipping $project due to web errors" }
+                    return
+                }
                 // to reduce clutter, we only make a directory and export the
                 // log file for a project if it in fact has any annotation
-                val projectOutputDir = exportedAnnotationRootPath.resolve(finalProjectName)
                 if (documents.isNotEmpty()) {
                     Files.createDirectories(projectOutputDir)
-                    // Get export.zip, which contains the project's log file
-                    val exportZip = retryOnFuelError {
-                        getExportUrl.httpGet()
-                                .authenticateToInception()
-                                .timeoutRead(130000)  // larger projects take longer to read
-                                .retryOnResponseFailure()
-                    }
-                    // Get `event.log` from the resulting .zip export
-                    // and save it to the project output directory
-                    if (exportZip != null) {
-                        val inMemoryFileSystem = Jimfs.newFileSystem(Configuration.unix())
-                        val exportInMemoryZip = inMemoryFileSystem.getPath("/export.zip")
-                        Files.write(exportInMemoryZip, exportZip)
-                        val zipOutputFile = File(projectOutputDir.toString(), EVENT_LOG)
-                        ZipFile(exportInMemoryZip).use {
-                            val eventLog = it.getInputStream(EVENT_LOG)?.readBytes()
-                            if (eventLog != null) {
-                                Files.write(zipOutputFile.toPath(), eventLog)
-                            }
-                        }
-                    }
                 }
-                for (document in documents) {
-                    // each annotator's annotation for a document are stored separately
-                    val getAnnotatingUsersUrl = "$inceptionUrl/api/aero/v1/projects/" +
-                            "${project.id}/documents/${document.id}/annotations"
-                    val annotationRecords = retryOnFuelError {
-                        getAnnotatingUsersUrl
-                                .httpGet(
-                                        parameters = listOf(
-                                                "projectId" to project.id,
-                                                "documentId" to document.id
-                                        )
-                                )
-                                .authenticateToInception()
-                                .resultObjectThrowingExceptionOnFailure<AeroResult<AnnotatorRecord>>(mapper)
-                                .body
-                    }
-                    if (annotationRecords == null) {
-                        logger.warn { "Skipping $document due to network errors" }
-                        continue
-                    }
-
-                    // an annotation record records user's annotate state for the document
-                    for (annotationRecord in annotationRecords) {
-                        if (annotationRecord.state == "NEW") {
-                            // no actual annotation
-                            logger.warn { "Skipping $annotationRecord because it is NEW" }
-                            continue
-                        }
-                        val getAnnotationsUrl = "$inceptionUrl/api/aero/v1/projects/${project.id}" +
-                                "/documents/${document.id}/annotations/${annotationRecord.user}"
-
-                        // the return from this will be the bytes of a a zip file which contains the
-                        // JSON representation of the annotation
-                        val annotationFileBytes =
-                                getAnnotationsUrl
-                                        .httpGet(
-                                                parameters = listOf(
-                                                        "projectId" to project.id,
-                                                        "documentId" to document.id,
-                                                        "userId" to annotationRecord.user,
-                                                        // without this, it just downloads the original source
-                                                        // text
-                                                        "format" to "json"
-                                                )
-                                        )
-                                        .authenticateToInception()
-                                        .retryOnResponseFailure()
-                        if (annotationFileBytes == null) {
-                            logger.warn { "Skipping $annotationRecord due to network errors" }
-                            continue
+                // documents are exported concurrently, with at most maxConcurrentRequestsPerProject
+                // of this project's documents being downloaded at once
+                val projectPermits = Semaphore(maxConcurrentRequestsPerProject)
+                val pendingDocuments = documents.map { document ->
+                    projectPermits.acquireUninterruptibly()
+                    ioExecutor.submit(Callable {
+                        try {
+                            exportDocument(project, document, projectOutputDir, outputUsername)
+                        } finally {
+                            projectPermits.release()
                         }
+                    })
+                }
+                val anyAnnotationDownloaded = pendingDocuments.map { it.get() }.any { it }
 
-                        // Java's ZipFile class, for unknown reasons, can only work from Files and not
-                        // in-memory bytes, so we make an in-memory file system to hold the zip file
-                        val inMemoryFileSystem = Jimfs.newFileSystem(Configuration.unix())
-                        val annotationsInMemoryZip = inMemoryFileSystem.getPath("/annotations.zip")
-                        Files.write(annotationsInMemoryZip, annotationFileBytes)
-
-                        ZipFile(annotationsInMemoryZip).use {
-                            // filename manipulation is to work around
-                            // https://github.com/inception-project/inception/issues/1174
-                            val lastDotInDocumentNameIndex = document.name.lastIndexOf('.')
-                            // note documents cannot have empty names
-                            val zipEntryName = if (lastDotInDocumentNameIndex >= 0) {
-                                document.name.substring(0, lastDotInDocumentNameIndex)
-                            } else {
-                                document.name
-                            }
-
-                            val jsonBytes = it.getInputStream("$zipEntryName.json")?.readBytes()
-                            if (jsonBytes != null) {
-                                val documentUsername = usernameMap.get(annotationRecord.user)
-                                        ?.toString()?.removeSurrounding("\"")
-                                // Skip documents where the annotator (usually an admin user)
-                                // is not the project's annotator.
-                                if (documentUsername == outputUsername) {
-                                    val jsonTree = ObjectMapper().readTree(jsonBytes) as ObjectNode
-                                    // If there is no CTEventSpan field, that indicates there were no marked spans
-                                    // in the document and we can skip them.
-                                    if (hasCTEventSpan(jsonTree)) {
-                                        // Our LDC license does not permit us to distribute the full document text.
-                                        // Users may retrieve the text from the original LDC source document releases.
-                                        jsonTree.replaceFieldEverywhere(
-                                                "sofaString", "__DOCUMENT_TEXT_REDACTED_FOR_IP_REASONS__"
-                                        )
-                                        val redactedJsonString = writer.writeValueAsString(jsonTree)
-                                        // Note that output file paths are unique because they include the project name,
-                                        // the document id, and the annotator name. Each annotator can only annotate
-                                        // a document once in a project.
-                                        val outFileName = projectOutputDir.resolve(
-                                                "${document.name}-$documentUsername.json"
-                                        )
-                                        Files.write(outFileName, redactedJsonString.toByteArray())
-                                    } else {
-                                        logger.info { "Skipping ${document.name} because it has no annotations"}
-                                    }
-                                } else {
-                                    logger.info { "Skipping document from ${annotationRecord.user} because it is not part of this project" }
-                                }
-                            } else {
-                                throw RuntimeException("Corrupt zip file returned")
-                            }
+                // the event log only needs updating if there have been new annotations
+                if (documents.isNotEmpty() && (manifest == null || anyAnnotationDownloaded
+                                || !Files.exists(projectOutputDir.resolve(EVENT_LOG)))) {
+                    // Get `event.log` from export.zip as it is downloaded
+                    // and save it to the project output directory
+                    scanProjectExport(project) { entryName, zip ->
+                        if (entryName == EVENT_LOG) {
+                            Files.copy(zip, projectOutputDir.resolve(EVENT_LOG),
+                                    StandardCopyOption.REPLACE_EXISTING)
                         }
                     }
                 }
             }
+
+            // each project's output goes to its own directory, so they can be exported at once
+            val projectExecutor = Executors.newFixedThreadPool(maxConcurrentProjects)
+            try {
+                projects.map { project -> projectExecutor.submit { exportProject(project) } }
+                        .forEach { it.get() }
+            } finally {
+                projectExecutor.shutdownNow()
+                ioExecutor.close()
+                inception.logMetrics()
+                // save whatever was exported, so a failed run need not be repeated in full
+                if (manifest != null) {
+                    manifest.save(manifestFile!!)
+                    logger.info { "Skipped ${unchangedAnnotations.get()} annotations unchanged since the last export" }
+                }
+            }
+            // A full export, or a project export.zip read again after a failed download, appends a
+            // second record for annotations which are already in the container, so only the
+            // current ones are kept before the containers are zipped or committed.
+            for (container in containers.values) {
+                if (container.compact()) {
+                    logger.info { "Dropped superseded annotations from ${container.file}" }
+                }
+            }
             // If `compressOutput` is true, create a zip archive for each project
             // directory and save it to the designated folder.
             if (compressOutput && zipExportRoot != null) {
                 logger.info { "Creating zip archives..." }
-                exportedAnnotationRoot.walk().filter { it.isDirectory && it != exportedAnnotationRoot }
-                        .forEach { projectDir ->
-                    zipProject(projectDir, zipExportRoot.toPath())
+                val projectDirs = exportedAnnotationRoot.listFiles { file -> file.isDirectory }!!
+                // each project is archived to its own file, so they can be compressed at once
+                val zipExecutor = Executors.newFixedThreadPool(maxConcurrentZips)
+                try {
+                    val zipped = projectDirs
+                            .map { projectDir ->
+                                zipExecutor.submit(Callable { zipProject(projectDir, zipExportRoot.toPath()) })
+                            }
+                            .count { it.get() }
+                    logger.info { "Created $zipped zip archives; ${projectDirs.size - zipped} were unchanged" }
+                } finally {
+                    zipExecutor.shutdownNow()
                 }
             }
             logger.info { "all done!" }
@@ -322,71 +544,180 @@ inline fun <reified T : Any> Request.resultObjectThrowingExceptionOnFailure(
     }
 }
 
-fun <T> retryOnFuelError(maxTries: Int = 3, timeoutInSeconds: Long = 5, function: () -> T): T? {
-    for (i in 1..maxTries) {
-        try {
-            return function()
-        } catch (e: FuelError) {
-            logger.warn { e }
-            if (i < maxTries) {
-                logger.warn { "Request $i/$maxTries had FuelError. Waiting $timeoutInSeconds seconds and trying again." }
-                TimeUnit.SECONDS.sleep(timeoutInSeconds)
-            }
+fun Request.responseBytesThrowingExceptionOnFailure(): ByteArray =
+        responseThrowingExceptionOnFailure { it.readBytes() }
+
+/**
+ * Hands the response body to `readBody` as a stream while it is being downloaded, so large
+ * responses need not be held in memory, and returns what it returns. A failure while reading the
+ * body is thrown as a [FuelError] like a failed response, so when retried `readBody` may be called
+ * again with the whole body.
+ */
+fun <T : Any> Request.responseThrowingExceptionOnFailure(readBody: (InputStream) -> T): T {
+    val deserializer = object : ResponseDeserializable<T> {
+        override fun deserialize(inputStream: InputStream): T = readBody(inputStream)
+    }
+    val (_, _, result) = this.response(deserializer)
+
+    return when (result) {
+        is Result.Failure<*> -> {
+            throw result.getException()
+        }
+        is Result.Success<*> -> {
+            result.get()
         }
     }
-    logger.warn { "HTTP request has failed $maxTries times. Aborting." }
-    return null
 }
 
-
-fun Request.retryOnResponseFailure(maxTries: Int = 3, timeoutInSeconds: Long = 5): ByteArray? {
-    for (i in 1..maxTries) {
-        val (_, _, result) = this.response()
-        when (result) {
-            is Result.Success<*> -> return result.get()
-            is Result.Failure<*> -> {
-                if (i < maxTries) {
-                    logger.warn {
-                        "Request $i/$maxTries response failed. Waiting $timeoutInSeconds seconds and trying again."
-                    }
-                    TimeUnit.SECONDS.sleep(timeoutInSeconds)
-                }
-            }
+/**
+ * Opens the entry named `entryName` in the zip archive `zipBytes` for reading, or returns null if
+ * there is no such entry. The entry is decompressed as it is read.
+ */
+fun openZipEntry(zipBytes: ByteArray, entryName: String): InputStream? {
+    val zip = ZipInputStream(ByteArrayInputStream(zipBytes))
+    var entry = zip.nextEntry
+    while (entry != null) {
+        if (entry.name == entryName) {
+            return zip
         }
+        entry = zip.nextEntry
     }
-    logger.warn { "HTTP request has failed $maxTries times. Aborting." }
+    zip.close()
     return null
 }
 
 /**
- * Safely check if the exported JSON has the field "CTEventSpan"
+ * Writes a CAS to `output` as UIMA CAS JSON, in the form Inception's remote API returns for the
+ * "json" format. Like the DKPro JsonWriter behind that API, this leaves out features with default
+ * values (0, false, empty), which [JsonCasSerializer] would otherwise write.
+ */
+fun casToJson(cas: CAS, output: OutputStream) {
+    JsonCasSerializer().setJsonContext(JsonCasSerializer.JsonContextFormat.omitExpandedTypeNames)
+            .setOmit0Values(true)
+            .serialize(cas, output)
+}
+
+/**
+ * Copies the UIMA CAS JSON read from `input` to `output`, replacing the value of every
+ * `sofaString` field with `replacement`. The output is pretty-printed unless `prettyPrint` is
+ * false, in which case it is compact. This works token by token, so the JSON is never held in
+ * memory.
+ *
+ * Returns whether the JSON has the field "CTEventSpan" in `_views._InitialView`, i.e. whether
+ * any event spans were marked in the document.
  */
-fun hasCTEventSpan(jsonObjectNode: ObjectNode): Boolean {
-    if (jsonObjectNode.has("_views")) {
-        if (jsonObjectNode["_views"].has("_InitialView")) {
-            if (jsonObjectNode["_views"]["_InitialView"].has("CTEventSpan")) {
-                return true
+fun rewriteSofaStrings(input: InputStream, output: OutputStream, replacement: String,
+                       prettyPrint: Boolean = true): Boolean {
+    var hasCTEventSpan = false
+    val jsonFactory = JsonFactory()
+    jsonFactory.createParser(input).use { parser ->
+        val generator = jsonFactory.createGenerator(output)
+        if (prettyPrint) {
+            generator.useDefaultPrettyPrinter()
+        }
+        generator.use { out ->
+            var token = parser.nextToken()
+            while (token != null) {
+                if (token == JsonToken.FIELD_NAME) {
+                    val context = parser.parsingContext
+                    if (parser.currentName == "sofaString") {
+                        out.copyCurrentEvent(parser)
+                        // the value may be a structure, which goes too
+                        parser.nextToken()
+                        parser.skipChildren()
+                        out.writeString(replacement)
+                        token = parser.nextToken()
+                        continue
+                    } else if (parser.currentName == "CTEventSpan"
+                            && context.parent?.currentName == "_InitialView"
+                            && context.parent?.parent?.currentName == "_views"
+                            && context.parent?.parent?.parent?.inRoot() == true) {
+                        hasCTEventSpan = true
+                    }
+                }
+                out.copyCurrentEvent(parser)
+                token = parser.nextToken()
             }
         }
     }
-    return false
+    return hasCTEventSpan
 }
 
+// Every entry gets this modification time, so an archive depends only on what is in it. Zip
+// entries hold a local (DOS) date and time, which is converted from this in the default time zone,
+// so it is midnight on 2000-01-01 in that zone: the archive is then the same in every time zone.
+private val ZIP_ENTRY_TIME = LocalDateTime.of(2000, 1, 1, 0, 0)
+        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+private const val CONTENT_HASH_COMMENT_PREFIX = "content-sha256:"
+
 /**
- * Create zip archives for each project
+ * Creates the zip archive `zipDir/projectName.zip` of a project's output directory. Returns false
+ * without writing anything if the archive is already there and was made from exactly the files
+ * now in the directory.
+ *
+ * The archive is deterministic: its entries are in order of path, all with the same
+ * modification time, so the same files always give the same archive. A SHA-256 hash of the names
+ * and contents of the files is stored as the archive's comment to tell whether they have changed
+ * when this is next run. The archive is written to a temporary file first, so an interrupted run
+ * never leaves a partial archive in place.
  */
-fun zipProject(sourceProjectDir: File, zipDir: Path) {
+fun zipProject(sourceProjectDir: File, zipDir: Path): Boolean {
     val projectName = sourceProjectDir.name
     val zipOutputPath = zipDir.resolve("$projectName.zip")
+    val projectFiles = sourceProjectDir.walk().filter { it.isFile }
+            .sortedBy { it.relativeTo(sourceProjectDir).invariantSeparatorsPath }
+            .toList()
+    val contentHash = CONTENT_HASH_COMMENT_PREFIX + hashFiles(sourceProjectDir, projectFiles)
+    if (Files.exists(zipOutputPath) && previousContentHash(zipOutputPath) == contentHash) {
+        logger.info { "$zipOutputPath is up to date" }
+        return false
+    }
     logger.info { "Compressing project to $zipOutputPath" }
-    val zipOutputStream = ZipOutputStream(
-            BufferedOutputStream(Files.newOutputStream(zipOutputPath))
-    )
-    sourceProjectDir.walk().filter { it.isFile }.forEach { projectFile ->
-        val projectFilePath = projectFile.toPath()
-        zipOutputStream.putNextEntry(ZipEntry("$projectName/${projectFile.name}"))
-        Files.copy(projectFilePath, zipOutputStream)
-        zipOutputStream.closeEntry()
+    val tempZipPath = Files.createTempFile(zipDir, projectName, ".zip.tmp")
+    try {
+        ZipOutputStream(BufferedOutputStream(Files.newOutputStream(tempZipPath))).use { zipOutputStream ->
+            zipOutputStream.comment = contentHash
+            projectFiles.forEach { projectFile ->
+                val entry = ZipEntry("$projectName/${projectFile.name}")
+                entry.time = ZIP_ENTRY_TIME
+                zipOutputStream.putNextEntry(entry)
+                Files.copy(projectFile.toPath(), zipOutputStream)
+                zipOutputStream.closeEntry()
+            }
+        }
+        Files.move(tempZipPath, zipOutputPath, StandardCopyOption.REPLACE_EXISTING)
+    } finally {
+        Files.deleteIfExists(tempZipPath)
     }
-    zipOutputStream.close()
+    return true
 }
+
+// hashes the paths, relative to `root`, and contents of `files`, in order
+private fun hashFiles(root: File, files: List<File>): String {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(64 * 1024)
+    for (file in files) {
+        val relativePath = file.relativeTo(root).invariantSeparatorsPath.toByteArray()
+        // lengths separate each path from its contents, so different files cannot hash the same
+        digest.update(ByteBuffer.allocate(16).putLong(relativePath.size.toLong())
+                .putLong(file.length()).array())
+        digest.update(relativePath)
+        file.inputStream().use { input ->
+            var read = input.read(buffer)
+            while (read >= 0) {
+                digest.update(buffer, 0, read)
+                read = input.read(buffer)
+            }
+        }
+    }
+    return digest.digest().joinToString("") { "%02x".format(it) }
+}
+
+// the content hash an existing archive was made with, if it can be read
+private fun previousContentHash(zipPath: Path): String? =
+        try {
+            ZipFile(zipPath).use { it.comment }
+        } catch (e: IOException) {
+            logger.warn { "Could not read previous archive $zipPath; it will be replaced: $e" }
+            null
+        }
@@ -0,0 +1,109 @@
+package edu.isi.vista.annotationutils
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import java.io.File
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Records which annotations `ExportAnnotations` has already exported, so that later runs only
+ * download the annotations which have changed since.
+ *
+ * There is an entry for each project, document and annotator, holding the timestamp and state of
+ * the annotator's annotation record on the Inception server when it was last exported. Since not
+ * every annotation is written out (e.g. those without any marked spans), the entry also holds the
+ * name of the file written in the project's output directory, if there was one.
+ *
+ * The manifest is stored as a JSON list of entries. It may be updated from several threads at once.
+ */
+class ExportManifest private constructor(entries: List<Entry>) {
+    data class Entry(
+            val project: String,
+            val document: String,
+            val user: String,
+            val timestamp: String,
+            val state: String,
+            val outputFile: String?
+    )
+
+    private data class Key(val project: String, val document: String, val user: String)
+
+    private val entries = ConcurrentHashMap<Key, Entry>()
+
+    init {
+        entries.forEach { this.entries[Key(it.project, it.document, it.user)] = it }
+    }
+
+    val size: Int
+        get() = entries.size
+
+    /**
+     * Whether the annotation of `user` on `document` was exported when its record last had this
+     * `timestamp` and `state`, and what was written for it is still in `projectOutputDir`.
+     * Records without a timestamp are never considered up to date.
+     */
+    fun isUpToDate(
+            project: String,
+            document: String,
+            user: String,
+            timestamp: String?,
+            state: String,
+            projectOutputDir: Path
+    ): Boolean {
+        if (timestamp == null) {
+            return false
+        }
+        val entry = entries[Key(project, document, user)] ?: return false
+        return entry.timestamp == timestamp && entry.state == state &&
+                (entry.outputFile == null || Files.exists(projectOutputDir.resolve(entry.outputFile)))
+    }
+
+    /**
+     * Records that the annotation of `user` on `document` has been exported, to `outputFile` in
+     * the project's output directory if anything was written.
+     */
+    fun record(
+            project: String,
+            document: String,
+            user: String,
+            timestamp: String?,
+            state: String,
+            outputFile: String?
+    ) {
+        if (timestamp != null) {
+            entries[Key(project, document, user)] =
+                    Entry(project, document, user, timestamp, state, outputFile)
+        }
+    }
+
+    /**
+     * Writes the manifest to `file`, replacing it only once the new version is complete.
+     */
+    fun save(file: File) {
+        val sortedEntries = entries.values.sortedWith(
+                compareBy<Entry>({ it.project }, { it.document }, { it.user })
+        )
+        val tmpFile = File(file.path + ".tmp")
+        mapper.writerWithDefaultPrettyPrinter().writeValue(tmpFile, sortedEntries)
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+    }
+
+    companion object {
+        private val mapper = ObjectMapper().registerKotlinModule()
+
+        /**
+         * Loads the manifest from `file`, or starts an empty one if it does not exist yet.
+         */
+        fun load(file: File): ExportManifest {
+            return if (file.exists()) {
+                ExportManifest(mapper.readValue<List<Entry>>(file))
+            } else {
+                ExportManifest(listOf())
+            }
+        }
+    }
+}
@@ -176,89 +176,90 @@ class ExtractAnnotationStats {
                                 throw RuntimeException(
                                         "Missing annotation information (user/subtype) for $it")
                             }
-                            val documentName: String = it.name
-                            // TODO: count events rather than annotated sentences
-                            // https://github.com/isi-vista/curated-training-annotator/issues/41
-                            val jsonTree = ObjectMapper().readTree(it) as ObjectNode
-                            // Spans in relations are listed in _referenced_fss
-                            val documentSpans = jsonTree["_referenced_fss"]
-                            // Any others are in CTEventSpan
-                            val documentCTEventSpan = jsonTree["_views"]["_InitialView"]["CTEventSpan"]
-                            val documentSentences = jsonTree["_views"]["_InitialView"]["Sentence"]
-                            val documentRelations = jsonTree["_views"]["_InitialView"]["CTEventSpanType"]
-                            // For ACE projects, a "significant span" is a clue word or
-                            // secondary trigger.
-                            // For all other projects, it is a primary trigger or negative span.
-                            // We determine the "significant spans" because
-                            // these indicate if the sentence is negative, and it's faster than
-                            // running through each span to find the annotated sentences.
-                            var significantDocumentSpans = mutableListOf<JsonNode>()
-                            if (documentCTEventSpan != null) {
-                                if (corpus != "ACE") {
-                                    if (documentRelations != null) {
-                                        significantDocumentSpans = getPrimarySpans(documentRelations, documentSpans)
-                                    }
-                                    // Add any argument-less spans from CTEventSpan.
-                                    // An example of a CTEventSpan value is
-                                    // "[1004, 1009, {"sofa": 1, "begin": 200, "end": 205, "negative_example": true}, 1003]"
-                                    // Integers represent spans in relations; we are
-                                    // only interested in collecting the spans here that aren't.
-                                    for (item in documentCTEventSpan) {
-                                        if (!item.isInt) {
-                                            significantDocumentSpans.add(item)
+                            forEachExportedAnnotation(it) { documentName, json ->
+                                // TODO: count events rather than annotated sentences
+                                // https://github.com/isi-vista/curated-training-annotator/issues/41
+                                val jsonTree = ObjectMapper().readTree(json) as ObjectNode
+                                // Spans in relations are listed in _referenced_fss
+                                val documentSpans = jsonTree["_referenced_fss"]
+                                // Any others are in CTEventSpan
+                                val documentCTEventSpan = jsonTree["_views"]["_InitialView"]["CTEventSpan"]
+                                val documentSentences = jsonTree["_views"]["_InitialView"]["Sentence"]
+                                val documentRelations = jsonTree["_views"]["_InitialView"]["CTEventSpanType"]
+                                // For ACE projects, a "significant span" is a clue word or
+                                // secondary trigger.
+                                // For all other projects, it is a primary trigger or negative span.
+                                // We determine the "significant spans" because
+                                // these indicate if the sentence is negative, and it's faster than
+                                // running through each span to find the annotated sentences.
+                                var significantDocumentSpans = mutableListOf<JsonNode>()
+                                if (documentCTEventSpan != null) {
+                                    if (corpus != "ACE") {
+                                        if (documentRelations != null) {
+                                            significantDocumentSpans = getPrimarySpans(documentRelations, documentSpans)
+                                        }
+                                        // Add any argument-less spans from CTEventSpan.
+                                        // An example of a CTEventSpan value is
+                                        // "[1004, 1009, {"sofa": 1, "begin": 200, "end": 205, "negative_example": true}, 1003]"
+                                        // Integers represent spans in relations; we are
+                                        // only interested in collecting the spans here that aren't.
+                                        for (item in documentCTEventSpan) {
+                                            if (!item.isInt) {
+                                                significantDocumentSpans.add(item)
+                                            }
                                         }
+                                    } else if (documentRelations != null) {
+                                        significantDocumentSpans = getAceAdditions(documentRelations, documentSpans)
                                     }
-                                } else if (documentRelations != null) {
-                                    significantDocumentSpans = getAceAdditions(documentRelations, documentSpans)
-                                }
-                            }
-                            // Keep track of sentences that have already been counted.
-                            // Multiple triggers may appear in the same sentence, so we
-                            // want to avoid duplicate instances.
-                            // This will be populated with sentence IDs for this document.
-                            val documentAnnotatedSentences = mutableSetOf<String>()
-                            for (significantSpan in significantDocumentSpans) {
-                                val spanBegin = if (significantSpan["begin"] == null) {
-                                    // Some span objects may not have a "begin" field.
-                                    // This is because in some corpus documents,
-                                    // the first token is markable, so the "sofa"
-                                    // serves as the starting index.
-                                    significantSpan["sofa"].toString().toInt()
-                                } else {
-                                    significantSpan["begin"].toString().toInt()
                                 }
-                                for (sentence in documentSentences) {
-                                    val sentenceBegin = if (sentence["begin"] == null) {
-                                        sentence["sofa"].toString().toInt()
+                                // Keep track of sentences that have already been counted.
+                                // Multiple triggers may appear in the same sentence, so we
+                                // want to avoid duplicate instances.
+                                // This will be populated with sentence IDs for this document.
+                                val documentAnnotatedSentences = mutableSetOf<String>()
+                                for (significantSpan in significantDocumentSpans) {
+                                    val spanBegin = if (significantSpan["begin"] == null) {
+                                        // Some span objects may not have a "begin" field.
+                                        // This is because in some corpus documents,
+                                        // the first token is markable, so the "sofa"
+                                        // serves as the starting index.
+                                        significantSpan["sofa"].toString().toInt()
                                     } else {
-                                        sentence["begin"].toString().toInt()
+                                        significantSpan["begin"].toString().toInt()
                                     }
-                                    val sentenceEnd = sentence["end"].toString().toInt()
-                                    val sentenceID = "$documentName-$sentenceBegin"
-                                    // If the given span is in a sentence, add the sentence
-                                    // to the sentence list, including whether it's a negative example
-                                    if (
-                                            (spanBegin >= sentenceBegin)
-                                            and (significantSpan["end"].toString().toInt() <= sentenceEnd)
-                                    ) {
-                                        if (documentAnnotatedSentences.contains(sentenceID)) {
-                                            break
-                                        } else if (significantSpan["negative_example"].toString() == "true") {
-                                            sentenceList.add(
-                                                    SentenceAnnotation(
-                                                            sentenceID, user, eventType, corpus, true
-                                                    )
-                                            )
+                                    for (sentence in documentSentences) {
+                                        val sentenceBegin = if (sentence["begin"] == null) {
+                                            sentence["sofa"].toString().toInt()
                                         } else {
-                                            sentenceList.add(
-                                                    SentenceAnnotation(
-                                                            sentenceID, user, eventType, corpus, false
-                                                    )
-                                            )
+                                            sentence["begin"].toString().toInt()
+                                        }
+                                        val sentenceEnd = sentence["end"].toString().toInt()
+                                        val sentenceID = "$documentName-$sentenceBegin"
+                                        // If the given span is in a sentence, add the sentence
+                                        // to the sentence list, including whether it's a negative example
+                                        if (
+                                                (spanBegin >= sentenceBegin)
+                                                and (significantSpan["end"].toString().toInt() <= sentenceEnd)
+                                        ) {
+                                            if (documentAnnotatedSentences.contains(sentenceID)) {
+                                                break
+                                            } else if (significantSpan["negative_example"].toString() == "true") {
+                                                sentenceList.add(
+                                                        SentenceAnnotation(
+                                                                sentenceID, user, eventType, corpus, true
+                                                        )
+                                                )
+                                            } else {
+                                                sentenceList.add(
+                                                        SentenceAnnotation(
+                                                                sentenceID, user, eventType, corpus, false
+                                                        )
+                                                )
+                                            }
+                                            documentAnnotatedSentences.add(sentenceID)
+                                            // We've found the sentence of our span
+                                            break
                                         }
-                                        documentAnnotatedSentences.add(sentenceID)
-                                        // We've found the sentence of our span
-                                        break
                                     }
                                 }
                             }
@@ -0,0 +1,72 @@
+package edu.isi.vista.annotationutils;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import edu.isi.nlp.io.OriginalTextSource;
+import edu.isi.nlp.symbols.Symbol;
+import edu.isi.vista.corpus.GzipCheckpointIndex;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Gets the text of Gigaword documents straight from the gzipped files of the LDC distribution,
+ * using the indexes built by {@code BuildGzipCheckpointIndexes} to decompress only the part of the
+ * file around each document.
+ *
+ * <p>A document ID such as {@code AFP_ENG_19960918.0012} is looked up in
+ * {@code afp_eng/afp_eng_199609.gz} under the data directory, with its index at
+ * {@code afp_eng/afp_eng_199609.gz.zidx} under the index directory.
+ */
+public final class GzipIndexedGigawordTextSource implements OriginalTextSource {
+    // each index holds a few MB of checkpoints, so only keep those of recently used files around
+    private static final int MAX_CACHED_INDEXES = 16;
+
+    private final File gigawordDataDirectory;
+    private final LoadingCache<Path, GzipCheckpointIndex> indexes;
+
+    GzipIndexedGigawordTextSource(File gigawordDataDirectory, File gzipIndexDirectory)
+            throws IOException {
+        if (!gigawordDataDirectory.isDirectory()) {
+            throw new IOException("The Gigaword data directory " + gigawordDataDirectory
+                    + " is not a directory");
+        }
+        if (!gzipIndexDirectory.isDirectory()) {
+            throw new IOException("The gzip index directory " + gzipIndexDirectory
+                    + " is not a directory");
+        }
+        this.gigawordDataDirectory = gigawordDataDirectory;
+        this.indexes = CacheBuilder.newBuilder()
+                .maximumSize(MAX_CACHED_INDEXES)
+                .build(new CacheLoader<Path, GzipCheckpointIndex>() {
+                    @Override
+                    public GzipCheckpointIndex load(Path relativeGzPath) throws IOException {
+                        return GzipCheckpointIndex.read(gzipIndexDirectory.toPath().resolve(
+                                relativeGzPath + GzipCheckpointIndex.INDEX_SUFFIX));
+                    }
+                });
+    }
+
+    @Override
+    public Optional<String> getOriginalText(final Symbol docID) throws IOException {
+        // e.g. AFP_ENG_19960918.0012 -> afp_eng/afp_eng_199609.gz
+        final String lowerCaseID = docID.asString().toLowerCase();
+        final Path relativeGzPath = Paths.get(
+                lowerCaseID.substring(0, 7), lowerCaseID.substring(0, 14) + ".gz");
+        final File gzFile = new File(gigawordDataDirectory, relativeGzPath.toString());
+        if (!gzFile.exists()) {
+            return Optional.absent();
+        }
+        final GzipCheckpointIndex index;
+        try {
+            index = indexes.get(relativeGzPath);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not load the gzip index for " + gzFile, e.getCause());
+        }
+        return index.readDocument(gzFile.toPath(), docID.asString());
+    }
+}
@@ -0,0 +1,225 @@
+package edu.isi.vista.annotationutils
+
+import com.github.kittinunf.fuel.core.FileDataPart
+import com.github.kittinunf.fuel.core.FuelManager
+import com.github.kittinunf.fuel.core.Method
+import com.github.kittinunf.fuel.core.Parameters
+import com.github.kittinunf.fuel.core.Request
+import java.util.Base64
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Makes requests to the remote API of an Inception server. Each tool creates one of these and
+ * makes all its requests through it.
+ *
+ * Every request carries the basic authentication header. Connections to the server are kept
+ * alive and reused between requests; the JVM's pool of idle connections is sized by
+ * [configureConnectionPool], which programs must call before their first HTTP request of any
+ * kind. Each kind of request ([Endpoint]) has its own read timeout,
+ * and the time taken to respond to each kind is recorded and can be logged with [logMetrics].
+ * Failed requests made through [withRetries] are retried according to a single [RetryPolicy]
+ * shared by all of them.
+ *
+ * The parameters read by [fromParameters] are:
+ * <ul>
+ *     <li> `inceptionUrl` is the base URL of your Inception server.</li>
+ *     <li> `inceptionUsername` is the user name of an Inception user with access to the
+ *          remote API. </li>
+ *     <li> `inceptionPassword` is the password for the user above. </li>
+ *     <li> `inceptionConnectTimeoutSeconds` (optional, default 15) is how long to wait to connect
+ *          to the server. </li>
+ *     <li> `inceptionMetadataTimeoutSeconds`, `inceptionAnnotationTimeoutSeconds`,
+ *          `inceptionProjectExportTimeoutSeconds` and `inceptionProjectImportTimeoutSeconds`
+ *          (optional) are how long to wait for the server to respond to each kind of request
+ *          (see [Endpoint] for the defaults). </li>
+ *     <li> `inceptionMaxTries` (optional, default 3) is how many times to try each request. </li>
+ *     <li> `inceptionInitialBackoffMillis` (optional, default 1000) and
+ *          `inceptionMaxBackoffMillis` (optional, default 60000) bound the wait before the first
+ *          and any later retry of a request. </li>
+ *     <li> `inceptionRetryBudgetPercent` (optional, default 20) is the percentage of all
+ *          requests which may be retries. </li>
+ *     <li> `inceptionCircuitBreakerFailures` (optional, default 5) is how many requests must fail
+ *          in a row for all requests to pause for `inceptionCircuitBreakerPauseSeconds`
+ *          (optional, default 30). </li>
+ * </ul>
+ */
+class InceptionClient(
+        val url: String,
+        userName: String,
+        password: String,
+        connectTimeoutSeconds: Int = 15,
+        private val readTimeoutsSeconds: Map<Endpoint, Int> = mapOf(),
+        private val retryPolicy: RetryPolicy = RetryPolicy()
+) {
+    /**
+     * The kinds of request made to Inception, which differ in how long the server may take to
+     * respond.
+     */
+    enum class Endpoint(val parameterName: String, val defaultTimeoutSeconds: Int) {
+        /** listing projects, documents and annotation records, and deleting projects */
+        METADATA("inceptionMetadataTimeoutSeconds", 15),
+        /** downloading a single annotator's annotations of a document */
+        ANNOTATION("inceptionAnnotationTimeoutSeconds", 15),
+        /** downloading a project's export.zip, which Inception builds before sending */
+        PROJECT_EXPORT("inceptionProjectExportTimeoutSeconds", 130),
+        /** uploading a project, which Inception imports before responding */
+        PROJECT_IMPORT("inceptionProjectImportTimeoutSeconds", 130)
+    }
+
+    private class EndpointMetrics {
+        val requests = AtomicLong()
+        val errors = AtomicLong()
+        val totalMillis = AtomicLong()
+        val maxMillis = AtomicLong()
+    }
+
+    // when each request was sent, so its latency can be found from its response
+    private class Timing(val endpoint: Endpoint, val startNanos: Long)
+
+    private val metrics = ConcurrentHashMap<Endpoint, EndpointMetrics>()
+
+    private val fuel = FuelManager()
+
+    init {
+        val credentials = Base64.getEncoder().encodeToString("$userName:$password".toByteArray())
+        fuel.baseHeaders = mapOf("Authorization" to "Basic $credentials")
+        fuel.timeoutInMillisecond = TimeUnit.SECONDS.toMillis(connectTimeoutSeconds.toLong()).toInt()
+        fuel.addRequestInterceptor { next ->
+            { request ->
+                val endpoint = request.getTag(Endpoint::class)
+                if (endpoint != null) {
+                    request.tag(Timing(endpoint, System.nanoTime()))
+                }
+                next(request)
+            }
+        }
+        fuel.addResponseInterceptor { next ->
+            { request, response ->
+                val timing = request.getTag(Timing::class)
+                if (timing != null) {
+                    record(timing.endpoint, System.nanoTime() - timing.startNanos,
+                            response.statusCode >= 400)
+                }
+                next(request, response)
+            }
+        }
+    }
+
+    fun get(endpoint: Endpoint, path: String, parameters: Parameters? = null): Request =
+            prepare(fuel.get(url + path, parameters), endpoint)
+
+    fun delete(endpoint: Endpoint, path: String, parameters: Parameters? = null): Request =
+            prepare(fuel.delete(url + path, parameters), endpoint)
+
+    /**
+     * Posts `file` as a multipart form upload.
+     */
+    fun upload(endpoint: Endpoint, path: String, file: FileDataPart): Request =
+            prepare(fuel.upload(url + path, Method.POST).add(file), endpoint)
+
+    /**
+     * Makes a request, retrying it according to the client's [RetryPolicy] if it throws a
+     * [com.github.kittinunf.fuel.core.FuelError]. Returns null if it could not be made.
+     */
+    fun <T> withRetries(request: () -> T): T? = retryPolicy.call(request)
+
+    private fun prepare(request: Request, endpoint: Endpoint): Request {
+        val timeoutSeconds = readTimeoutsSeconds[endpoint] ?: endpoint.defaultTimeoutSeconds
+        return request.tag(endpoint)
+                .timeoutRead(TimeUnit.SECONDS.toMillis(timeoutSeconds.toLong()).toInt())
+    }
+
+    private fun record(endpoint: Endpoint, elapsedNanos: Long, error: Boolean) {
+        val endpointMetrics = metrics.computeIfAbsent(endpoint) { EndpointMetrics() }
+        val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos)
+        endpointMetrics.requests.incrementAndGet()
+        if (error) {
+            endpointMetrics.errors.incrementAndGet()
+        }
+        endpointMetrics.totalMillis.addAndGet(elapsedMillis)
+        endpointMetrics.maxMillis.accumulateAndGet(elapsedMillis, Math::max)
+    }
+
+    /**
+     * Logs how many requests of each kind were answered, how long the server took to start
+     * responding to them, and how many were retried.
+     */
+    fun logMetrics() {
+        retryPolicy.logMetrics()
+        for (endpoint in Endpoint.values()) {
+            val endpointMetrics = metrics[endpoint] ?: continue
+            val requests = endpointMetrics.requests.get()
+            logger.info {
+                "Inception ${endpoint.name.toLowerCase()} requests: $requests answered " +
+                        "(${endpointMetrics.errors.get()} with errors), " +
+                        "mean ${endpointMetrics.totalMillis.get() / requests} ms, " +
+                        "max ${endpointMetrics.maxMillis.get()} ms"
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * The optional parameters of [fromParameters], for tools which pass them on.
+         */
+        val OPTIONAL_PARAMETERS = listOf(
+                "inceptionConnectTimeoutSeconds",
+                "inceptionMaxTries",
+                "inceptionInitialBackoffMillis",
+                "inceptionMaxBackoffMillis",
+                "inceptionRetryBudgetPercent",
+                "inceptionCircuitBreakerFailures",
+                "inceptionCircuitBreakerPauseSeconds"
+        ) + Endpoint.values().map { it.parameterName }
+
+        /**
+         * Lets the JVM keep up to `maxConnections` idle connections to each server, so that many
+         * concurrent requests to Inception can reuse them, unless `http.maxConnections` was set on
+         * the command line. The JVM reads this when it makes its first HTTP request, whether to
+         * Inception, to a Git server or anywhere else, so call this at the start of `main`.
+         */
+        fun configureConnectionPool(maxConnections: Int) {
+            if (System.getProperty("http.maxConnections") == null) {
+                System.setProperty("http.maxConnections", maxConnections.toString())
+            }
+        }
+
+        fun fromParameters(params: edu.isi.nlp.parameters.Parameters): InceptionClient {
+            val readTimeoutsSeconds = mutableMapOf<Endpoint, Int>()
+            for (endpoint in Endpoint.values()) {
+                val timeoutSeconds = params.getOptionalPositiveInteger(endpoint.parameterName)
+                if (timeoutSeconds.isPresent) {
+                    readTimeoutsSeconds[endpoint] = timeoutSeconds.get()
+                }
+            }
+            val retryBudgetPercent = params.getOptionalInteger("inceptionRetryBudgetPercent").or(20)
+            if (retryBudgetPercent < 0) {
+                throw RuntimeException("inceptionRetryBudgetPercent must not be negative")
+            }
+            return InceptionClient(
+                    params.getString("inceptionUrl"),
+                    params.getString("inceptionUsername"),
+                    params.getString("inceptionPassword"),
+                    params.getOptionalPositiveInteger("inceptionConnectTimeoutSeconds").or(15),
+                    readTimeoutsSeconds,
+                    RetryPolicy(
+                            maxTries = params.getOptionalPositiveInteger("inceptionMaxTries").or(3),
+                            initialBackoffMillis = params
+                                    .getOptionalPositiveInteger("inceptionInitialBackoffMillis").or(1000)
+                                    .toLong(),
+                            maxBackoffMillis = params
+                                    .getOptionalPositiveInteger("inceptionMaxBackoffMillis").or(60000)
+                                    .toLong(),
+                            retryBudgetRatio = retryBudgetPercent / 100.0,
+                            circuitBreakerFailures = params
+                                    .getOptionalPositiveInteger("inceptionCircuitBreakerFailures").or(5),
+                            circuitBreakerPauseMillis = TimeUnit.SECONDS.toMillis(params
+                                    .getOptionalPositiveInteger("inceptionCircuitBreakerPauseSeconds").or(30)
+                                    .toLong())
+                    )
+            )
+        }
+    }
+}
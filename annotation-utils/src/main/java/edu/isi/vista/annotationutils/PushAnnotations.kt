@@ -40,6 +40,19 @@ import java.util.concurrent.TimeUnit
  *          will be copied to zip archives. The default is false. </li>
  *     <li> `zipExportRoot` (optional) is the directory where the zipped output will be saved.
  *          If no value is given, the output will not have a compressed version. </li>
+ *     <li> `maxConcurrentZips` (optional) is how many projects may be compressed at once; see
+ *          `ExportAnnotations`. </li>
+ *     <li> `exportManifest` (optional) is a file recording what has already been exported, so
+ *          that only annotations which have changed since the last run are downloaded. It
+ *          should be outside `localWorkingCopyDirectory`. See `ExportAnnotations`. </li>
+ *     <li> `annotationsFromProjectExport` (optional) reads each project's annotations from its
+ *          `export.zip` instead of downloading them document by document. See `ExportAnnotations`. </li>
+ *     <li> `maxConcurrentRequests`, `maxConcurrentRequestsPerProject` and `maxConcurrentProjects`
+ *          (optional) limit how much of the export runs at once; see `ExportAnnotations`. </li>
+ *     <li> `outputFormat` (optional) is `files` or `container`; see `ExportAnnotations`. Either way,
+ *          `restoreJson` writes a file for each annotation to `restoredJsonDirectory`, which is what
+ *          `curated_training_ingester.py` reads. </li>
+ *     <li> the optional connection and timeout parameters of [InceptionClient]. </li>
  *
  *     <li> `restoreJson`: "true" if you would like to restore the original document text to the annotation
  *          files; if your repository is public, please put "false"; if "true", you must also provide
@@ -123,7 +136,41 @@ fun main(argv: Array<String>) {
                 "zipExportRoot", params.getCreatableDirectory("zipExportRoot").absolutePath
         )
     }
+    if (params.isPresent("maxConcurrentZips")) {
+        exportAnnotationsParamsBuilder.set(
+                "maxConcurrentZips", params.getPositiveInteger("maxConcurrentZips").toString()
+        )
+    }
+    if (params.isPresent("exportManifest")) {
+        exportAnnotationsParamsBuilder.set(
+                "exportManifest", params.getCreatableFile("exportManifest").absolutePath
+        )
+    }
+    if (params.isPresent("annotationsFromProjectExport")) {
+        exportAnnotationsParamsBuilder.set(
+                "annotationsFromProjectExport",
+                params.getBoolean("annotationsFromProjectExport").toString()
+        )
+    }
+    if (params.isPresent("outputFormat")) {
+        exportAnnotationsParamsBuilder.set("outputFormat", params.getString("outputFormat"))
+    }
+    for (concurrencyParam in listOf("maxConcurrentRequests", "maxConcurrentRequestsPerProject",
+            "maxConcurrentProjects")) {
+        if (params.isPresent(concurrencyParam)) {
+            exportAnnotationsParamsBuilder.set(
+                    concurrencyParam, params.getPositiveInteger(concurrencyParam).toString()
+            )
+        }
+    }
+    for (inceptionParam in InceptionClient.OPTIONAL_PARAMETERS) {
+        if (params.isPresent(inceptionParam)) {
+            exportAnnotationsParamsBuilder.set(inceptionParam, params.getString(inceptionParam))
+        }
+    }
     val exportAnnotationsParams = exportAnnotationsParamsBuilder.build()
+    // before the repository is cloned or fetched, which may be the first HTTP request
+    ExportAnnotations.configureConnectionPool(exportAnnotationsParams)
 
     // Build params for restoring the original text
     val restoreJson = params.getOptionalBoolean("restoreJson").or(false)
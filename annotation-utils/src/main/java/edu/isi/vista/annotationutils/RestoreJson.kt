@@ -4,13 +4,13 @@ import edu.isi.nlp.io.OffsetIndexedCorpus
 import edu.isi.nlp.symbols.Symbol
 import edu.isi.nlp.io.DocIDToFileMappings
 import com.google.common.base.Optional
-import com.fasterxml.jackson.databind.ObjectMapper
 import edu.isi.nlp.io.OriginalTextSource
 import edu.isi.nlp.parameters.Parameters
 import java.io.File
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
 import java.io.IOException;
 
 /**
@@ -27,10 +27,19 @@ import java.io.IOException;
  *     <li> {@code indexDirectory} is the location of the files produced by {@code IndexFlatGigaword.java}
 (https://github.com/isi-vista/nlp-util/blob/master/nlp-core-open/src/main/java/edu/isi/nlp/corpora/gigaword/IndexFlatGigaword.java) </li>
  *     <li> {@code gigawordDataDirectory} is the location of the gigaword text files </li>
- *     <li> {@code inputJsonDirectory} is the location of the stripped json files produced by {@code ExportAnnotations.kt} </li>
- *     <li> {@code restoredJsonDirectory} is where the new json files will go </li>
+ *     <li> {@code inputJsonDirectory} is the location of the stripped json files produced by {@code ExportAnnotations.kt},
+ *     either one file per annotation or a project's annotation container ({@code annotations.jsonl}) </li>
+ *     <li> {@code restoredJsonDirectory} is where the new json files will go. There is always one file per
+ *     restored annotation, as {@code curated_training_ingester.py} expects, so the annotations in a container
+ *     are written to files of their own. If this is {@code inputJsonDirectory}, the files replace the container,
+ *     and annotations which are not restored are kept unchanged in files of their own. </li>
  *  </ul>
  *
+ *  Instead of {@code indexDirectory}, English Gigaword text can be read straight from the gzipped
+ *  files of the LDC distribution by giving {@code gigawordGzipIndexDirectory}, the location of the
+ *  indexes produced by {@code BuildGzipCheckpointIndexes}. {@code gigawordDataDirectory} should
+ *  then be the distribution's {@code data} directory, containing e.g. {@code afp_eng/afp_eng_199609.gz}.
+ *
  *  The optional parameters listed below are for selecting non-English/other projects to restore.
  *  <ul>
  *      <li> `restoreAce` - if false, the program will skip restoring the text of ACE project documents.
@@ -76,9 +85,6 @@ class RestoreJson {
                     params.isPresent("spanishDataDirectory")
             )
 
-            // Make objects for reading, parsing, and writing json:
-            val objectMapper = ObjectMapper()
-            val prettyPrinter = objectMapper.writerWithDefaultPrettyPrinter()
             val gigaWordTextSource = makeTextSource(params, "gigaword")
             val spanishTextSource = if (restoreSpanish) {
                 makeTextSource(params, "spanish-gigaword")
@@ -93,8 +99,9 @@ class RestoreJson {
                 makeTextSource(params, "russian-ltf")
             } else {null}
 
-            inputJsonDirectory.walk().filter { it.isFile }.forEach { jsonFile ->
-                val filename = jsonFile.name
+            // The original text of a document from its exported annotation's file name, or null if
+            // it is not to be restored
+            fun originalText(filename: String): String? {
                 val englishPattern = Regex("[\b_]ENG[\b_]")
                 val spanishPattern = Regex("[\b_]SPA[\b_]")
                 //returns docID if ace file, else returns null
@@ -102,7 +109,40 @@ class RestoreJson {
                 // returns docID if CORD-19 file, else returns null
                 val cord19DocID = getCord19DocID(filename)
                 val russianDocID = getRussianDocID(filename)
-                if (filename.endsWith(".json")) {
+                // If aceDocID is empty, it means the document being processed is not an
+                // ace document
+                return if(restoreAce && aceDocID != null) {
+                    // If it is an Ace doc: Filename contains event_type.subtype
+                    // Example Filename is:
+                    // CNNHL_ENG_20030304_142751.10-Business.Declare-Bankruptcy.xmi-liz_lee.json
+                    val docID = Symbol.from(aceDocID)
+                    aceTextSource!!.getOriginalText(docID).orNull()
+                            ?: throw RuntimeException("Could not get original text for $docID")
+                } else if (restoreCord19 && cord19DocID != null) {
+                    val docID = Symbol.from(cord19DocID)
+                    cord19TextSource!!.getOriginalText(docID).orNull()
+                            ?: throw RuntimeException("Could not get original text for $docID")
+                } else if (restoreRussian && russianDocID != null) {
+                    val docID = Symbol.from(russianDocID)
+                    russianTextSource!!.getOriginalText(docID).orNull()
+                            ?: throw RuntimeException("Could not get original text for $docID")
+                } else if (restoreSpanish && filename.contains(spanishPattern)) {
+                    // If it is a Gigaword doc: First 21 characters of the filename are the
+                    // document id
+                    // Example filename is AFP_ENG_19960918.0012-admin.json
+                    val docID = Symbol.from(filename.substring(0, 21))
+                    spanishTextSource!!.getOriginalText(docID).orNull()
+                            ?: throw RuntimeException("Could not get original text for $docID")
+                } else if (aceDocID == null && filename.contains(englishPattern)) {
+                    val docID = Symbol.from(filename.substring(0, 21))
+                    gigaWordTextSource.getOriginalText(docID).orNull()
+                            ?: throw RuntimeException("Could not get original text for $docID")
+                } else {null}
+            }
+
+            inputJsonDirectory.walk().filter { it.isFile }.forEach { jsonFile ->
+                val filename = jsonFile.name
+                if (filename.endsWith(".json") || filename == ANNOTATION_CONTAINER) {
                     // The project directory is the path to this file with the input directory components
                     // stripped off the front, then joined with the desired output directory.
                     val projectOutDir = Paths.get(
@@ -112,40 +152,48 @@ class RestoreJson {
                     if (Files.notExists(projectOutDir)) {
                         Files.createDirectories(projectOutDir)
                     }
-                    val jsonTree = objectMapper.readTree(jsonFile)
-                    // If aceDocID is empty, it means the document being processed is not an
-                    // ace document
-                    val text = if(restoreAce && aceDocID != null) {
-                        // If it is an Ace doc: Filename contains event_type.subtype
-                        // Example Filename is:
-                        // CNNHL_ENG_20030304_142751.10-Business.Declare-Bankruptcy.xmi-liz_lee.json
-                        val docID = Symbol.from(aceDocID)
-                        aceTextSource!!.getOriginalText(docID).orNull()
-                                ?: throw RuntimeException("Could not get original text for $docID")
-                    } else if (restoreCord19 && cord19DocID != null) {
-                        val docID = Symbol.from(cord19DocID)
-                        cord19TextSource!!.getOriginalText(docID).orNull()
-                                ?: throw RuntimeException("Could not get original text for $docID")
-                    } else if (restoreRussian && russianDocID != null) {
-                        val docID = Symbol.from(russianDocID)
-                        russianTextSource!!.getOriginalText(docID).orNull()
-                                ?: throw RuntimeException("Could not get original text for $docID")
-                    } else if (restoreSpanish && filename.contains(spanishPattern)) {
-                        // If it is a Gigaword doc: First 21 characters of the filename are the
-                        // document id
-                        // Example filename is AFP_ENG_19960918.0012-admin.json
-                        val docID = Symbol.from(filename.substring(0, 21))
-                        spanishTextSource!!.getOriginalText(docID).orNull()
-                                ?: throw RuntimeException("Could not get original text for $docID")
-                    } else if (aceDocID == null && filename.contains(englishPattern)) {
-                        val docID = Symbol.from(filename.substring(0, 21))
-                        gigaWordTextSource.getOriginalText(docID).orNull()
-                                ?: throw RuntimeException("Could not get original text for $docID")
-                    } else {null}
+                    // The output directory may be the input directory, so restored JSON only
+                    // replaces the original once it is complete.
+                    if (filename == ANNOTATION_CONTAINER) {
+                        // A project's annotation container is expanded to a file for each annotation,
+                        // just as if the project had been exported with one file per annotation.
+                        // Restoring in place replaces the container with the files, so the
+                        // annotations are not found twice by the tools reading the directory, and
+                        // those which are not restored are then copied out as they are.
+                        val inPlace = Files.isSameFile(projectOutDir, jsonFile.toPath().parent)
+                        forEachExportedAnnotation(jsonFile) { name, json ->
+                            val text = originalText(name)
+                            if (text == null && !inPlace) {
+                                logger.info { "Skipping $name" }
+                                return@forEachExportedAnnotation
+                            }
+                            val restoredJson = Files.createTempFile(projectOutDir, name, ".tmp")
+                            Files.newOutputStream(restoredJson).use { output ->
+                                if (text != null) {
+                                    rewriteSofaStrings(json, output, text)
+                                } else {
+                                    json.copyTo(output)
+                                }
+                            }
+                            Files.move(restoredJson, projectOutDir.resolve(name),
+                                    StandardCopyOption.REPLACE_EXISTING)
+                            logger.info { if (text != null) "Restored $name" else "Copied $name" }
+                        }
+                        if (inPlace) {
+                            Files.delete(jsonFile.toPath())
+                        }
+                        return@forEach
+                    }
+                    val text = originalText(filename)
                     if (text != null) {
-                        jsonTree.replaceFieldEverywhere("sofaString", text)
                         val outFile = File(projectOutDir.toString(), filename)
-                        outFile.writeBytes(prettyPrinter.writeValueAsBytes(jsonTree))
+                        val restoredJson = Files.createTempFile(projectOutDir, filename, ".tmp")
+                        Files.newOutputStream(restoredJson).use { output ->
+                            jsonFile.inputStream().use { input ->
+                                rewriteSofaStrings(input, output, text)
+                            }
+                        }
+                        Files.move(restoredJson, outFile.toPath(), StandardCopyOption.REPLACE_EXISTING)
                         logger.info { "Restored $filename" }
                     } else {
                         logger.info {
@@ -164,6 +212,13 @@ fun makeTextSource(params: Parameters, corpusName: String): OriginalTextSource {
     // Create an OriginalTextSource for getting original document text to put in json:
     if (corpusName.equals("gigaword", ignoreCase = true)) {
         // Create the gigaword corpus TextSource
+        if (params.isPresent("gigawordGzipIndexDirectory")) {
+            // Read documents straight from the gzipped distribution files
+            return GzipIndexedGigawordTextSource(
+                    params.getExistingDirectory("gigawordDataDirectory"),
+                    params.getExistingDirectory("gigawordGzipIndexDirectory")
+            )
+        }
         val textMap = DocIDToFileMappings.forFunction { symbol ->
             Optional.of(File(params.getExistingDirectory("gigawordDataDirectory"), docIDToFilename(symbol)))
         }
@@ -0,0 +1,143 @@
+package edu.isi.vista.annotationutils
+
+import com.github.kittinunf.fuel.core.FuelError
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Decides when failed requests to a server are tried again. One policy is shared by every
+ * request a tool makes to the server, from however many threads.
+ *
+ * A failed request is tried again after an exponentially growing, randomly jittered wait, so
+ * workers which failed together do not all retry together. Requests which failed because they
+ * were bad (HTTP 4xx other than 408 and 429) are not tried again.
+ *
+ * Two limits keep retries from adding to the load on a server which is struggling:
+ * <ul>
+ *     <li> a retry budget: retries may only make up `retryBudgetRatio` of all requests (plus a
+ *     few to start with). Once it is spent, failed requests are given up on at once. </li>
+ *     <li> a circuit breaker: after `circuitBreakerFailures` failures in a row from any threads,
+ *     no requests at all are made for `circuitBreakerPauseMillis`, giving the server time to
+ *     recover. If the next request after the pause fails too, the pause starts again. </li>
+ * </ul>
+ */
+class RetryPolicy(
+        private val maxTries: Int = 3,
+        private val initialBackoffMillis: Long = 1000,
+        private val maxBackoffMillis: Long = 60000,
+        private val retryBudgetRatio: Double = 0.2,
+        private val circuitBreakerFailures: Int = 5,
+        private val circuitBreakerPauseMillis: Long = 30000
+) {
+    private val requests = AtomicLong()
+    private val retries = AtomicLong()
+    private val givenUp = AtomicLong()
+    private val budgetExhausted = AtomicLong()
+    private val circuitBreaks = AtomicLong()
+
+    private val consecutiveFailures = AtomicInteger()
+    // System.nanoTime() before which no requests should be made
+    @Volatile
+    private var pausedUntilNanos = System.nanoTime()
+
+    /**
+     * Calls `request` until it succeeds, returning its result, or returns null once the policy
+     * gives up on it. `request` should throw a [FuelError] if it fails.
+     */
+    fun <T> call(request: () -> T): T? {
+        for (attempt in 1..maxTries) {
+            waitWhileCircuitIsBroken()
+            requests.incrementAndGet()
+            try {
+                val ret = request()
+                consecutiveFailures.set(0)
+                return ret
+            } catch (e: FuelError) {
+                logger.warn { e }
+                if (!isRetryable(e)) {
+                    break
+                }
+                recordFailure()
+                if (attempt == maxTries) {
+                    break
+                }
+                if (!spendRetryBudget()) {
+                    logger.warn { "Retry budget is spent; not trying the request again" }
+                    budgetExhausted.incrementAndGet()
+                    break
+                }
+                val backoffMillis = backoffMillis(attempt)
+                logger.warn { "Request $attempt/$maxTries failed. Waiting $backoffMillis ms and trying again." }
+                TimeUnit.MILLISECONDS.sleep(backoffMillis)
+            }
+        }
+        logger.warn { "HTTP request has failed. Aborting." }
+        givenUp.incrementAndGet()
+        return null
+    }
+
+    private fun isRetryable(e: FuelError): Boolean {
+        val statusCode = e.response.statusCode
+        return statusCode !in 400..499 || statusCode == 408 || statusCode == 429
+    }
+
+    // full jitter: a uniformly random wait of up to the exponential backoff
+    private fun backoffMillis(attempt: Int): Long {
+        val ceiling = Math.min(maxBackoffMillis, initialBackoffMillis shl Math.min(attempt - 1, 20))
+        return ThreadLocalRandom.current().nextLong(ceiling + 1)
+    }
+
+    private fun spendRetryBudget(): Boolean {
+        // a small allowance so the first few failures of a run can be retried
+        val allowedRetries = 10 + (retryBudgetRatio * requests.get()).toLong()
+        while (true) {
+            val spent = retries.get()
+            if (spent >= allowedRetries) {
+                return false
+            }
+            if (retries.compareAndSet(spent, spent + 1)) {
+                return true
+            }
+        }
+    }
+
+    private fun recordFailure() {
+        if (consecutiveFailures.incrementAndGet() >= circuitBreakerFailures) {
+            synchronized(this) {
+                // several threads may see the failure count pass the threshold; only pause once
+                if (System.nanoTime() - pausedUntilNanos >= 0) {
+                    logger.warn {
+                        "${consecutiveFailures.get()} requests in a row have failed; pausing all " +
+                                "requests for $circuitBreakerPauseMillis ms"
+                    }
+                    pausedUntilNanos = System.nanoTime() +
+                            TimeUnit.MILLISECONDS.toNanos(circuitBreakerPauseMillis)
+                    circuitBreaks.incrementAndGet()
+                }
+            }
+        }
+    }
+
+    private fun waitWhileCircuitIsBroken() {
+        while (true) {
+            val remainingNanos = pausedUntilNanos - System.nanoTime()
+            if (remainingNanos <= 0) {
+                return
+            }
+            TimeUnit.NANOSECONDS.sleep(remainingNanos)
+        }
+    }
+
+    /**
+     * Logs how many requests were made and retried, and how often the limits on retries applied.
+     */
+    fun logMetrics() {
+        logger.info {
+            "${requests.get()} requests made, ${retries.get()} of them retries; " +
+                    "${givenUp.get()} requests given up on, ${budgetExhausted.get()} of them because " +
+                    "the retry budget was spent; requests paused ${circuitBreaks.get()} times"
+        }
+    }
+}
@@ -15,5 +15,6 @@ fun main(argv: Array<String>) {
             .interpolateEnvironmentalVariables(true).build()
     val params = paramsLoader.load(File(argv[0]))
 
+    ExportAnnotations.configureConnectionPool(params)
     ExportAnnotations.export(params)
 }
\ No newline at end of file
@@ -12,6 +12,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -155,20 +156,25 @@ public class SerializedCasConverter {
       throw new FileNotFoundException(serializedCasFile + " not found");
     }
 
-    CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
-    readSerializedCas(cas, serializedCasFile);
-
-    return cas;
+    try (InputStream in = new FileInputStream(serializedCasFile)) {
+      return readCas(in);
+    }
   }
 
-  private static void readSerializedCas(CAS aCas, File aFile)
-      throws IOException, CASException, ClassNotFoundException {
-    try (ObjectInputStream is = new ObjectInputStream(new FileInputStream(aFile))) {
-      CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
-      deserializeCASComplete(serializer, (CASImpl) aCas);
-      // Initialize the JCas sub-system which is the most often used API in DKPro Core
-      // components
-      aCas.getJCas();
-    }
+  /**
+   * Reads a CAS serialized with its type system, as Inception stores annotations in the
+   * {@code .ser} files of its repository and project exports. {@code in} is not closed.
+   */
+  static CAS readCas(InputStream in)
+      throws IOException, ResourceInitializationException, ClassNotFoundException, CASException {
+    CAS cas = CasCreationUtils.createCas((TypeSystemDescription) null, null, null);
+    // not closed, since that would close the underlying stream
+    ObjectInputStream is = new ObjectInputStream(in);
+    CASCompleteSerializer serializer = (CASCompleteSerializer) is.readObject();
+    deserializeCASComplete(serializer, (CASImpl) cas);
+    // Initialize the JCas sub-system which is the most often used API in DKPro Core
+    // components
+    cas.getJCas();
+    return cas;
   }
 }
@@ -0,0 +1,107 @@
+package edu.isi.vista.annotationutils
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.nio.file.Files
+import java.nio.file.Path
+
+class AnnotationContainerTest {
+    @Rule
+    @JvmField
+    val tempFolder = TemporaryFolder()
+
+    @Test
+    fun appendedAnnotationsAreReadBack() {
+        val container = newContainer()
+        assertEquals(listOf<String>(), container.names())
+
+        container.append("a-alice.json", casJson("""{"_views":{"_InitialView":{"CTEventSpan":[1]}}}"""))
+        container.append("b-alice.json", casJson("""{"_views":{}}"""))
+
+        assertEquals(listOf("a-alice.json", "b-alice.json"), container.names())
+        assertEquals(mapOf(
+                "a-alice.json" to """{"_views":{"_InitialView":{"CTEventSpan":[1]}}}""",
+                "b-alice.json" to """{"_views":{}}"""
+        ), readAll(container))
+    }
+
+    @Test
+    fun laterRecordSupersedesEarlierOne() {
+        val container = newContainer()
+        container.append("a-alice.json", casJson("""{"version":1}"""))
+        container.append("b-alice.json", casJson("""{"version":1}"""))
+        container.append("a-alice.json", casJson("""{"version":2}"""))
+
+        // the superseded record is still in the file until the container is compacted
+        assertEquals(3, Files.readAllLines(container.file).size)
+        assertEquals(listOf("b-alice.json", "a-alice.json"), container.names())
+        assertEquals(mapOf(
+                "b-alice.json" to """{"version":1}""",
+                "a-alice.json" to """{"version":2}"""
+        ), readAll(container))
+    }
+
+    @Test
+    fun compactDropsSupersededRecords() {
+        val container = newContainer()
+        container.append("a-alice.json", casJson("""{"version":1}"""))
+        container.append("b-alice.json", casJson("""{"version":1}"""))
+        container.append("a-alice.json", casJson("""{"version":2}"""))
+
+        assertTrue(container.compact())
+        assertEquals(2, Files.readAllLines(container.file).size)
+        assertEquals(listOf("b-alice.json", "a-alice.json"), container.names())
+        assertEquals(mapOf(
+                "b-alice.json" to """{"version":1}""",
+                "a-alice.json" to """{"version":2}"""
+        ), readAll(container))
+        // nothing is left to drop, and no temporary files are left behind
+        assertFalse(container.compact())
+        assertEquals(listOf(ANNOTATION_CONTAINER), container.file.parent.toFile().list()!!.toList())
+
+        // the compacted container can be appended to as before
+        container.append("b-alice.json", casJson("""{"version":2}"""))
+        assertEquals(listOf("a-alice.json", "b-alice.json"), container.names())
+        assertEquals("""{"version":2}""", readAll(container)["b-alice.json"])
+    }
+
+    @Test
+    fun exportedAnnotationsAreReadFromContainersAndFiles() {
+        val container = newContainer()
+        container.append("a-alice.json", casJson("""{"version":1}"""))
+        val annotationFile = container.file.resolveSibling("c-alice.json").toFile()
+        annotationFile.writeText("""{"version":3}""")
+        val eventLog = container.file.resolveSibling(EVENT_LOG).toFile()
+        eventLog.writeText("not an annotation")
+
+        val read = mutableMapOf<String, String>()
+        for (file in listOf(container.file.toFile(), annotationFile, eventLog)) {
+            forEachExportedAnnotation(file) { name, json -> read[name] = json.reader().readText() }
+        }
+        assertEquals(mapOf(
+                "a-alice.json" to """{"version":1}""",
+                "c-alice.json" to """{"version":3}"""
+        ), read)
+    }
+
+    // a container in a project directory of its own
+    private fun newContainer() =
+            AnnotationContainer(tempFolder.newFolder().toPath().resolve(ANNOTATION_CONTAINER))
+
+    // a file holding `json`, outside the project directory
+    private fun casJson(json: String): Path {
+        val ret = tempFolder.newFile().toPath()
+        Files.write(ret, json.toByteArray())
+        return ret
+    }
+
+    private fun readAll(container: AnnotationContainer): Map<String, String> {
+        val ret = mutableMapOf<String, String>()
+        container.forEachAnnotation { name, json -> ret[name] = json.reader().readText() }
+        return ret
+    }
+}
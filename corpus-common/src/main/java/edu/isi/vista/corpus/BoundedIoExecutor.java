@@ -0,0 +1,95 @@
+package edu.isi.vista.corpus;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs blocking I/O tasks, such as HTTP requests, with a limit on how many run at once.
+ *
+ * <p>The limit is enforced by a semaphore rather than by the size of a thread pool, so it does not
+ * depend on which threads the tasks run on. By default they run on platform threads. When built
+ * with the {@code virtual-threads} profile (which requires JDK 21), each task runs on its own
+ * virtual thread instead, so limits in the thousands are cheap.
+ *
+ * <p>This is shared by the indexer's bulk requests and annotation-utils' requests to Inception.
+ */
+public final class BoundedIoExecutor implements AutoCloseable {
+
+  private final ExecutorService executor;
+
+  private final Semaphore permits;
+
+  private final int maxConcurrency;
+
+  private BoundedIoExecutor(ExecutorService executor, int maxConcurrency) {
+    this.executor = executor;
+    this.permits = new Semaphore(maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /**
+   * @param name used to name the threads tasks run on
+   * @param maxConcurrency the most tasks which may run at once
+   */
+  public static BoundedIoExecutor create(String name, int maxConcurrency) {
+    checkArgument(maxConcurrency > 0, "Concurrency limit must be positive");
+    return new BoundedIoExecutor(IoThreads.newExecutor(name), maxConcurrency);
+  }
+
+  /**
+   * Whether tasks run on virtual threads, i.e. whether this is the {@code virtual-threads} build.
+   */
+  public static boolean usesVirtualThreads() {
+    return IoThreads.VIRTUAL;
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Starts {@code task}, first blocking until fewer than {@link #getMaxConcurrency()} tasks are
+   * running. Blocking the submitter rather than queueing keeps a fast producer from running far
+   * ahead of the requests.
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to start a task", e);
+    }
+    try {
+      return executor.submit(() -> {
+        try {
+          return task.call();
+        } finally {
+          permits.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for all submitted tasks to finish.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for tasks to finish", e);
+    }
+  }
+}
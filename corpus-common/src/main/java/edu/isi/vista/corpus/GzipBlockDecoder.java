@@ -0,0 +1,554 @@
+package edu.isi.vista.corpus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Decodes a gzip file one DEFLATE block at a time, keeping track of the exact bit position in the
+ * compressed file and the last 32 KiB of output.
+ *
+ * <p>This is what lets {@link GzipCheckpointIndex} resume decompression in the middle of a file,
+ * the approach of zlib's {@code zran.c} example. Block boundaries generally do not fall on byte
+ * boundaries, and {@link java.util.zip.Inflater} can neither report where they are nor start
+ * decoding part way through a byte, so this is a small pure-Java decoder in the style of zlib's
+ * {@code puff.c}.
+ *
+ * <p>Concatenated gzip members are decoded one after another, as {@code gunzip} does. When decoding
+ * from the start of the file, the CRC32 and length of each member's output are checked against its
+ * trailer, so a decoding error cannot silently produce the wrong text. A decoder resumed part way
+ * through a member has not seen all of its output, so cannot check them. Header checksums are not
+ * verified.
+ */
+final class GzipBlockDecoder {
+
+  /**
+   * How far back DEFLATE back-references can reach, and so how much output must be kept to resume
+   * decoding.
+   */
+  static final int WINDOW_SIZE = 32768;
+
+  private static final int MAX_BITS = 15;
+
+  private static final int MAX_LENGTH_CODES = 286;
+
+  private static final int MAX_DISTANCE_CODES = 30;
+
+  private static final int FIXED_LENGTH_CODES = 288;
+
+  // codes at most this long are decoded with a single table lookup
+  private static final int FAST_BITS = 9;
+
+  private static final short[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27,
+      31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+
+  private static final short[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3,
+      3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+
+  private static final short[] DISTANCE_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97,
+      129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+
+  private static final short[] DISTANCE_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7,
+      7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+
+  // the order in which code length code lengths are stored in a dynamic block header
+  private static final short[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3,
+      13, 2, 14, 1, 15};
+
+  private static final Huffman FIXED_LENGTH_CODE;
+
+  private static final Huffman FIXED_DISTANCE_CODE;
+
+  static {
+    try {
+      final short[] lengths = new short[FIXED_LENGTH_CODES];
+      Arrays.fill(lengths, 0, 144, (short) 8);
+      Arrays.fill(lengths, 144, 256, (short) 9);
+      Arrays.fill(lengths, 256, 280, (short) 7);
+      Arrays.fill(lengths, 280, FIXED_LENGTH_CODES, (short) 8);
+      FIXED_LENGTH_CODE = new Huffman(lengths, 0, FIXED_LENGTH_CODES);
+      final short[] distanceLengths = new short[MAX_DISTANCE_CODES];
+      Arrays.fill(distanceLengths, (short) 5);
+      FIXED_DISTANCE_CODE = new Huffman(distanceLengths, 0, MAX_DISTANCE_CODES);
+    } catch (IOException e) {
+      throw new AssertionError("The fixed codes are valid", e);
+    }
+  }
+
+  private final InputStream in;
+
+  // the offset in the file of the first byte of in
+  private final long inputStartOffset;
+
+  private long bytesRead = 0;
+
+  // bits read from the input but not yet consumed, least significant first
+  private int bitBuffer = 0;
+
+  private int bitCount = 0;
+
+  // the last WINDOW_SIZE bytes of output, followed by output not yet handed to drainOutput
+  private byte[] output = new byte[4 * WINDOW_SIZE];
+
+  private int outputLength = 0;
+
+  private int undrainedStart = 0;
+
+  // uncompressed offset corresponding to output[0]
+  private long outputStartOffset;
+
+  // whether the final block of the current gzip member has been decoded
+  private boolean memberFinished = false;
+
+  // the CRC32 and length of the output of the current member, if we have seen all of it
+  private final CRC32 memberCrc;
+
+  private long memberLength = 0;
+
+  private GzipBlockDecoder(InputStream in, long inputStartOffset, long uncompressedOffset,
+      boolean verifyMembers) {
+    this.in = in;
+    this.inputStartOffset = inputStartOffset;
+    this.outputStartOffset = uncompressedOffset;
+    this.memberCrc = verifyMembers ? new CRC32() : null;
+  }
+
+  /**
+   * Starts decoding a gzip file from its beginning. {@code in} should be buffered.
+   */
+  static GzipBlockDecoder fromStart(InputStream in) throws IOException {
+    final GzipBlockDecoder ret = new GzipBlockDecoder(in, 0, 0, true);
+    if (!ret.readMemberHeader()) {
+      throw new EOFException("Empty gzip file");
+    }
+    return ret;
+  }
+
+  /**
+   * Resumes decoding at a block boundary previously reported by {@link #bitPosition()}.
+   *
+   * @param in the compressed file, positioned at byte {@code bitPosition / 8}. It should be
+   *           buffered.
+   * @param window the {@link #window()} at that point
+   * @param uncompressedOffset the {@link #uncompressedPosition()} at that point
+   */
+  static GzipBlockDecoder resume(InputStream in, long bitPosition, byte[] window,
+      long uncompressedOffset) throws IOException {
+    final GzipBlockDecoder ret =
+        new GzipBlockDecoder(in, bitPosition / 8, uncompressedOffset - window.length, false);
+    System.arraycopy(window, 0, ret.output, 0, window.length);
+    ret.outputLength = window.length;
+    ret.undrainedStart = window.length;
+    // discard the bits of the first byte which belong to the previous block
+    ret.bits((int) (bitPosition % 8));
+    return ret;
+  }
+
+  /**
+   * The position in the compressed file, in bits, of the next thing to be decoded.
+   */
+  long bitPosition() {
+    return (inputStartOffset + bytesRead) * 8 - bitCount;
+  }
+
+  /**
+   * The uncompressed offset of the end of the output decoded so far.
+   */
+  long uncompressedPosition() {
+    return outputStartOffset + outputLength;
+  }
+
+  /**
+   * Whether decoding could be resumed from the current position, i.e. the next thing in the file
+   * is a DEFLATE block rather than a gzip trailer.
+   */
+  boolean atBlockBoundary() {
+    return !memberFinished;
+  }
+
+  /**
+   * The output preceding the current position which later blocks may refer back to. Only valid
+   * after {@link #drainOutput(OutputConsumer)}.
+   */
+  byte[] window() {
+    return Arrays.copyOfRange(output, Math.max(0, outputLength - WINDOW_SIZE), outputLength);
+  }
+
+  /**
+   * Decodes the next DEFLATE block, moving on to the next gzip member if the current one is
+   * finished. Returns false at the end of the file. The output of each block should be taken with
+   * {@link #drainOutput(OutputConsumer)} before decoding the next.
+   *
+   * @throws IOException if the data is corrupt, including if a member's output does not match the
+   *                     CRC32 and length in its trailer
+   */
+  boolean decodeBlock() throws IOException {
+    if (memberFinished) {
+      readMemberTrailer();
+      if (!readMemberHeader()) {
+        return false;
+      }
+      checkState(undrainedStart == outputLength, "Output must be drained after each block");
+      // back-references cannot cross members
+      drainWindow(0);
+    }
+    final boolean lastBlock = bits(1) == 1;
+    final int blockStart = outputLength;
+    switch (bits(2)) {
+      case 0:
+        storedBlock();
+        break;
+      case 1:
+        codes(FIXED_LENGTH_CODE, FIXED_DISTANCE_CODE);
+        break;
+      case 2:
+        dynamicBlock();
+        break;
+      default:
+        throw new IOException("Invalid DEFLATE block type at bit " + bitPosition());
+    }
+    if (memberCrc != null) {
+      memberCrc.update(output, blockStart, outputLength - blockStart);
+      memberLength += outputLength - blockStart;
+    }
+    memberFinished = lastBlock;
+    return true;
+  }
+
+  /**
+   * Hands output decoded since the last call to {@code consumer}.
+   */
+  void drainOutput(OutputConsumer consumer) throws IOException {
+    if (outputLength > undrainedStart) {
+      consumer.accept(output, undrainedStart, outputLength - undrainedStart,
+          outputStartOffset + undrainedStart);
+    }
+    drainWindow(WINDOW_SIZE);
+  }
+
+  interface OutputConsumer {
+
+    /**
+     * @param uncompressedOffset the uncompressed offset of {@code bytes[offset]}
+     */
+    void accept(byte[] bytes, int offset, int length, long uncompressedOffset) throws IOException;
+  }
+
+  // keeps only the last windowToKeep bytes of already drained output
+  private void drainWindow(int windowToKeep) {
+    final int keepFrom = Math.max(0, outputLength - windowToKeep);
+    System.arraycopy(output, keepFrom, output, 0, outputLength - keepFrom);
+    outputStartOffset += keepFrom;
+    outputLength -= keepFrom;
+    undrainedStart = outputLength;
+  }
+
+  /**
+   * Reads a gzip member header. Returns false if we are at the end of the file instead.
+   */
+  private boolean readMemberHeader() throws IOException {
+    final int id1 = readAlignedByte();
+    if (id1 < 0) {
+      return false;
+    }
+    if (id1 != 0x1f || readAlignedByte() != 0x8b || readAlignedByte() != 8) {
+      throw new IOException("Not a gzip member at byte " + bitPosition() / 8);
+    }
+    final int flags = readAlignedByte();
+    // modification time, extra flags and OS
+    for (int i = 0; i < 6; ++i) {
+      readAlignedByte();
+    }
+    if ((flags & 4) != 0) {
+      final int extraLength = readAlignedByte() | (readAlignedByte() << 8);
+      for (int i = 0; i < extraLength; ++i) {
+        readAlignedByte();
+      }
+    }
+    // file name and comment are zero-terminated
+    for (int flag : new int[] {8, 16}) {
+      if ((flags & flag) != 0) {
+        int b;
+        do {
+          b = readAlignedByte();
+        } while (b > 0);
+      }
+    }
+    if ((flags & 2) != 0) {
+      readAlignedByte();
+      readAlignedByte();
+    }
+    memberFinished = false;
+    if (memberCrc != null) {
+      memberCrc.reset();
+      memberLength = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the CRC32 and ISIZE trailer of the member just finished, checking them against its output
+   * if we have seen all of it.
+   */
+  private void readMemberTrailer() throws IOException {
+    // the trailer starts at the next byte boundary
+    final long trailerOffset = (bitPosition() + 7) / 8;
+    final long crc = readTrailerInt();
+    final long length = readTrailerInt();
+    if (memberCrc != null) {
+      if (crc != memberCrc.getValue()) {
+        throw new IOException(String.format("CRC32 mismatch in gzip member trailer at byte %d: "
+            + "expected %08x but decoded %08x", trailerOffset, crc, memberCrc.getValue()));
+      }
+      // ISIZE is the length modulo 2^32
+      if (length != (memberLength & 0xffffffffL)) {
+        throw new IOException("Length mismatch in gzip member trailer at byte " + trailerOffset
+            + ": expected " + length + " bytes modulo 2^32 but decoded " + memberLength);
+      }
+    }
+  }
+
+  // reads a little-endian unsigned 32-bit integer of a gzip trailer
+  private long readTrailerInt() throws IOException {
+    long ret = 0;
+    for (int i = 0; i < 4; ++i) {
+      final int b = readAlignedByte();
+      if (b < 0) {
+        throw new EOFException("Truncated gzip trailer");
+      }
+      ret |= (long) b << (8 * i);
+    }
+    return ret;
+  }
+
+  // reads a whole byte after discarding any partial byte. Returns -1 at the end of the file.
+  private int readAlignedByte() throws IOException {
+    bits(bitCount & 7);
+    if (bitCount >= 8) {
+      return bits(8);
+    }
+    final int b = in.read();
+    if (b >= 0) {
+      bytesRead += 1;
+    }
+    return b;
+  }
+
+  // buffers at least n bits if the input has them
+  private void need(int n) throws IOException {
+    while (bitCount < n) {
+      final int b = in.read();
+      if (b < 0) {
+        return;
+      }
+      bytesRead += 1;
+      bitBuffer |= b << bitCount;
+      bitCount += 8;
+    }
+  }
+
+  private int bits(int n) throws IOException {
+    need(n);
+    if (bitCount < n) {
+      throw new EOFException("Unexpected end of compressed data");
+    }
+    final int ret = bitBuffer & ((1 << n) - 1);
+    bitBuffer >>>= n;
+    bitCount -= n;
+    return ret;
+  }
+
+  private void ensureOutputCapacity(int extra) {
+    if (outputLength + extra > output.length) {
+      output = Arrays.copyOf(output, Math.max(2 * output.length, outputLength + extra));
+    }
+  }
+
+  private void storedBlock() throws IOException {
+    // stored blocks start at a byte boundary
+    bits(bitCount & 7);
+    final int length = bits(16);
+    final int complement = bits(16);
+    if (length != (~complement & 0xffff)) {
+      throw new IOException("Corrupt stored block at bit " + bitPosition());
+    }
+    ensureOutputCapacity(length);
+    for (int i = 0; i < length; ++i) {
+      output[outputLength++] = (byte) bits(8);
+    }
+  }
+
+  private void dynamicBlock() throws IOException {
+    final int numLengthCodes = bits(5) + 257;
+    final int numDistanceCodes = bits(5) + 1;
+    final int numCodeLengthCodes = bits(4) + 4;
+    if (numLengthCodes > MAX_LENGTH_CODES || numDistanceCodes > MAX_DISTANCE_CODES) {
+      throw new IOException("Too many codes in dynamic block at bit " + bitPosition());
+    }
+
+    final short[] lengths = new short[MAX_LENGTH_CODES + MAX_DISTANCE_CODES];
+    for (int i = 0; i < numCodeLengthCodes; ++i) {
+      lengths[CODE_LENGTH_ORDER[i]] = (short) bits(3);
+    }
+    final Huffman codeLengthCode = new Huffman(lengths, 0, CODE_LENGTH_ORDER.length);
+
+    Arrays.fill(lengths, (short) 0);
+    int index = 0;
+    while (index < numLengthCodes + numDistanceCodes) {
+      final int symbol = decode(codeLengthCode);
+      if (symbol < 16) {
+        lengths[index++] = (short) symbol;
+      } else {
+        short repeatedLength = 0;
+        final int repeat;
+        if (symbol == 16) {
+          if (index == 0) {
+            throw new IOException("Repeat with no previous length at bit " + bitPosition());
+          }
+          repeatedLength = lengths[index - 1];
+          repeat = 3 + bits(2);
+        } else if (symbol == 17) {
+          repeat = 3 + bits(3);
+        } else {
+          repeat = 11 + bits(7);
+        }
+        if (index + repeat > numLengthCodes + numDistanceCodes) {
+          throw new IOException("Too many lengths in dynamic block at bit " + bitPosition());
+        }
+        Arrays.fill(lengths, index, index + repeat, repeatedLength);
+        index += repeat;
+      }
+    }
+    if (lengths[256] == 0) {
+      throw new IOException("No end-of-block code in dynamic block at bit " + bitPosition());
+    }
+    codes(new Huffman(lengths, 0, numLengthCodes),
+        new Huffman(lengths, numLengthCodes, numDistanceCodes));
+  }
+
+  private void codes(Huffman lengthCode, Huffman distanceCode) throws IOException {
+    while (true) {
+      final int symbol = decode(lengthCode);
+      if (symbol < 256) {
+        ensureOutputCapacity(1);
+        output[outputLength++] = (byte) symbol;
+      } else if (symbol == 256) {
+        return;
+      } else {
+        final int lengthSymbol = symbol - 257;
+        if (lengthSymbol >= LENGTH_BASE.length) {
+          throw new IOException("Invalid length code at bit " + bitPosition());
+        }
+        final int length = LENGTH_BASE[lengthSymbol] + bits(LENGTH_EXTRA[lengthSymbol]);
+        final int distanceSymbol = decode(distanceCode);
+        if (distanceSymbol >= DISTANCE_BASE.length) {
+          throw new IOException("Invalid distance code at bit " + bitPosition());
+        }
+        final int distance = DISTANCE_BASE[distanceSymbol] + bits(DISTANCE_EXTRA[distanceSymbol]);
+        if (distance > outputLength) {
+          throw new IOException("Distance too far back at bit " + bitPosition());
+        }
+        ensureOutputCapacity(length);
+        // the source and destination may overlap, so this must be copied a byte at a time
+        for (int i = 0; i < length; ++i) {
+          output[outputLength] = output[outputLength - distance];
+          outputLength += 1;
+        }
+      }
+    }
+  }
+
+  private int decode(Huffman huffman) throws IOException {
+    need(MAX_BITS);
+    final int entry = huffman.fastTable[bitBuffer & ((1 << FAST_BITS) - 1)];
+    if (entry != 0) {
+      final int length = entry >>> 16;
+      if (length > bitCount) {
+        throw new EOFException("Unexpected end of compressed data");
+      }
+      bitBuffer >>>= length;
+      bitCount -= length;
+      return entry & 0xffff;
+    }
+
+    // codes longer than FAST_BITS are decoded canonically, a bit at a time, as in puff.c
+    int code = 0;
+    int first = 0;
+    int index = 0;
+    int buffer = bitBuffer;
+    for (int length = 1; length <= MAX_BITS && length <= bitCount; ++length) {
+      code |= buffer & 1;
+      buffer >>>= 1;
+      final int count = huffman.count[length];
+      if (code - count < first) {
+        bitBuffer >>>= length;
+        bitCount -= length;
+        return huffman.symbol[index + (code - first)];
+      }
+      index += count;
+      first += count;
+      first <<= 1;
+      code <<= 1;
+    }
+    throw new IOException("Invalid Huffman code at bit " + bitPosition());
+  }
+
+  /**
+   * A canonical Huffman code, as used by DEFLATE.
+   */
+  private static final class Huffman {
+
+    // the number of symbols with codes of each length
+    private final short[] count = new short[MAX_BITS + 1];
+
+    // symbols ordered by code
+    private final short[] symbol;
+
+    // for each FAST_BITS bit pattern, (code length << 16) | symbol, or 0 if the code is longer
+    private final int[] fastTable = new int[1 << FAST_BITS];
+
+    private Huffman(short[] lengths, int offset, int numSymbols) throws IOException {
+      this.symbol = new short[numSymbols];
+      for (int i = 0; i < numSymbols; ++i) {
+        count[lengths[offset + i]] += 1;
+      }
+      int left = 1;
+      for (int length = 1; length <= MAX_BITS; ++length) {
+        left <<= 1;
+        left -= count[length];
+        if (left < 0) {
+          throw new IOException("Over-subscribed Huffman code");
+        }
+      }
+
+      final int[] offsets = new int[MAX_BITS + 1];
+      for (int length = 1; length < MAX_BITS; ++length) {
+        offsets[length + 1] = offsets[length] + count[length];
+      }
+      final int[] nextCode = new int[MAX_BITS + 1];
+      for (int length = 1, code = 0; length <= MAX_BITS; ++length) {
+        code = (code + (length > 1 ? count[length - 1] : 0)) << 1;
+        nextCode[length] = code;
+      }
+      for (int i = 0; i < numSymbols; ++i) {
+        final int length = lengths[offset + i];
+        if (length == 0) {
+          continue;
+        }
+        symbol[offsets[length]++] = (short) i;
+        final int code = nextCode[length]++;
+        if (length <= FAST_BITS) {
+          // DEFLATE sends codes most significant bit first
+          final int reversed = Integer.reverse(code) >>> (32 - length);
+          for (int j = reversed; j < fastTable.length; j += 1 << length) {
+            fastTable[j] = (length << 16) | i;
+          }
+        }
+      }
+    }
+  }
+}
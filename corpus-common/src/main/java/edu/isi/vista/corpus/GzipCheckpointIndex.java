@@ -0,0 +1,343 @@
+package edu.isi.vista.corpus;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An index for random access into a gzipped Gigaword file, in the style of zlib's {@code zran.c}.
+ *
+ * <p>Getting one document out of a gzipped file normally means decompressing everything before
+ * it. This index records a checkpoint roughly every {@code span} bytes of uncompressed output: the
+ * bit position of a DEFLATE block boundary in the compressed file and the 32 KiB of output
+ * preceding it, which is everything needed to resume decompression there. It also records the
+ * uncompressed byte range of each {@code <DOC>} element by document ID. To read a document, we
+ * resume at the last checkpoint before it and decompress at most about {@code span} bytes.
+ *
+ * <p>The document ranges match the article text produced by {@code ConcatenatedGigawordDocuments}
+ * for well-formed files, i.e. from {@code <DOC id=...} through {@code </DOC>}.
+ */
+public final class GzipCheckpointIndex {
+
+  /**
+   * The suffix added to the path of a gzipped file, relative to the data directory, to name its
+   * index in the index directory.
+   */
+  public static final String INDEX_SUFFIX = ".zidx";
+
+  private static final int MAGIC = 0x475a4958; // "GZIX"
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final byte[] DOC_START = "<DOC id=\"".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] DOC_END = "</DOC>".getBytes(StandardCharsets.US_ASCII);
+
+  // checkpoints ordered by uncompressed offset
+  private final ImmutableList<Checkpoint> checkpoints;
+
+  private final ImmutableMap<String, DocumentRange> documents;
+
+  private GzipCheckpointIndex(ImmutableList<Checkpoint> checkpoints,
+      ImmutableMap<String, DocumentRange> documents) {
+    this.checkpoints = checkpoints;
+    this.documents = documents;
+  }
+
+  /**
+   * Builds an index by decompressing {@code gzFile} once. The CRC32 and length of every gzip member
+   * are checked as it is decompressed, and an {@link IOException} thrown if they do not match, so
+   * an index is never built from wrongly decoded text.
+   *
+   * @param span the approximate number of uncompressed bytes between checkpoints. Smaller spans
+   *             make reads faster and the index larger.
+   */
+  public static GzipCheckpointIndex build(Path gzFile, long span) throws IOException {
+    checkArgument(span > 0, "Checkpoint span must be positive");
+    final List<Checkpoint> checkpoints = new ArrayList<>();
+    final DocumentScanner scanner = new DocumentScanner();
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(gzFile), 1 << 16)) {
+      final GzipBlockDecoder decoder = GzipBlockDecoder.fromStart(in);
+      checkpoints.add(Checkpoint.at(decoder));
+      while (decoder.decodeBlock()) {
+        decoder.drainOutput(scanner);
+        final long sinceLastCheckpoint = decoder.uncompressedPosition()
+            - checkpoints.get(checkpoints.size() - 1).uncompressedOffset;
+        if (decoder.atBlockBoundary() && sinceLastCheckpoint >= span) {
+          checkpoints.add(Checkpoint.at(decoder));
+        }
+      }
+    }
+    return new GzipCheckpointIndex(ImmutableList.copyOf(checkpoints),
+        ImmutableMap.copyOf(scanner.documents));
+  }
+
+  public static GzipCheckpointIndex read(Path indexFile) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(indexFile)))) {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+        throw new IOException(indexFile + " is not a gzip checkpoint index of a supported version");
+      }
+      final int numCheckpoints = in.readInt();
+      final ImmutableList.Builder<Checkpoint> checkpoints = ImmutableList.builder();
+      for (int i = 0; i < numCheckpoints; ++i) {
+        final long bitOffset = in.readLong();
+        final long uncompressedOffset = in.readLong();
+        final byte[] compressedWindow = new byte[in.readInt()];
+        in.readFully(compressedWindow);
+        checkpoints.add(new Checkpoint(bitOffset, uncompressedOffset, compressedWindow));
+      }
+      final int numDocuments = in.readInt();
+      final ImmutableMap.Builder<String, DocumentRange> documents = ImmutableMap.builder();
+      for (int i = 0; i < numDocuments; ++i) {
+        documents.put(in.readUTF(), new DocumentRange(in.readLong(), in.readInt()));
+      }
+      return new GzipCheckpointIndex(checkpoints.build(), documents.build());
+    }
+  }
+
+  public void write(Path indexFile) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(indexFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(checkpoints.size());
+      for (Checkpoint checkpoint : checkpoints) {
+        out.writeLong(checkpoint.bitOffset);
+        out.writeLong(checkpoint.uncompressedOffset);
+        out.writeInt(checkpoint.compressedWindow.length);
+        out.write(checkpoint.compressedWindow);
+      }
+      out.writeInt(documents.size());
+      for (Map.Entry<String, DocumentRange> document : documents.entrySet()) {
+        out.writeUTF(document.getKey());
+        out.writeLong(document.getValue().offset);
+        out.writeInt(document.getValue().length);
+      }
+    }
+  }
+
+  public int numCheckpoints() {
+    return checkpoints.size();
+  }
+
+  public ImmutableList<String> documentIds() {
+    return documents.keySet().asList();
+  }
+
+  /**
+   * Gets the text of the document with ID {@code docId} from {@code gzFile}, which must be the file
+   * this index was built from.
+   */
+  public Optional<String> readDocument(Path gzFile, String docId) throws IOException {
+    final DocumentRange range = documents.get(docId);
+    if (range == null) {
+      return Optional.absent();
+    }
+    return Optional.of(new String(read(gzFile, range.offset, range.length),
+        StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads {@code length} bytes of the uncompressed content of {@code gzFile} starting at
+   * {@code offset}, decompressing only from the nearest preceding checkpoint.
+   */
+  public byte[] read(Path gzFile, long offset, int length) throws IOException {
+    final Checkpoint checkpoint = checkpointBefore(offset);
+    final byte[] ret = new byte[length];
+    final int[] filled = {0};
+    try (FileChannel channel = FileChannel.open(gzFile, StandardOpenOption.READ)) {
+      channel.position(checkpoint.bitOffset / 8);
+      final GzipBlockDecoder decoder = GzipBlockDecoder.resume(
+          new BufferedInputStream(Channels.newInputStream(channel), 1 << 16),
+          checkpoint.bitOffset, checkpoint.window(), checkpoint.uncompressedOffset);
+      while (filled[0] < length && decoder.decodeBlock()) {
+        decoder.drainOutput((bytes, bytesOffset, bytesLength, uncompressedOffset) -> {
+          // copy whatever part of this output falls within the requested range
+          final long from = Math.max(offset + filled[0], uncompressedOffset);
+          final long to = Math.min(offset + length, uncompressedOffset + bytesLength);
+          if (from < to) {
+            System.arraycopy(bytes, bytesOffset + (int) (from - uncompressedOffset), ret,
+                (int) (from - offset), (int) (to - from));
+            filled[0] = (int) (to - offset);
+          }
+        });
+      }
+    }
+    if (filled[0] < length) {
+      throw new IOException("Reached end of " + gzFile + " before reading " + length
+          + " bytes at " + offset + ". Is the index for a different file?");
+    }
+    return ret;
+  }
+
+  private Checkpoint checkpointBefore(long offset) {
+    int low = 0;
+    int high = checkpoints.size() - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (checkpoints.get(mid).uncompressedOffset <= offset) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return checkpoints.get(low);
+  }
+
+  private static final class Checkpoint {
+
+    private final long bitOffset;
+
+    private final long uncompressedOffset;
+
+    // the 32 KiB of output preceding the checkpoint, deflated to keep the index small
+    private final byte[] compressedWindow;
+
+    private Checkpoint(long bitOffset, long uncompressedOffset, byte[] compressedWindow) {
+      this.bitOffset = bitOffset;
+      this.uncompressedOffset = uncompressedOffset;
+      this.compressedWindow = compressedWindow;
+    }
+
+    private static Checkpoint at(GzipBlockDecoder decoder) {
+      final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+      try {
+        deflater.setInput(decoder.window());
+        deflater.finish();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[GzipBlockDecoder.WINDOW_SIZE];
+        while (!deflater.finished()) {
+          compressed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return new Checkpoint(decoder.bitPosition(), decoder.uncompressedPosition(),
+            compressed.toByteArray());
+      } finally {
+        deflater.end();
+      }
+    }
+
+    private byte[] window() throws IOException {
+      final Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(compressedWindow);
+        final byte[] buffer = new byte[GzipBlockDecoder.WINDOW_SIZE];
+        int length = 0;
+        while (!inflater.finished() && length < buffer.length) {
+          final int inflated = inflater.inflate(buffer, length, buffer.length - length);
+          if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+            break;
+          }
+          length += inflated;
+        }
+        return Arrays.copyOf(buffer, length);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt checkpoint window", e);
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+  private static final class DocumentRange {
+
+    private final long offset;
+
+    private final int length;
+
+    private DocumentRange(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Finds the uncompressed byte ranges of {@code <DOC id="...">...</DOC>} elements as output is
+   * decoded. Markers may be split across blocks, so this works a byte at a time.
+   */
+  private static final class DocumentScanner implements GzipBlockDecoder.OutputConsumer {
+
+    private final Map<String, DocumentRange> documents = new LinkedHashMap<>();
+
+    private int docStartMatched = 0;
+
+    private int docEndMatched = 0;
+
+    // the document being scanned, if we have seen its start
+    private long currentStart = -1;
+
+    // non-null while reading the ID of the current document
+    private ByteArrayOutputStream currentId = null;
+
+    private String currentDocId = null;
+
+    @Override
+    public void accept(byte[] bytes, int offset, int length, long uncompressedOffset) {
+      for (int i = 0; i < length; ++i) {
+        final byte b = bytes[offset + i];
+        final long position = uncompressedOffset + i;
+
+        if (currentId != null) {
+          if (b == '"') {
+            currentDocId = new String(currentId.toByteArray(), StandardCharsets.UTF_8);
+            currentId = null;
+          } else {
+            currentId.write(b);
+          }
+        }
+
+        docStartMatched = advance(DOC_START, docStartMatched, b);
+        if (docStartMatched == DOC_START.length) {
+          docStartMatched = 0;
+          currentStart = position + 1 - DOC_START.length;
+          currentId = new ByteArrayOutputStream();
+          currentDocId = null;
+        }
+
+        docEndMatched = advance(DOC_END, docEndMatched, b);
+        if (docEndMatched == DOC_END.length) {
+          docEndMatched = 0;
+          if (currentDocId != null) {
+            documents.put(currentDocId,
+                new DocumentRange(currentStart, (int) (position + 1 - currentStart)));
+          }
+          currentDocId = null;
+          currentStart = -1;
+        }
+      }
+    }
+
+    // neither marker has a proper prefix which is also a suffix, so on a mismatch we only need to
+    // check whether the byte starts a new match
+    private static int advance(byte[] marker, int matched, byte b) {
+      if (marker[matched] == b) {
+        return matched + 1;
+      }
+      return marker[0] == b ? 1 : 0;
+    }
+  }
+}
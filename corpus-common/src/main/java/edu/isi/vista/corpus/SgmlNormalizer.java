@@ -0,0 +1,97 @@
+package edu.isi.vista.corpus;
+
+import javax.annotation.Nullable;
+import java.util.Objects;
+
+/**
+ * Normalizes the text of SGML source files (e.g. ACE {@code .sgm} files) in a single pass.
+ *
+ * <p>In one scan over the input this converts {@code \r\n} line endings to {@code \n}, optionally
+ * removes all tags (anything from a {@code <} to the next {@code >}), and extracts the document ID
+ * from the first {@code <DOCID>...</DOCID>} element. This is equivalent to
+ * {@code replaceAll("\\r\\n", "\n").replaceAll("<[\\s\\S]*?>", "")} plus a DOCID regex, but does not
+ * backtrack and writes into a single output buffer.
+ *
+ * <p>This is shared by the indexing side (gigaword-indexer's {@code AceDocument}) and the text
+ * restoration side (annotation-utils' {@code AceCorpusTextSource}) so both see the same text.
+ */
+public final class SgmlNormalizer {
+
+  private static final String DOCID_OPEN = "<DOCID>";
+
+  private static final String DOCID_CLOSE = "</DOCID>";
+
+  private SgmlNormalizer() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Normalizes {@code raw}.
+   *
+   * @param stripTags whether to remove tags from the output. If false, only line endings are
+   *                  normalized.
+   */
+  public static NormalizedSgml normalize(String raw, boolean stripTags) {
+    final int length = raw.length();
+    final StringBuilder out = new StringBuilder(length);
+    String docId = null;
+    // once we fail to find a closing '>', there is no point in searching for one again
+    boolean sawUnclosedTag = false;
+
+    int i = 0;
+    while (i < length) {
+      final char c = raw.charAt(i);
+      if (c == '\r' && i + 1 < length && raw.charAt(i + 1) == '\n') {
+        out.append('\n');
+        i += 2;
+      } else if (c == '<' && (stripTags || docId == null)) {
+        if (docId == null && raw.startsWith(DOCID_OPEN, i)) {
+          final int contentStart = i + DOCID_OPEN.length();
+          final int contentEnd = raw.indexOf(DOCID_CLOSE, contentStart);
+          if (contentEnd >= 0) {
+            docId = raw.substring(contentStart, contentEnd).trim();
+          }
+        }
+        final int tagEnd = stripTags && !sawUnclosedTag ? raw.indexOf('>', i + 1) : -1;
+        if (tagEnd >= 0) {
+          // skip over the tag entirely
+          i = tagEnd + 1;
+        } else {
+          // either we are keeping tags or this '<' is never closed, so it is not a tag
+          sawUnclosedTag = stripTags;
+          out.append(c);
+          i += 1;
+        }
+      } else {
+        out.append(c);
+        i += 1;
+      }
+    }
+    return new NormalizedSgml(out.toString(), docId);
+  }
+
+  /**
+   * The normalized text of an SGML document together with its document ID, if one was found.
+   */
+  public static final class NormalizedSgml {
+
+    private final String text;
+
+    @Nullable
+    private final String docId;
+
+    private NormalizedSgml(String text, @Nullable String docId) {
+      this.text = Objects.requireNonNull(text);
+      this.docId = docId;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    @Nullable
+    public String getDocId() {
+      return docId;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package edu.isi.vista.corpus;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads {@link BoundedIoExecutor} runs its tasks on.
+ *
+ * <p>This implementation is used by the {@code virtual-threads} build profile, which requires
+ * JDK 21. Each task gets its own virtual thread, so a blocked HTTP request only ties up a carrier
+ * thread while it is actually running.
+ */
+final class IoThreads {
+
+  static final boolean VIRTUAL = true;
+
+  private IoThreads() {
+    throw new UnsupportedOperationException();
+  }
+
+  static ExecutorService newExecutor(String name) {
+    return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+  }
+}
@@ -0,0 +1,28 @@
+package edu.isi.vista.corpus;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads {@link BoundedIoExecutor} runs its tasks on.
+ *
+ * <p>This is the default implementation, which works on Java 8 and uses a cached pool of platform
+ * threads. The {@code virtual-threads} build profile replaces it with the implementation in
+ * {@code src/main/java21}.
+ */
+final class IoThreads {
+
+  static final boolean VIRTUAL = false;
+
+  private IoThreads() {
+    throw new UnsupportedOperationException();
+  }
+
+  static ExecutorService newExecutor(String name) {
+    // BoundedIoExecutor's semaphore keeps this from growing beyond its concurrency limit
+    return Executors.newCachedThreadPool(
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+  }
+}
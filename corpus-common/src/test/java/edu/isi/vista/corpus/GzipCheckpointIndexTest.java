@@ -0,0 +1,323 @@
+package edu.isi.vista.corpus;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link GzipBlockDecoder} and {@link GzipCheckpointIndex} against
+ * {@link GZIPInputStream}.
+ */
+public class GzipCheckpointIndexTest {
+
+  private static final int STORED = 0;
+
+  private static final int FIXED = 1;
+
+  private static final int DYNAMIC = 2;
+
+  private static final String[] WORDS = {"the", "minister", "said", "on", "Tuesday", "that",
+      "talks", "would", "resume", "in", "Geneva", "after", "a", "week", "of", "protests", "by",
+      "farmers", "and", "officials", "reported", "no", "casualties", "."};
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void decodesStoredFixedAndDynamicBlocks() throws IOException {
+    final byte[] text = gigawordText(new Random(1), 40);
+    final byte[] stored = gzipMember(text, Deflater.NO_COMPRESSION);
+    final byte[] fixed =
+        gzipMember("<DOC id=\"SHORT\">\nhi\n</DOC>\n".getBytes(StandardCharsets.UTF_8), 6);
+    final byte[] dynamic = gzipMember(text, Deflater.BEST_COMPRESSION);
+    assertEquals(STORED, firstBlockType(stored));
+    assertEquals(FIXED, firstBlockType(fixed));
+    assertEquals(DYNAMIC, firstBlockType(dynamic));
+
+    for (byte[] gz : Arrays.asList(stored, fixed, dynamic)) {
+      assertArrayEquals(gunzip(gz), decodeAll(gz));
+      checkIndex(write(gz), 1024, new Random(2));
+    }
+  }
+
+  @Test
+  public void decodesBlocksOfMixedTypesInOneMember() throws IOException {
+    final Random random = new Random(3);
+    final List<byte[]> chunks = new ArrayList<>();
+    for (int i = 0; i < 6; ++i) {
+      chunks.add(gigawordText(random, 20));
+    }
+    final byte[] gz = gzipMember(chunks, new int[] {Deflater.NO_COMPRESSION,
+        Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION, Deflater.NO_COMPRESSION,
+        Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION});
+    assertArrayEquals(gunzip(gz), decodeAll(gz));
+    checkIndex(write(gz), 4096, new Random(4));
+  }
+
+  @Test
+  public void decodesMultipleMembers() throws IOException {
+    final Random random = new Random(5);
+    final byte[] text = gigawordText(random, 300);
+    // members split documents at arbitrary points, as with files concatenated from pieces
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    int start = 0;
+    for (int end : new int[] {text.length / 5, text.length / 5 + 7, text.length / 2,
+        text.length}) {
+      gz.write(gzipWithJdk(Arrays.copyOfRange(text, start, end)));
+      start = end;
+    }
+    // a member with no content at all
+    gz.write(gzipWithJdk(new byte[0]));
+
+    assertArrayEquals(text, gunzip(gz.toByteArray()));
+    assertArrayEquals(text, decodeAll(gz.toByteArray()));
+    final GzipCheckpointIndex index = checkIndex(write(gz.toByteArray()), 8192, random);
+    assertEquals(documents(text).keySet(), new HashSet<>(index.documentIds()));
+  }
+
+  @Test
+  public void seeksAcrossWindowBoundaries() throws IOException {
+    final Random random = new Random(6);
+    // several MiB with many back-references, so checkpoints depend on their windows
+    final byte[] text = gigawordText(random, 3000);
+    final Path gzFile = write(gzipWithJdk(text));
+    final GzipCheckpointIndex index = checkIndex(gzFile, GzipBlockDecoder.WINDOW_SIZE / 2, random);
+    assertTrue("Expected many checkpoints but got " + index.numCheckpoints(),
+        index.numCheckpoints() > 10);
+
+    // reads which start just before and end just after window-sized offsets
+    for (long boundary = GzipBlockDecoder.WINDOW_SIZE; boundary < text.length - 100;
+        boundary += 7 * GzipBlockDecoder.WINDOW_SIZE) {
+      assertArrayEquals(Arrays.copyOfRange(text, (int) boundary - 50, (int) boundary + 50),
+          index.read(gzFile, boundary - 50, 100));
+    }
+  }
+
+  @Test
+  public void indexRoundTripsThroughItsFile() throws IOException {
+    final Random random = new Random(7);
+    final byte[] text = gigawordText(random, 200);
+    final Path gzFile = write(gzipWithJdk(text));
+    final GzipCheckpointIndex built = GzipCheckpointIndex.build(gzFile, 4096);
+    final Path indexFile = tempFolder.newFile("index" + GzipCheckpointIndex.INDEX_SUFFIX).toPath();
+    built.write(indexFile);
+    final GzipCheckpointIndex read = GzipCheckpointIndex.read(indexFile);
+    assertEquals(built.numCheckpoints(), read.numCheckpoints());
+    assertEquals(built.documentIds(), read.documentIds());
+    for (Map.Entry<String, String> document : documents(text).entrySet()) {
+      assertEquals(document.getValue(), read.readDocument(gzFile, document.getKey()).get());
+    }
+  }
+
+  @Test
+  public void rejectsCrcMismatch() throws IOException {
+    final byte[] gz = gzipWithJdk(gigawordText(new Random(8), 50));
+    // the CRC32 is the first four bytes of the eight byte trailer
+    gz[gz.length - 8] ^= 1;
+    assertBuildFails(gz, "CRC32");
+  }
+
+  @Test
+  public void rejectsLengthMismatch() throws IOException {
+    final byte[] gz = gzipWithJdk(gigawordText(new Random(9), 50));
+    gz[gz.length - 4] ^= 1;
+    assertBuildFails(gz, "Length");
+  }
+
+  @Test
+  public void rejectsCorruptMemberAfterGoodOnes() throws IOException {
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    gz.write(gzipWithJdk(gigawordText(new Random(10), 50)));
+    final byte[] corrupt = gzipWithJdk(gigawordText(new Random(11), 50));
+    corrupt[corrupt.length - 6] ^= 0x40;
+    gz.write(corrupt);
+    assertBuildFails(gz.toByteArray(), "CRC32");
+  }
+
+  /**
+   * Builds an index of {@code gzFile}, and checks every document and some random ranges read with
+   * it against {@link GZIPInputStream}.
+   */
+  private static GzipCheckpointIndex checkIndex(Path gzFile, long span, Random random)
+      throws IOException {
+    final byte[] expected = gunzip(Files.readAllBytes(gzFile));
+    final GzipCheckpointIndex index = GzipCheckpointIndex.build(gzFile, span);
+    final Map<String, String> documents = documents(expected);
+    assertEquals(new ArrayList<>(documents.keySet()), index.documentIds());
+    for (Map.Entry<String, String> document : documents.entrySet()) {
+      assertEquals(document.getValue(), index.readDocument(gzFile, document.getKey()).get());
+    }
+    for (int i = 0; i < 50 && expected.length > 0; ++i) {
+      final int offset = random.nextInt(expected.length);
+      final int length = random.nextInt(Math.min(expected.length - offset, 200_000) + 1);
+      assertArrayEquals("Reading " + length + " bytes at " + offset,
+          Arrays.copyOfRange(expected, offset, offset + length),
+          index.read(gzFile, offset, length));
+    }
+    return index;
+  }
+
+  private void assertBuildFails(byte[] gz, String expectedMessage) throws IOException {
+    final Path gzFile = write(gz);
+    try {
+      GzipCheckpointIndex.build(gzFile, 4096);
+      fail("Expected a corrupt member to be rejected");
+    } catch (IOException e) {
+      assertTrue("Unexpected message: " + e.getMessage(),
+          e.getMessage().startsWith(expectedMessage));
+    }
+  }
+
+  private Path write(byte[] gz) throws IOException {
+    final Path ret = tempFolder.newFile().toPath();
+    Files.write(ret, gz);
+    return ret;
+  }
+
+  private static byte[] decodeAll(byte[] gz) throws IOException {
+    final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    final GzipBlockDecoder decoder = GzipBlockDecoder.fromStart(new ByteArrayInputStream(gz));
+    while (decoder.decodeBlock()) {
+      decoder.drainOutput((bytes, offset, length, uncompressedOffset) -> {
+        assertEquals(ret.size(), uncompressedOffset);
+        ret.write(bytes, offset, length);
+      });
+    }
+    return ret.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] gz) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  private static byte[] gzipWithJdk(byte[] data) throws IOException {
+    final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(ret)) {
+      out.write(data);
+    }
+    return ret.toByteArray();
+  }
+
+  private static byte[] gzipMember(byte[] data, int level) {
+    return gzipMember(Arrays.asList(data), new int[] {level});
+  }
+
+  /**
+   * Makes a gzip member with each chunk compressed at the corresponding level, so it is made up
+   * of blocks of different types.
+   */
+  private static byte[] gzipMember(List<byte[]> chunks, int[] levels) {
+    final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+    ret.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff}, 0, 10);
+    final Deflater deflater = new Deflater(levels[0], true);
+    final CRC32 crc = new CRC32();
+    long length = 0;
+    final byte[] buffer = new byte[8192];
+    try {
+      for (int i = 0; i < chunks.size(); ++i) {
+        deflater.setLevel(levels[i]);
+        deflater.setInput(chunks.get(i));
+        crc.update(chunks.get(i));
+        length += chunks.get(i).length;
+        if (i == chunks.size() - 1) {
+          deflater.finish();
+          while (!deflater.finished()) {
+            ret.write(buffer, 0, deflater.deflate(buffer));
+          }
+        } else {
+          int deflated;
+          do {
+            deflated = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            ret.write(buffer, 0, deflated);
+          } while (deflated == buffer.length || !deflater.needsInput());
+        }
+      }
+    } finally {
+      deflater.end();
+    }
+    for (long value : new long[] {crc.getValue(), length}) {
+      for (int i = 0; i < 4; ++i) {
+        ret.write((int) (value >>> (8 * i)) & 0xff);
+      }
+    }
+    return ret.toByteArray();
+  }
+
+  // the type of the first DEFLATE block of a gzip member with a plain ten byte header
+  private static int firstBlockType(byte[] gzipMember) {
+    return (gzipMember[10] >> 1) & 3;
+  }
+
+  private static byte[] gigawordText(Random random, int numDocuments) {
+    final StringBuilder ret = new StringBuilder();
+    for (int doc = 0; doc < numDocuments; ++doc) {
+      ret.append(String.format("<DOC id=\"APW_ENG_2010%04d.%04d\" type=\"story\" >\n", doc % 10000,
+          random.nextInt(10000)));
+      ret.append("<HEADLINE>\n").append(sentence(random)).append("</HEADLINE>\n<TEXT>\n");
+      final int numParagraphs = 1 + random.nextInt(20);
+      for (int p = 0; p < numParagraphs; ++p) {
+        ret.append("<P>\n");
+        final int numSentences = 1 + random.nextInt(5);
+        for (int s = 0; s < numSentences; ++s) {
+          ret.append(sentence(random));
+        }
+        ret.append("</P>\n");
+      }
+      ret.append("</TEXT>\n</DOC>\n");
+    }
+    return ret.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String sentence(Random random) {
+    final StringBuilder ret = new StringBuilder();
+    final int numWords = 5 + random.nextInt(25);
+    for (int i = 0; i < numWords; ++i) {
+      ret.append(WORDS[random.nextInt(WORDS.length)]);
+      // some numbers, so the text is not too repetitive
+      ret.append(random.nextInt(10) == 0 ? " " + random.nextInt(100000) + " " : " ");
+    }
+    return ret.append('\n').toString();
+  }
+
+  // the text of each <DOC id="...">...</DOC> element, by ID
+  private static Map<String, String> documents(byte[] text) {
+    final String string = new String(text, StandardCharsets.UTF_8);
+    final Map<String, String> ret = new LinkedHashMap<>();
+    int start = string.indexOf("<DOC id=\"");
+    while (start >= 0) {
+      final int end = string.indexOf("</DOC>", start) + "</DOC>".length();
+      final int idStart = start + "<DOC id=\"".length();
+      ret.put(string.substring(idStart, string.indexOf('"', idStart)),
+          string.substring(start, end));
+      start = string.indexOf("<DOC id=\"", end);
+    }
+    return ret;
+  }
+}
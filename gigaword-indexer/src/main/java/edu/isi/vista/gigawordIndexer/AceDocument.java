@@ -1,14 +1,16 @@
 package edu.isi.vista.gigawordIndexer;
 
 import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
+import edu.isi.vista.corpus.SgmlNormalizer;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Objects;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
 /**
  * Single ACE Document as an article source
  */
@@ -23,6 +25,14 @@ public class AceDocument implements ArticleSource {
         return new AceDocument(new String(Files.readAllBytes(filePath)));
     }
 
+    /**
+     * Reads an ACE document from a stream, e.g. a member of a {@link CorpusArchive}.
+     * The stream is read fully but not closed.
+     */
+    public static AceDocument AceDocumentFromStream(InputStream in) throws IOException {
+        return new AceDocument(new String(ByteStreams.toByteArray(in)));
+    }
+
     public Iterator<Article> iterator() {
         return new ArticleIterator();
     }
@@ -40,17 +50,12 @@ public class AceDocument implements ArticleSource {
             if (firstCompute) {
                 return endOfData();
             }
-            // DOC ID marker
-            Pattern ACE_DOC_ID_PATTERN = Pattern.compile("<DOCID> (.*?) </DOCID>");
-
-            Matcher m =
-                    ACE_DOC_ID_PATTERN.matcher(
-                            docText.substring(0, Math.min(120, docText.length())));
-            if (m.find()) {
-                String docId = m.group(1);
-                String processedDocText = docText.replaceAll("\\r\\n", "\n");
+            // tags are kept in the indexed text; only line endings are normalized
+            final SgmlNormalizer.NormalizedSgml normalized =
+                    SgmlNormalizer.normalize(docText, false);
+            if (normalized.getDocId() != null) {
                 firstCompute = true;
-                return new Article(docId, processedDocText);
+                return new Article(normalized.getDocId(), normalized.getText());
             } else {
                 throw new RuntimeException("Missing document ID on article");
             }
@@ -0,0 +1,126 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.google.common.collect.ImmutableList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits an {@link Article} into passages of bounded size so that each passage can be indexed as
+ * its own Elastic Search document.
+ *
+ * <p>Passages are contiguous, non-overlapping slices of the article text which together cover the
+ * entire article. We prefer to end a passage on a line break (LTF segments and Gigaword paragraphs
+ * are line-oriented), falling back to other whitespace and finally to a hard break if neither
+ * occurs in the second half of the window. Character offsets are relative to the text of the
+ * parent article.
+ */
+public final class ArticlePassages {
+
+  private ArticlePassages() {
+    throw new UnsupportedOperationException();
+  }
+
+  private static final String PASSAGE_ID_SEPARATOR = "_p";
+
+  public static ImmutableList<Passage> split(Article article, int passageLength) {
+    checkArgument(passageLength > 0, "Passage length must be positive but got %s", passageLength);
+    final String text = article.getText();
+    final ImmutableList.Builder<Passage> ret = ImmutableList.builder();
+
+    int begin = 0;
+    int passageNum = 0;
+    while (begin < text.length()) {
+      int end = Math.min(begin + passageLength, text.length());
+      if (end < text.length()) {
+        end = findBreak(text, begin, end);
+      }
+      final String passageText = text.substring(begin, end);
+      // don't bother indexing passages which are nothing but whitespace
+      if (!passageText.trim().isEmpty()) {
+        ret.add(new Passage(article.getId(), article.getId() + PASSAGE_ID_SEPARATOR + passageNum,
+            begin, end, passageText));
+        passageNum += 1;
+      }
+      begin = end;
+    }
+    return ret.build();
+  }
+
+  /**
+   * The ID of the document the passage with ID {@code passageId} was split from.
+   */
+  public static String parentIdOf(String passageId) {
+    final int separator = passageId.lastIndexOf(PASSAGE_ID_SEPARATOR);
+    checkArgument(separator >= 0, "Not a passage ID: %s", passageId);
+    return passageId.substring(0, separator);
+  }
+
+  /**
+   * Returns the exclusive end offset of a passage starting at {@code begin} which should end no
+   * later than {@code maxEnd}.
+   */
+  private static int findBreak(String text, int begin, int maxEnd) {
+    final int earliestAcceptableBreak = begin + (maxEnd - begin) / 2;
+    final int lastNewline = text.lastIndexOf('\n', maxEnd - 1);
+    if (lastNewline >= earliestAcceptableBreak) {
+      return lastNewline + 1;
+    }
+    for (int i = maxEnd - 1; i >= earliestAcceptableBreak; --i) {
+      if (Character.isWhitespace(text.charAt(i))) {
+        return i + 1;
+      }
+    }
+    return maxEnd;
+  }
+
+  /**
+   * A slice of an article's text, identified by the parent article and its character offsets.
+   */
+  public static final class Passage {
+
+    private final String parentId;
+
+    private final String id;
+
+    // inclusive
+    private final int begin;
+
+    // exclusive
+    private final int end;
+
+    private final String text;
+
+    private Passage(String parentId, String id, int begin, int end, String text) {
+      this.parentId = parentId;
+      this.id = id;
+      this.begin = begin;
+      this.end = end;
+      this.text = text;
+    }
+
+    public String getParentId() {
+      return parentId;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getBegin() {
+      return begin;
+    }
+
+    public int getEnd() {
+      return end;
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    @Override
+    public String toString() {
+      return "Passage [id=" + id + ", begin=" + begin + ", end=" + end + "]";
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import edu.isi.nlp.parameters.Parameters;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the indicator searches annotators actually ran against an index built by
+ * {@link IndexGigawordWithElasticSearch} and reports search latencies.
+ *
+ * <p>The queries are read from an {@code indicatorSearches-<date>.json} file written by
+ * annotation-utils' {@code ParseEventLogs}. Each query is issued the way Inception's Elastic
+ * Search external search issues it: a match query against {@code doc.text} with highlighting of
+ * {@code doc.text}.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code indicatorSearchesFile}: the indicator searches file to replay</li>
+ *   <li>{@code indexName}: the index to search</li>
+ *   <li>{@code concurrency} (optional, default 4): how many searches to have in flight at once</li>
+ *   <li>{@code repetitions} (optional, default 1): how many times to replay the full query list</li>
+ *   <li>{@code resultSize} (optional, default 100): how many hits to request per query</li>
+ *   <li>{@code maxQueries} (optional): only replay this many distinct queries</li>
+ *   <li>{@code reportFile} (optional): if specified, the report is also written here as JSON</li>
+ * </ul>
+ * The Elastic Search server is specified using the same parameters as for
+ * {@link IndexGigawordWithElasticSearch}.
+ */
+public class BenchmarkIndicatorSearches {
+
+  private static final Logger log = LoggerFactory.getLogger(BenchmarkIndicatorSearches.class);
+
+  private static final String USAGE = "BenchmarkIndicatorSearches param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_INDICATOR_SEARCHES_FILE = "indicatorSearchesFile";
+
+  private static final String PARAM_INDEX_NAME = "indexName";
+
+  private static final String PARAM_CONCURRENCY = "concurrency";
+
+  private static final String PARAM_REPETITIONS = "repetitions";
+
+  private static final String PARAM_RESULT_SIZE = "resultSize";
+
+  private static final String PARAM_MAX_QUERIES = "maxQueries";
+
+  private static final String PARAM_REPORT_FILE = "reportFile";
+
+  private static final String TEXT_FIELD = "doc.text";
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    final int concurrency = parameters.getOptionalPositiveInteger(PARAM_CONCURRENCY).or(4);
+    try (RestHighLevelClient client =
+        IndexGigawordWithElasticSearch.buildElasticSearchClient(parameters, concurrency)) {
+      final String indexName = parameters.getString(PARAM_INDEX_NAME);
+      final int repetitions = parameters.getOptionalPositiveInteger(PARAM_REPETITIONS).or(1);
+      final int resultSize = parameters.getOptionalPositiveInteger(PARAM_RESULT_SIZE).or(100);
+
+      List<String> queries = loadIndicatorQueries(
+          parameters.getExistingFile(PARAM_INDICATOR_SEARCHES_FILE));
+      if (parameters.isPresent(PARAM_MAX_QUERIES)) {
+        queries = queries.subList(0,
+            Math.min(queries.size(), parameters.getPositiveInteger(PARAM_MAX_QUERIES)));
+      }
+      log.info("Replaying {} distinct queries {} time(s) against {} with concurrency {}",
+          queries.size(), repetitions, indexName, concurrency);
+
+      final List<QueryResult> results =
+          runQueries(client, indexName, queries, repetitions, resultSize, concurrency);
+      final ObjectNode report = buildReport(results);
+      log.info("Search latency report:\n{}",
+          new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report));
+      if (parameters.isPresent(PARAM_REPORT_FILE)) {
+        final File reportFile = parameters.getCreatableFile(PARAM_REPORT_FILE);
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+        log.info("Report written to {}", reportFile);
+      }
+    } catch (Exception e) {
+      log.error("Benchmark failed with an exception:", e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Gets the distinct queries from an indicator searches file, which has the form
+   * {@code {user: {eventType: {indicator: {docId: [spans]}}}}}.
+   */
+  static ImmutableList<String> loadIndicatorQueries(File indicatorSearchesFile)
+      throws IOException {
+    final Set<String> queries = new LinkedHashSet<>();
+    final JsonNode root = new ObjectMapper().readTree(indicatorSearchesFile);
+    for (JsonNode projectsForUser : root) {
+      for (JsonNode indicatorsForProject : projectsForUser) {
+        final Iterator<String> indicators = indicatorsForProject.fieldNames();
+        while (indicators.hasNext()) {
+          final String indicator = indicators.next().trim();
+          if (!indicator.isEmpty()) {
+            queries.add(indicator);
+          }
+        }
+      }
+    }
+    return ImmutableList.copyOf(queries);
+  }
+
+  private static List<QueryResult> runQueries(RestHighLevelClient client, String indexName,
+      List<String> queries, int repetitions, int resultSize, int concurrency) throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    try {
+      final List<Future<QueryResult>> futures = new ArrayList<>();
+      for (int i = 0; i < repetitions; ++i) {
+        for (String query : queries) {
+          futures.add(executor.submit(() -> runQuery(client, indexName, query, resultSize)));
+        }
+      }
+      final List<QueryResult> ret = new ArrayList<>();
+      for (Future<QueryResult> future : futures) {
+        ret.add(future.get());
+      }
+      return ret;
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  private static QueryResult runQuery(RestHighLevelClient client, String indexName, String query,
+      int resultSize) throws IOException {
+    final SearchSourceBuilder searchSource = new SearchSourceBuilder()
+        .query(QueryBuilders.matchQuery(TEXT_FIELD, query))
+        .highlighter(new HighlightBuilder().field(TEXT_FIELD))
+        .size(resultSize);
+    final SearchRequest request = new SearchRequest(indexName).source(searchSource);
+
+    final long start = System.nanoTime();
+    final SearchResponse response = client.search(request, RequestOptions.DEFAULT);
+    final long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+    return new QueryResult(query, latencyMicros, response.getTook().millis(),
+        response.getHits().getTotalHits());
+  }
+
+  private static ObjectNode buildReport(List<QueryResult> results) {
+    final long[] latencies = new long[results.size()];
+    final long[] tookMillis = new long[results.size()];
+    long totalHits = 0;
+    int zeroHitQueries = 0;
+    for (int i = 0; i < results.size(); ++i) {
+      final QueryResult result = results.get(i);
+      latencies[i] = result.latencyMicros;
+      tookMillis[i] = result.tookMillis;
+      totalHits += result.totalHits;
+      if (result.totalHits == 0) {
+        zeroHitQueries += 1;
+      }
+    }
+    Arrays.sort(latencies);
+    Arrays.sort(tookMillis);
+
+    final ObjectNode report = new ObjectMapper().createObjectNode();
+    report.put("queries", results.size());
+    report.put("meanHits", results.isEmpty() ? 0.0 : (double) totalHits / results.size());
+    report.put("zeroHitQueries", zeroHitQueries);
+    final ObjectNode latencyReport = report.putObject("clientLatencyMillis");
+    final ObjectNode tookReport = report.putObject("serverTookMillis");
+    for (Map.Entry<String, Double> percentile : PERCENTILES.entrySet()) {
+      latencyReport.put(percentile.getKey(), percentile(latencies, percentile.getValue()) / 1000.0);
+      tookReport.put(percentile.getKey(), percentile(tookMillis, percentile.getValue()));
+    }
+    return report;
+  }
+
+  private static final ImmutableMap<String, Double> PERCENTILES = ImmutableMap.of(
+      "p50", 0.50,
+      "p95", 0.95,
+      "p99", 0.99,
+      "max", 1.0);
+
+  /**
+   * Nearest-rank percentile of an already-sorted array.
+   */
+  private static long percentile(long[] sortedValues, double percentile) {
+    if (sortedValues.length == 0) {
+      return 0;
+    }
+    final int rank = (int) Math.ceil(percentile * sortedValues.length);
+    return sortedValues[Math.max(0, Math.min(sortedValues.length - 1, rank - 1))];
+  }
+
+  private static final class QueryResult {
+
+    private final String query;
+
+    private final long latencyMicros;
+
+    private final long tookMillis;
+
+    private final long totalHits;
+
+    private QueryResult(String query, long latencyMicros, long tookMillis, long totalHits) {
+      this.query = query;
+      this.latencyMicros = latencyMicros;
+      this.tookMillis = tookMillis;
+      this.totalHits = totalHits;
+    }
+
+    @Override
+    public String toString() {
+      return "QueryResult [query=" + query + ", latencyMicros=" + latencyMicros + ", hits="
+          + totalHits + "]";
+    }
+  }
+}
@@ -0,0 +1,132 @@
+package edu.isi.vista.gigawordIndexer;
+
+import edu.isi.nlp.parameters.Parameters;
+import edu.isi.vista.corpus.GzipCheckpointIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Builds a {@link GzipCheckpointIndex} for each gzipped file of a Gigaword distribution, so single
+ * documents can later be read without decompressing the whole file.
+ *
+ * <p>Each index is written to the same relative path under the index directory as its file has
+ * under the data directory, with {@code .zidx} appended, e.g. {@code afp_eng/afp_eng_199609.gz}
+ * gets {@code afp_eng/afp_eng_199609.gz.zidx}. Indexes which are newer than their file are not
+ * rebuilt, so an interrupted run can simply be restarted.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code gigawordDataDirectory}: the {@code data} directory of the Gigaword distribution,
+ *   containing e.g. {@code afp_eng/afp_eng_199609.gz}</li>
+ *   <li>{@code gzipIndexDirectory}: where to write the indexes</li>
+ *   <li>{@code checkpointSpanMB} (optional, default 1): how much uncompressed text there is between
+ *   checkpoints. Reading a document decompresses at most about this much; each checkpoint costs
+ *   up to 32 KiB (typically about 12 KiB) of index.</li>
+ *   <li>{@code threads} (optional, default the number of processors): how many files to index at
+ *   once</li>
+ * </ul>
+ */
+public class BuildGzipCheckpointIndexes {
+
+  private static final Logger log = LoggerFactory.getLogger(BuildGzipCheckpointIndexes.class);
+
+  private static final String USAGE = "BuildGzipCheckpointIndexes param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_DATA_DIRECTORY = "gigawordDataDirectory";
+
+  private static final String PARAM_INDEX_DIRECTORY = "gzipIndexDirectory";
+
+  private static final String PARAM_CHECKPOINT_SPAN_MB = "checkpointSpanMB";
+
+  private static final String PARAM_THREADS = "threads";
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    try {
+      buildIndexes(parameters);
+    } catch (Exception e) {
+      log.error("Building gzip indexes failed with an exception:", e);
+      System.exit(1);
+    }
+  }
+
+  private static void buildIndexes(Parameters parameters) throws Exception {
+    final Path dataDirectory = parameters.getExistingDirectory(PARAM_DATA_DIRECTORY).toPath();
+    final Path indexDirectory = parameters.getCreatableDirectory(PARAM_INDEX_DIRECTORY).toPath();
+    final long span =
+        parameters.getOptionalPositiveInteger(PARAM_CHECKPOINT_SPAN_MB).or(1) * 1024L * 1024L;
+    final int threads = parameters.getOptionalPositiveInteger(PARAM_THREADS)
+        .or(Runtime.getRuntime().availableProcessors());
+
+    final List<Path> gzFiles;
+    try (Stream<Path> paths = Files.walk(dataDirectory)) {
+      gzFiles = paths.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".gz"))
+          .sorted().collect(Collectors.toList());
+    }
+    log.info("Indexing {} gzipped files in {} with {} threads", gzFiles.size(), dataDirectory,
+        threads);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<Boolean>> results = new ArrayList<>();
+    try {
+      for (Path gzFile : gzFiles) {
+        final Path indexFile = indexDirectory.resolve(
+            dataDirectory.relativize(gzFile).toString() + GzipCheckpointIndex.INDEX_SUFFIX);
+        results.add(executor.submit(() -> buildIndex(gzFile, indexFile, span)));
+      }
+      int built = 0;
+      for (Future<Boolean> result : results) {
+        if (result.get()) {
+          ++built;
+        }
+      }
+      log.info("Built {} indexes; {} were already up to date", built, gzFiles.size() - built);
+    } finally {
+      executor.shutdownNow();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+  }
+
+  /**
+   * Returns whether an index was built, i.e. false if it was already up to date.
+   */
+  private static boolean buildIndex(Path gzFile, Path indexFile, long span) throws IOException {
+    if (Files.exists(indexFile) && Files.getLastModifiedTime(indexFile)
+        .compareTo(Files.getLastModifiedTime(gzFile)) > 0) {
+      return false;
+    }
+    final GzipCheckpointIndex index = GzipCheckpointIndex.build(gzFile, span);
+    Files.createDirectories(indexFile.getParent());
+    // write to a temporary file first so an interrupted run never leaves a truncated index
+    // which looks up to date
+    final Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    index.write(tmpFile);
+    Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+    log.info("Indexed {}: {} documents, {} checkpoints", gzFile, index.documentIds().size(),
+        index.numCheckpoints());
+    return true;
+  }
+}
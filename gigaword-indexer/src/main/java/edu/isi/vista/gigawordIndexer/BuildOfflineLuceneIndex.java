@@ -0,0 +1,569 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import edu.isi.nlp.parameters.Parameters;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharArraySet;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.snapshots.SnapshotInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.collect.Iterables.partition;
+
+/**
+ * Builds an index of a corpus directly on local disk, without going through an Elastic Search
+ * cluster.
+ *
+ * <p>Pushing every document of a full Gigaword rebuild through the REST bulk API is much slower
+ * than the analysis itself. This reads the same corpus formats as
+ * {@link IndexGigawordWithElasticSearch} and indexes the documents with several indexing threads
+ * into one of two kinds of output.
+ *
+ * <p>If {@code snapshot} is true, the output is an Elastic Search snapshot which can be restored
+ * into a cluster. The documents are indexed, exactly as {@link IndexGigawordWithElasticSearch}
+ * would index them, into an Elastic Search node running in this process (see
+ * {@link OfflineSnapshotBuilder}). The index is created from the {@link InceptionIndexTemplate}
+ * given by {@code indexTemplate}, {@code numberOfShards} and {@code numberOfReplicas}, and the
+ * snapshot is written to an {@code fs} repository in {@code repository/} in the output directory.
+ * To restore it, make that directory available to every node of the cluster under one of its
+ * {@code path.repo} directories, register it as an {@code fs} repository and restore the snapshot
+ * as usual.
+ *
+ * <p>Otherwise the output is a single Lucene index, using the field layout of Inception's Elastic
+ * Search external search:
+ * <ul>
+ *   <li>{@code _id}: the document (or passage) ID, stored</li>
+ *   <li>{@code _source}: the same JSON source the online indexer sends, stored</li>
+ *   <li>{@code doc.text}: the text, analyzed like Elastic Search's standard analyzer, with offsets
+ *   for highlighting</li>
+ *   <li>{@code metadata.id}, {@code metadata.language}, {@code metadata.source} and
+ *   {@code metadata.parent_id}: untokenized keywords</li>
+ * </ul>
+ * Stored fields use the {@code best_compression} codec, as in the shipped index template.
+ *
+ * This index can only be searched with {@link EmbeddedSearchServer}, which serves it to Inception
+ * over the parts of the Elastic Search REST API Inception uses. It cannot be loaded into Elastic
+ * Search itself: Elastic Search 6 shards carry sequence numbers, versions and shard state which a
+ * plain Lucene index lacks. The output directory contains it in {@code index/}, with the index
+ * template (with a single shard, since the index is one Lucene index) in
+ * {@code index_template.json}.
+ *
+ * <p>Either way, the output directory also contains a {@code manifest.json} describing the build.
+ * If {@code packageFile} is given, the whole output directory is also packed into a
+ * {@code .tar.gz}, which can be unpacked on another host and restored from or given to
+ * {@link EmbeddedSearchServer} as its {@code indexDirectory}.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code corpusDirectoryPath}, {@code format}, {@code compressed}, {@code lang},
+ *   {@code sentenceLimit}, {@code passageLength} and {@code maxDocsToProcess}: as for
+ *   {@link IndexGigawordWithElasticSearch}</li>
+ *   <li>{@code indexName}: the name of the index in the snapshot, or recorded in the manifest</li>
+ *   <li>{@code outputDirectory}: where to write the index. Any existing index or repository there
+ *   is replaced.</li>
+ *   <li>{@code snapshot} (optional, default false): whether to build an Elastic Search snapshot
+ *   rather than a Lucene index</li>
+ *   <li>{@code snapshotName} (optional, default {@code indexName})</li>
+ *   <li>{@code indexTemplate}, {@code numberOfShards} and {@code numberOfReplicas} (optional):
+ *   for a snapshot, as for {@link IndexGigawordWithElasticSearch}</li>
+ *   <li>{@code indexingThreads} (optional, default the number of processors)</li>
+ *   <li>{@code ramBufferSizeMB} (optional, default 256): for a Lucene index, how much each flush
+ *   may buffer</li>
+ *   <li>{@code maxSegments} (optional): if specified, force merge the index (each shard, for a
+ *   snapshot) down to this many segments once all documents are added</li>
+ *   <li>{@code packageFile} (optional): a {@code .tar.gz} file to pack the output into</li>
+ * </ul>
+ */
+public class BuildOfflineLuceneIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(BuildOfflineLuceneIndex.class);
+
+  private static final String USAGE = "BuildOfflineLuceneIndex param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_CORPUS_DIRECTORY_PATH = "corpusDirectoryPath";
+
+  private static final String PARAM_FORMAT = "format";
+
+  private static final String PARAM_COMPRESSED = "compressed";
+
+  private static final String PARAM_LANGUAGE = "lang";
+
+  private static final String PARAM_INDEX_NAME = "indexName";
+
+  private static final String PARAM_OUTPUT_DIRECTORY = "outputDirectory";
+
+  private static final String PARAM_INDEXING_THREADS = "indexingThreads";
+
+  private static final String PARAM_RAM_BUFFER_SIZE_MB = "ramBufferSizeMB";
+
+  private static final String PARAM_MAX_SEGMENTS = "maxSegments";
+
+  private static final String PARAM_PACKAGE_FILE = "packageFile";
+
+  private static final String PARAM_SENTENCE_LIMIT = "sentenceLimit";
+
+  private static final String PARAM_PASSAGE_LENGTH = "passageLength";
+
+  private static final String PARAM_MAX_DOCS_TO_PROCESS = "maxDocsToProcess";
+
+  private static final String PARAM_SNAPSHOT = "snapshot";
+
+  private static final String PARAM_SNAPSHOT_NAME = "snapshotName";
+
+  static final String ID_FIELD = "_id";
+
+  static final String SOURCE_FIELD = "_source";
+
+  static final String TEXT_FIELD = "doc.text";
+
+  static final String METADATA_FIELD_PREFIX = "metadata.";
+
+  /**
+   * The untokenized fields under {@link #METADATA_FIELD_PREFIX}.
+   */
+  static final ImmutableSet<String> METADATA_KEYWORD_FIELDS =
+      ImmutableSet.of("id", "language", "source", "parent_id");
+
+  static final String INDEX_DIRECTORY_NAME = "index";
+
+  private static final String TEMPLATE_FILE_NAME = "index_template.json";
+
+  private static final String MANIFEST_FILE_NAME = "manifest.json";
+
+  private static final String REPOSITORY_DIRECTORY_NAME = "repository";
+
+  // where the embedded Elastic Search node keeps its data while building a snapshot
+  private static final String SCRATCH_DIRECTORY_NAME = "node";
+
+  private static final int BATCH_SIZE = 100;
+
+  private static final FieldType TEXT_FIELD_TYPE = new FieldType(TextField.TYPE_NOT_STORED);
+
+  static {
+    // needed to highlight doc.text, matching index_options: offsets in the template
+    TEXT_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+    TEXT_FIELD_TYPE.freeze();
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    try {
+      final File outputDirectory = parameters.getCreatableDirectory(PARAM_OUTPUT_DIRECTORY);
+      if (parameters.getOptionalBoolean(PARAM_SNAPSHOT).or(false)) {
+        buildSnapshot(parameters, outputDirectory);
+      } else {
+        build(parameters, outputDirectory);
+      }
+    } catch (Exception e) {
+      log.error("Building the offline index failed with an exception:", e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Builds the Lucene index of the corpus specified by {@code parameters} in
+   * {@code outputDirectory}. This is also used by {@link EmbeddedSearchServer} to index a corpus on
+   * startup.
+   */
+  static void build(Parameters parameters, File outputDirectory) throws Exception {
+    final String indexName = parameters.getString(PARAM_INDEX_NAME);
+    final String format = parameters.getString(PARAM_FORMAT);
+    final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
+    final int sentenceLimit = parameters.getOptionalInteger(PARAM_SENTENCE_LIMIT).or(100);
+    // 0 indicates whole documents should be indexed
+    final int passageLength = parameters.getOptionalPositiveInteger(PARAM_PASSAGE_LENGTH).or(0);
+
+    final IndexWriterConfig config =
+        new IndexWriterConfig(newTextAnalyzer())
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+            .setRAMBufferSizeMB(
+                parameters.getOptionalPositiveInteger(PARAM_RAM_BUFFER_SIZE_MB).or(256))
+            .setCodec(new Lucene70Codec(Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION));
+
+    final AtomicInteger documentsIndexed = new AtomicInteger();
+    final AtomicInteger documentsFailed = new AtomicInteger();
+
+    log.info("Building offline index in {}", outputDirectory);
+    final long start = System.nanoTime();
+
+    try (FSDirectory directory =
+        FSDirectory.open(new File(outputDirectory, INDEX_DIRECTORY_NAME).toPath());
+        IndexWriter writer = new IndexWriter(directory, config)) {
+      // Lucene indexes concurrently from each thread calling addDocuments
+      forEachBatch(parameters, batch -> writer.addDocuments(toLuceneDocuments(batch, lang,
+          sentenceLimit, passageLength, documentsIndexed, documentsFailed)));
+
+      if (parameters.isPresent(PARAM_MAX_SEGMENTS)) {
+        final int maxSegments = parameters.getPositiveInteger(PARAM_MAX_SEGMENTS);
+        log.info("Merging index down to {} segments", maxSegments);
+        writer.forceMerge(maxSegments);
+      }
+      writer.setLiveCommitData(ImmutableMap.of(
+          "indexName", indexName,
+          "format", format,
+          "lang", lang).entrySet());
+      writer.commit();
+    }
+
+    final long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+    log.info("Indexed {} documents ({} failed) in {} s", documentsIndexed.get(),
+        documentsFailed.get(), elapsedSeconds);
+
+    // the offline index is a single Lucene index, so it corresponds to a single shard
+    Files.write(new File(outputDirectory, TEMPLATE_FILE_NAME).toPath(),
+        InceptionIndexTemplate.loadDefault().withShards(1, 0).toJson()
+            .getBytes(StandardCharsets.UTF_8));
+    final ObjectNode manifest = newManifest(indexName, lang, passageLength,
+        documentsIndexed.get(), documentsFailed.get(), elapsedSeconds);
+    manifest.put("luceneVersion", Version.LATEST.toString());
+    manifest.put("indexDirectory", INDEX_DIRECTORY_NAME);
+    manifest.put("template", TEMPLATE_FILE_NAME);
+    final ObjectNode fields = manifest.putObject("fields");
+    for (Map.Entry<String, String> field : FIELD_DESCRIPTIONS.entrySet()) {
+      fields.put(field.getKey(), field.getValue());
+    }
+    writeManifestAndPackage(parameters, outputDirectory, manifest);
+  }
+
+  /**
+   * Builds an Elastic Search snapshot of the corpus specified by {@code parameters} in an
+   * {@code fs} repository in {@code outputDirectory}.
+   */
+  private static void buildSnapshot(Parameters parameters, File outputDirectory)
+      throws Exception {
+    final String indexName = parameters.getString(PARAM_INDEX_NAME);
+    final String snapshotName = parameters.getOptionalString(PARAM_SNAPSHOT_NAME).or(indexName);
+    final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
+    final int sentenceLimit = parameters.getOptionalInteger(PARAM_SENTENCE_LIMIT).or(100);
+    // 0 indicates whole documents should be indexed
+    final int passageLength = parameters.getOptionalPositiveInteger(PARAM_PASSAGE_LENGTH).or(0);
+    final OptionalInt maxSegments = parameters.isPresent(PARAM_MAX_SEGMENTS)
+        ? OptionalInt.of(parameters.getPositiveInteger(PARAM_MAX_SEGMENTS))
+        : OptionalInt.empty();
+    final InceptionIndexTemplate template =
+        IndexGigawordWithElasticSearch.buildIndexTemplate(parameters);
+    final Path repositoryDirectory = outputDirectory.toPath().resolve(REPOSITORY_DIRECTORY_NAME);
+    final Path scratchDirectory = outputDirectory.toPath().resolve(SCRATCH_DIRECTORY_NAME);
+    // a snapshot cannot be written over one with the same name, and the node needs a fresh start
+    for (Path directory : ImmutableList.of(repositoryDirectory, scratchDirectory)) {
+      if (Files.exists(directory)) {
+        MoreFiles.deleteRecursively(directory, RecursiveDeleteOption.ALLOW_INSECURE);
+      }
+    }
+
+    final AtomicInteger documentsIndexed = new AtomicInteger();
+    final AtomicInteger documentsFailed = new AtomicInteger();
+
+    log.info("Building snapshot {} of index {} in {}", snapshotName, indexName,
+        repositoryDirectory);
+    final long start = System.nanoTime();
+
+    final SnapshotInfo snapshot;
+    try (OfflineSnapshotBuilder builder =
+        OfflineSnapshotBuilder.start(scratchDirectory, repositoryDirectory)) {
+      builder.createIndex(indexName, template);
+      forEachBatch(parameters, batch -> {
+        final BulkRequest bulkRequest = toBulkRequest(batch, indexName, lang, sentenceLimit,
+            passageLength, documentsIndexed, documentsFailed);
+        if (bulkRequest.numberOfActions() > 0) {
+          final List<BulkItemResponse.Failure> failures = builder.index(bulkRequest);
+          // all the passages of a document are in the same bulk request
+          final int failedDocuments = passageLength > 0
+              ? (int) failures.stream()
+                  .map(failure -> ArticlePassages.parentIdOf(failure.getId()))
+                  .distinct().count()
+              : failures.size();
+          documentsIndexed.addAndGet(-failedDocuments);
+          documentsFailed.addAndGet(failedDocuments);
+        }
+      });
+      snapshot = builder.snapshot(indexName, snapshotName, maxSegments);
+    }
+    MoreFiles.deleteRecursively(scratchDirectory, RecursiveDeleteOption.ALLOW_INSECURE);
+
+    final long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+    log.info("Indexed {} documents ({} failed) into {} shards in {} s", documentsIndexed.get(),
+        documentsFailed.get(), snapshot.totalShards(), elapsedSeconds);
+
+    final ObjectNode manifest = newManifest(indexName, lang, passageLength,
+        documentsIndexed.get(), documentsFailed.get(), elapsedSeconds);
+    manifest.put("elasticSearchVersion", snapshot.version().toString());
+    manifest.put("repositoryDirectory", REPOSITORY_DIRECTORY_NAME);
+    manifest.put("snapshot", snapshotName);
+    manifest.put("shards", snapshot.totalShards());
+    writeManifestAndPackage(parameters, outputDirectory, manifest);
+  }
+
+  /**
+   * Indexes one batch of articles.
+   */
+  private interface BatchIndexer {
+
+    void index(List<Article> batch) throws Exception;
+  }
+
+  /**
+   * Reads the corpus specified by {@code parameters} and passes its articles to
+   * {@code batchIndexer} in batches, from {@code indexingThreads} threads at once, stopping after
+   * {@code maxDocsToProcess} if that is given.
+   */
+  private static void forEachBatch(Parameters parameters, BatchIndexer batchIndexer)
+      throws Exception {
+    final String format = parameters.getString(PARAM_FORMAT);
+    final boolean compressed = parameters.getOptionalBoolean(PARAM_COMPRESSED).or(true);
+    final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
+    final int maxDocs =
+        parameters.getOptionalPositiveInteger(PARAM_MAX_DOCS_TO_PROCESS).or(Integer.MAX_VALUE);
+    final int indexingThreads = parameters.getOptionalPositiveInteger(PARAM_INDEXING_THREADS)
+        .or(Runtime.getRuntime().availableProcessors());
+    final Path corpusPath = new File(parameters.getString(PARAM_CORPUS_DIRECTORY_PATH)).toPath();
+
+    final AtomicInteger documentsRead = new AtomicInteger();
+    // the first exception thrown by an indexing thread, which aborts the build
+    final AtomicReference<Exception> indexingFailure = new AtomicReference<>();
+
+    log.info("Indexing {} with {} indexing threads", corpusPath, indexingThreads);
+    // The bounded queue means the thread reading the corpus runs batches itself rather than
+    // reading far ahead.
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(indexingThreads,
+        indexingThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(2 * indexingThreads), new ThreadPoolExecutor.CallerRunsPolicy());
+    try {
+      IndexGigawordWithElasticSearch.forEachCorpusFile(corpusPath,
+          IndexGigawordWithElasticSearch.corpusFilePattern(format, lang, compressed), format,
+          compressed, (corpusFile, openedArticleSource) -> {
+            log.info("Examining file {}", corpusFile);
+            try (ArticleSource articleSource = openedArticleSource) {
+              for (List<Article> batch : partition(articleSource, BATCH_SIZE)) {
+                if (indexingFailure.get() != null) {
+                  throw indexingFailure.get();
+                }
+                final List<Article> toIndex = new ArrayList<>(batch);
+                executor.execute(() -> {
+                  try {
+                    batchIndexer.index(toIndex);
+                  } catch (Exception e) {
+                    indexingFailure.compareAndSet(null, e);
+                  }
+                });
+                if (documentsRead.addAndGet(batch.size()) >= maxDocs) {
+                  log.info("Stopping after {} documents as requested", documentsRead.get());
+                  return false;
+                }
+              }
+            }
+            return true;
+          });
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+    if (indexingFailure.get() != null) {
+      throw indexingFailure.get();
+    }
+  }
+
+  /**
+   * The analyzer for {@link #TEXT_FIELD}. Like Elastic Search's standard analyzer, this has no
+   * stop words.
+   */
+  static Analyzer newTextAnalyzer() {
+    return new StandardAnalyzer(CharArraySet.EMPTY_SET);
+  }
+
+  /**
+   * Converts a batch of articles to Lucene documents. In passage mode, each passage becomes its
+   * own document.
+   */
+  private static List<Document> toLuceneDocuments(List<Article> articles, String lang,
+      int sentenceLimit, int passageLength, AtomicInteger documentsIndexed,
+      AtomicInteger documentsFailed) throws IOException {
+    final List<Document> ret = new ArrayList<>();
+    for (Article article : articles) {
+      final String timestamp = new Date().toString();
+      if (article.failed()) {
+        documentsFailed.incrementAndGet();
+      } else if (passageLength > 0) {
+        for (ArticlePassages.Passage passage : ArticlePassages.split(article, passageLength)) {
+          final Document document = toLuceneDocument(passage.getId(), passage.getText(), lang,
+              IndexGigawordWithElasticSearch.buildPassageSourceObject(passage, lang, "",
+                  timestamp, ""));
+          document.add(new StringField(METADATA_FIELD_PREFIX + "parent_id",
+              passage.getParentId(), Field.Store.NO));
+          ret.add(document);
+        }
+        documentsIndexed.incrementAndGet();
+      } else if (article.getSegments() > sentenceLimit) {
+        documentsFailed.incrementAndGet();
+        log.warn("Document not indexed because it exceeded the size limit of {}: {}, {}",
+            sentenceLimit, article.getSegments(), article.getId());
+      } else {
+        ret.add(toLuceneDocument(article.getId(), article.getText(), lang,
+            IndexGigawordWithElasticSearch.buildSourceObject(article, lang, "", timestamp, "")));
+        documentsIndexed.incrementAndGet();
+      }
+    }
+    return ret;
+  }
+
+  private static Document toLuceneDocument(String id, String text, String lang,
+      XContentBuilder source) {
+    final Document document = new Document();
+    document.add(new StringField(ID_FIELD, id, Field.Store.YES));
+    document.add(new StoredField(SOURCE_FIELD, BytesReference.bytes(source).toBytesRef()));
+    document.add(new Field(TEXT_FIELD, text, TEXT_FIELD_TYPE));
+    document.add(new StringField(METADATA_FIELD_PREFIX + "id", id, Field.Store.NO));
+    document.add(new StringField(METADATA_FIELD_PREFIX + "language", lang, Field.Store.NO));
+    document.add(new StringField(METADATA_FIELD_PREFIX + "source", "", Field.Store.NO));
+    return document;
+  }
+
+  /**
+   * Like {@link #toLuceneDocuments(List, String, int, int, AtomicInteger, AtomicInteger)}, but
+   * converts the articles to a bulk request for {@code indexName}, with the same sources as
+   * {@link IndexGigawordWithElasticSearch} sends.
+   */
+  private static BulkRequest toBulkRequest(List<Article> articles, String indexName, String lang,
+      int sentenceLimit, int passageLength, AtomicInteger documentsIndexed,
+      AtomicInteger documentsFailed) throws IOException {
+    final BulkRequest ret = new BulkRequest();
+    for (Article article : articles) {
+      final String timestamp = new Date().toString();
+      if (article.failed()) {
+        documentsFailed.incrementAndGet();
+      } else if (passageLength > 0) {
+        for (ArticlePassages.Passage passage : ArticlePassages.split(article, passageLength)) {
+          ret.add(new IndexRequest(indexName, "texts", passage.getId()).source(
+              IndexGigawordWithElasticSearch.buildPassageSourceObject(passage, lang, "",
+                  timestamp, "")));
+        }
+        documentsIndexed.incrementAndGet();
+      } else if (article.getSegments() > sentenceLimit) {
+        documentsFailed.incrementAndGet();
+        log.warn("Document not indexed because it exceeded the size limit of {}: {}, {}",
+            sentenceLimit, article.getSegments(), article.getId());
+      } else {
+        ret.add(new IndexRequest(indexName, "texts", article.getId()).source(
+            IndexGigawordWithElasticSearch.buildSourceObject(article, lang, "", timestamp, "")));
+        documentsIndexed.incrementAndGet();
+      }
+    }
+    return ret;
+  }
+
+  private static ObjectNode newManifest(String indexName, String lang, int passageLength,
+      int documentsIndexed, int documentsFailed, long elapsedSeconds) {
+    final ObjectNode manifest = new ObjectMapper().createObjectNode();
+    manifest.put("indexName", indexName);
+    manifest.put("lang", lang);
+    manifest.put("passageLength", passageLength);
+    manifest.put("documents", documentsIndexed);
+    manifest.put("failedDocuments", documentsFailed);
+    manifest.put("buildSeconds", elapsedSeconds);
+    manifest.put("created", new Date().toString());
+    return manifest;
+  }
+
+  private static void writeManifestAndPackage(Parameters parameters, File outputDirectory,
+      ObjectNode manifest) throws IOException {
+    new ObjectMapper().writerWithDefaultPrettyPrinter()
+        .writeValue(new File(outputDirectory, MANIFEST_FILE_NAME), manifest);
+
+    if (parameters.isPresent(PARAM_PACKAGE_FILE)) {
+      final File packageFile = parameters.getCreatableFile(PARAM_PACKAGE_FILE);
+      log.info("Packing {} into {}", outputDirectory, packageFile);
+      packDirectory(outputDirectory.toPath(), packageFile);
+    }
+  }
+
+  private static final ImmutableMap<String, String> FIELD_DESCRIPTIONS = ImmutableMap.of(
+      ID_FIELD, "stored keyword",
+      SOURCE_FIELD, "stored JSON source",
+      TEXT_FIELD, "standard analyzer, positions and offsets",
+      METADATA_FIELD_PREFIX + "*", "keyword");
+
+  /**
+   * Packs every file under {@code directory} into a gzipped tar file, with paths relative to
+   * {@code directory}.
+   */
+  private static void packDirectory(Path directory, File packageFile) throws IOException {
+    final List<Path> files;
+    try (Stream<Path> paths = Files.walk(directory)) {
+      files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(packageFile.toPath()));
+        TarArchiveOutputStream tar =
+            new TarArchiveOutputStream(new GzipCompressorOutputStream(out))) {
+      tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+      tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+      for (Path file : files) {
+        // the package may be written inside the directory being packed
+        if (file.toAbsolutePath().equals(packageFile.toPath().toAbsolutePath())) {
+          continue;
+        }
+        final TarArchiveEntry entry =
+            new TarArchiveEntry(file.toFile(), directory.relativize(file).toString());
+        tar.putArchiveEntry(entry);
+        Files.copy(file, tar);
+        tar.closeArchiveEntry();
+      }
+    }
+  }
+}
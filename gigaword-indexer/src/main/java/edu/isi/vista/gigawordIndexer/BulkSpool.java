@@ -0,0 +1,444 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A write-ahead buffer on disk for bulk requests which cannot currently be delivered to Elastic
+ * Search.
+ *
+ * <p>When the cluster is down or keeps rejecting documents, the indexer appends the bulk request to
+ * the spool instead of blocking or failing, so parsing can continue. Requests are written as the
+ * newline-delimited JSON of the bulk API to a series of segment files in the spool directory. A
+ * segment is sealed once it reaches a configured size, or when the spool is closed. A background
+ * thread replays sealed segments oldest first, deleting each once it has been delivered, and
+ * retries periodically while the cluster is unavailable.
+ *
+ * <p>While the spool holds any undelivered requests, {@link #hasBacklog()} is true and the indexer
+ * appends new requests to it rather than trying the cluster first. This keeps documents in order
+ * and avoids waiting on connection timeouts for every request.
+ *
+ * <p>Segments left over from a previous run (e.g. one which was killed while the cluster was down)
+ * are replayed when a spool is opened on the same directory. A segment which was only partly
+ * delivered when replay failed because the cluster was unavailable is replayed again from the
+ * start; since documents are indexed by ID, this is harmless. A segment which the cluster refuses
+ * for any other reason (e.g. {@code 400 Bad Request}) would be refused forever, so it is renamed
+ * to a {@code dead-letter-*.ndjson} file, which is not replayed, for inspection and its undelivered
+ * documents count as failed. A dead letter file can be replayed by hand with the bulk API.
+ *
+ * <p>Before the first request for an index is replayed, the spool's {@link IndexOwners} get the
+ * chance to prepare it, e.g. to create it from its template. This matters for leftover segments,
+ * which may be replayed before the run which opened the spool has created its indices. They are
+ * also told of each spooled document which fails permanently, so it can be counted against the
+ * indexing job which spooled it.
+ */
+final class BulkSpool implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(BulkSpool.class);
+
+  private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.ndjson");
+
+  private static final String SEGMENT_PREFIX = "segment-";
+
+  private static final String DEAD_LETTER_PREFIX = "dead-letter-";
+
+  // how many documents to send in each bulk request when replaying a segment
+  private static final int REPLAY_BATCH_SIZE = 100;
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final Path directory;
+
+  private final RetryingBulkSubmitter submitter;
+
+  private final IndexOwners owners;
+
+  private final long maxSegmentBytes;
+
+  private final long retryIntervalMillis;
+
+  private final Thread drainer;
+
+  private final Object lock = new Object();
+
+  // indices which have been prepared for replay. Only used by the drainer.
+  private final Set<String> preparedIndices = new HashSet<>();
+
+  // segments which are no longer written to, oldest first. Guarded by lock.
+  private final Deque<Path> sealedSegments = new ArrayDeque<>();
+
+  // the segment currently being appended to, if any. Guarded by lock.
+  private OutputStream currentSegment = null;
+
+  private Path currentSegmentPath = null;
+
+  private long currentSegmentBytes = 0;
+
+  private long nextSegmentNumber;
+
+  private volatile boolean closing = false;
+
+  private final AtomicLong spooledDocuments = new AtomicLong();
+
+  private final AtomicLong replayedDocuments = new AtomicLong();
+
+  private final AtomicLong failedDocuments = new AtomicLong();
+
+  private BulkSpool(Path directory, RetryingBulkSubmitter submitter, IndexOwners owners,
+      long maxSegmentBytes, long retryIntervalMillis, List<Path> existingSegments,
+      long nextSegmentNumber) {
+    this.directory = directory;
+    this.submitter = submitter;
+    this.owners = owners;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.retryIntervalMillis = retryIntervalMillis;
+    this.sealedSegments.addAll(existingSegments);
+    this.nextSegmentNumber = nextSegmentNumber;
+    this.drainer = new Thread(this::drain, "bulk-spool-drainer");
+    this.drainer.setDaemon(true);
+  }
+
+  /**
+   * Opens a spool in {@code directory}, creating it if needed, and starts replaying any segments
+   * already in it.
+   *
+   * @param submitter used to replay spooled requests
+   * @param owners prepare the indices spooled requests are replayed to
+   * @param maxSegmentBytes segments are sealed once they reach this size
+   * @param retryIntervalMillis how long to wait before retrying after the cluster was unavailable
+   */
+  static BulkSpool open(Path directory, RetryingBulkSubmitter submitter, IndexOwners owners,
+      long maxSegmentBytes, long retryIntervalMillis) throws IOException {
+    checkArgument(maxSegmentBytes > 0, "Segment size must be positive");
+    checkArgument(retryIntervalMillis > 0, "Retry interval must be positive");
+    Files.createDirectories(directory);
+
+    final List<Path> existingSegments = new ArrayList<>();
+    long maxSegmentNumber = -1;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        final Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+        if (m.matches()) {
+          existingSegments.add(file);
+          maxSegmentNumber = Math.max(maxSegmentNumber, Long.parseLong(m.group(1)));
+        }
+      }
+    }
+    // segment numbers are zero-padded, so this is oldest first
+    existingSegments.sort(null);
+    if (!existingSegments.isEmpty()) {
+      log.info("Found {} undelivered segments in spool {}; they will be replayed",
+          existingSegments.size(), directory);
+    }
+
+    final BulkSpool spool = new BulkSpool(directory, submitter, owners, maxSegmentBytes,
+        retryIntervalMillis, existingSegments, maxSegmentNumber + 1);
+    spool.drainer.start();
+    return spool;
+  }
+
+  /**
+   * Whether there are spooled requests which have not yet been delivered.
+   */
+  boolean hasBacklog() {
+    synchronized (lock) {
+      return !sealedSegments.isEmpty() || currentSegmentBytes > 0;
+    }
+  }
+
+  /**
+   * Appends the documents in {@code bulkRequest} to the spool. Only index requests are supported.
+   */
+  void append(BulkRequest bulkRequest) throws IOException {
+    final byte[] encoded = encode(bulkRequest);
+    synchronized (lock) {
+      checkState(!closing, "Spool is closed");
+      if (currentSegment == null) {
+        currentSegmentPath =
+            directory.resolve(String.format(SEGMENT_PREFIX + "%010d.ndjson", nextSegmentNumber++));
+        currentSegment = new BufferedOutputStream(Files.newOutputStream(currentSegmentPath));
+      }
+      currentSegment.write(encoded);
+      // flush so the spool survives the indexer being killed
+      currentSegment.flush();
+      currentSegmentBytes += encoded.length;
+      if (currentSegmentBytes >= maxSegmentBytes) {
+        sealCurrentSegment();
+      }
+      lock.notifyAll();
+    }
+    spooledDocuments.addAndGet(bulkRequest.numberOfActions());
+  }
+
+  long getSpooledDocuments() {
+    return spooledDocuments.get();
+  }
+
+  long getReplayedDocuments() {
+    return replayedDocuments.get();
+  }
+
+  /**
+   * The number of spooled documents which failed permanently when replayed, including those in
+   * segments moved to dead letter files.
+   */
+  long getFailedDocuments() {
+    return failedDocuments.get();
+  }
+
+  /**
+   * Stops accepting requests and waits for everything spooled so far to be delivered. If the
+   * cluster does not recover, this waits indefinitely; the indexer can then be killed and the
+   * spool will be replayed by the next run.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      closing = true;
+      lock.notifyAll();
+    }
+    if (hasBacklog()) {
+      log.info("Waiting for spool {} to be delivered", directory);
+    }
+    try {
+      drainer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for spool to drain", e);
+    }
+    log.info("Spool {}: {} documents spooled, {} replayed, {} failed on replay", directory,
+        spooledDocuments.get(), replayedDocuments.get(), failedDocuments.get());
+  }
+
+  // must hold lock
+  private void sealCurrentSegment() throws IOException {
+    if (currentSegment != null) {
+      currentSegment.close();
+      sealedSegments.addLast(currentSegmentPath);
+      currentSegment = null;
+      currentSegmentPath = null;
+      currentSegmentBytes = 0;
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      final Path segment;
+      try {
+        synchronized (lock) {
+          while (sealedSegments.isEmpty()) {
+            if (closing) {
+              if (currentSegmentBytes == 0) {
+                return;
+              }
+              // nothing more will be appended, so deliver the rest
+              sealCurrentSegment();
+            } else {
+              // woken when a segment is sealed or the spool is closed
+              lock.wait();
+            }
+          }
+          segment = sealedSegments.peekFirst();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        throw new RuntimeException("Could not seal spool segment", e);
+      }
+
+      try {
+        if (replay(segment)) {
+          Files.delete(segment);
+        } else {
+          final Path deadLetter = segment.resolveSibling(segment.getFileName().toString()
+              .replaceFirst(SEGMENT_PREFIX, DEAD_LETTER_PREFIX));
+          Files.move(segment, deadLetter);
+          log.error("Spool segment {} was refused by the cluster and will not be retried; moved "
+              + "it to {}", segment, deadLetter);
+        }
+        synchronized (lock) {
+          sealedSegments.removeFirst();
+        }
+      } catch (IOException | ElasticsearchException e) {
+        log.warn("Could not replay spool segment {}, will retry in {} ms: {}", segment,
+            retryIntervalMillis, e.toString());
+        try {
+          Thread.sleep(retryIntervalMillis);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Delivers the documents in {@code segment}. Returns false if the cluster refused part of it for
+   * a reason other than being unavailable, in which case the rest of it is not sent. Throws if the
+   * cluster is unavailable.
+   */
+  private boolean replay(Path segment) throws IOException {
+    log.info("Replaying spool segment {}", segment);
+    try (BufferedReader in = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+      BulkRequest batch = new BulkRequest();
+      while (true) {
+        final String action = in.readLine();
+        final String source = action != null ? in.readLine() : null;
+        if (source == null) {
+          // end of segment, possibly with a partial record if we were killed while writing it
+          break;
+        }
+        final IndexRequest request = decode(action, source);
+        prepareIndex(request.index());
+        batch.add(request);
+        if (batch.numberOfActions() >= REPLAY_BATCH_SIZE) {
+          if (!sendReplayBatch(batch, in)) {
+            return false;
+          }
+          batch = new BulkRequest();
+        }
+      }
+      return batch.numberOfActions() == 0 || sendReplayBatch(batch, in);
+    }
+  }
+
+  private void prepareIndex(String index) throws IOException {
+    if (!preparedIndices.contains(index)) {
+      owners.prepareIndex(index);
+      preparedIndices.add(index);
+    }
+  }
+
+  /**
+   * Sends {@code batch}. If the cluster refuses it for a reason other than being unavailable, its
+   * documents and those left unread in {@code rest} of the segment are counted as failed and false
+   * is returned.
+   */
+  private boolean sendReplayBatch(BulkRequest batch, BufferedReader rest) throws IOException {
+    final List<BulkItemResponse.Failure> failures;
+    try {
+      failures = submitter.submit(batch);
+    } catch (IOException | ElasticsearchException e) {
+      if (RetryingBulkSubmitter.isClusterUnavailable(e)) {
+        throw e;
+      }
+      log.warn("Replayed bulk request was refused: {}", e.toString());
+      final ListMultimap<String, String> undelivered = ArrayListMultimap.create();
+      for (DocWriteRequest<?> request : batch.requests()) {
+        undelivered.put(request.index(), request.id());
+      }
+      while (true) {
+        final String action = rest.readLine();
+        if (action == null || rest.readLine() == null) {
+          break;
+        }
+        final JsonNode metadata = mapper.readTree(action).get("index");
+        undelivered.put(metadata.get("_index").asText(), metadata.get("_id").asText());
+      }
+      countFailed(undelivered);
+      return false;
+    }
+    replayedDocuments.addAndGet(batch.numberOfActions() - failures.size());
+    final ListMultimap<String, String> failed = ArrayListMultimap.create();
+    for (BulkItemResponse.Failure failure : failures) {
+      failed.put(failure.getIndex(), failure.getId());
+    }
+    countFailed(failed);
+    return true;
+  }
+
+  private void countFailed(ListMultimap<String, String> documentIdsByIndex) {
+    failedDocuments.addAndGet(documentIdsByIndex.size());
+    for (Map.Entry<String, Collection<String>> index : documentIdsByIndex.asMap().entrySet()) {
+      owners.documentsFailed(index.getKey(), ImmutableList.copyOf(index.getValue()));
+    }
+  }
+
+  private static byte[] encode(BulkRequest bulkRequest) throws IOException {
+    final StringBuilder ret = new StringBuilder();
+    for (DocWriteRequest<?> request : bulkRequest.requests()) {
+      if (!(request instanceof IndexRequest)) {
+        throw new IllegalArgumentException("Only index requests can be spooled: " + request);
+      }
+      final IndexRequest indexRequest = (IndexRequest) request;
+      final ObjectNode action = mapper.createObjectNode();
+      final ObjectNode metadata = action.putObject("index");
+      metadata.put("_index", indexRequest.index());
+      metadata.put("_type", indexRequest.type());
+      metadata.put("_id", indexRequest.id());
+      if (indexRequest.routing() != null) {
+        metadata.put("routing", indexRequest.routing());
+      }
+      // both lines are compact JSON, so they contain no newlines
+      ret.append(mapper.writeValueAsString(action)).append('\n');
+      ret.append(indexRequest.source().utf8ToString()).append('\n');
+    }
+    return ret.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static IndexRequest decode(String actionLine, String sourceLine) throws IOException {
+    final JsonNode metadata = mapper.readTree(actionLine).get("index");
+    final IndexRequest ret = new IndexRequest(metadata.get("_index").asText(),
+        metadata.get("_type").asText(), metadata.get("_id").asText())
+        .source(sourceLine, XContentType.JSON);
+    if (metadata.has("routing")) {
+      ret.routing(metadata.get("routing").asText());
+    }
+    return ret;
+  }
+
+  /**
+   * Whoever spools requests, as seen by the spool when replaying them.
+   */
+  interface IndexOwners {
+
+    /**
+     * Called before the first spooled request for {@code index} is replayed. If this throws, the
+     * segment is retried later, as when the cluster is unavailable.
+     */
+    void prepareIndex(String index) throws IOException;
+
+    /**
+     * Called from the spool's own thread when spooled documents for {@code index} fail
+     * permanently on replay, either individually or because the rest of their segment was moved to
+     * a dead letter file.
+     */
+    void documentsFailed(String index, List<String> documentIds);
+  }
+}
@@ -26,17 +26,24 @@ public class ConcatenatedAnnotatedGigawordDocuments implements ArticleSource {
     
     public static ConcatenatedAnnotatedGigawordDocuments fromAnnotatedGigwordGZippedFile(Path p) throws Exception {
         // Initialize Streams
-        try (InputStream fileInputStream = new FileInputStream(p.toString());
-             GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream)) {
-            
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
-            AnnotatedGigawordParser parser = new AnnotatedGigawordParser();
-            saxParser.parse(gzipInputStream, parser);
-
-            return new ConcatenatedAnnotatedGigawordDocuments(parser.getArticleList());
+        try (InputStream fileInputStream = new FileInputStream(p.toString())) {
+            return fromAnnotatedGigwordGZippedStream(fileInputStream);
         }
     }
+
+    /**
+     * Parses gzipped annotated Gigaword from a stream, e.g. a member of a {@link CorpusArchive}.
+     * The stream is read fully but not closed.
+     */
+    public static ConcatenatedAnnotatedGigawordDocuments fromAnnotatedGigwordGZippedStream(InputStream in) throws Exception {
+        GZIPInputStream gzipInputStream = new GZIPInputStream(in);
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        SAXParser saxParser = factory.newSAXParser();
+        AnnotatedGigawordParser parser = new AnnotatedGigawordParser();
+        saxParser.parse(gzipInputStream, parser);
+
+        return new ConcatenatedAnnotatedGigawordDocuments(parser.getArticleList());
+    }
     
     public Iterator<Article> iterator() {
         return new AnnotatedArticlesIterator();
@@ -1,9 +1,11 @@
 package edu.isi.vista.gigawordIndexer;
 
 import com.google.common.collect.AbstractIterator;
+import com.google.common.io.ByteStreams;
 import edu.isi.nlp.io.GZIPByteSource;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -11,6 +13,7 @@ import java.util.Iterator;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The LDC distributes Gigaword as a moderate number of gzipped files, each of which has many documents
@@ -33,6 +36,24 @@ public class ConcatenatedGigawordDocuments implements ArticleSource {
     return new ConcatenatedGigawordDocuments(new String(Files.readAllBytes(p)));
   }
 
+  /**
+   * Reads gzipped Gigaword text from a stream, e.g. a member of a {@link CorpusArchive}. The stream
+   * is read fully but not closed.
+   */
+  public static ConcatenatedGigawordDocuments fromGigawordGZippedStream(InputStream in)
+      throws IOException {
+    return fromGigawordStream(new GZIPInputStream(in));
+  }
+
+  /**
+   * Reads uncompressed Gigaword text from a stream. The stream is read fully but not closed.
+   */
+  public static ConcatenatedGigawordDocuments fromGigawordStream(InputStream in)
+      throws IOException {
+    return new ConcatenatedGigawordDocuments(
+        new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+  }
+
   public Iterator<Article> iterator() {
     return new ArticlesIterator();
   }
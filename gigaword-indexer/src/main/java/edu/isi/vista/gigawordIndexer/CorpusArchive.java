@@ -0,0 +1,104 @@
+package edu.isi.vista.gigawordIndexer;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An LDC corpus distribution which is still packed in a {@code .tar}, {@code .tar.gz}/{@code .tgz}
+ * or {@code .zip} archive.
+ *
+ * <p>This lets us index a corpus without first extracting it to disk. Archive members are streamed
+ * in the order they appear in the archive. Each member is given a path formed by resolving its name
+ * against the archive's path (e.g. {@code /corpora/gigaword.tgz/gigaword_eng_5/data/afp_eng/afp_eng_199405.gz}),
+ * so the same glob patterns used for extracted corpora select the same members.
+ */
+public final class CorpusArchive implements AutoCloseable {
+
+  private final Path archivePath;
+
+  private final ArchiveInputStream archiveStream;
+
+  private CorpusArchive(Path archivePath, ArchiveInputStream archiveStream) {
+    this.archivePath = archivePath;
+    this.archiveStream = archiveStream;
+  }
+
+  /**
+   * Whether {@code p} looks like an archive we know how to read, based on its name.
+   */
+  public static boolean isArchive(Path p) {
+    final String name = p.getFileName().toString().toLowerCase(Locale.ENGLISH);
+    return Files.isRegularFile(p) && (name.endsWith(".tar") || name.endsWith(".tar.gz")
+        || name.endsWith(".tgz") || name.endsWith(".zip"));
+  }
+
+  public static CorpusArchive open(Path archivePath) throws IOException {
+    final String name = archivePath.getFileName().toString().toLowerCase(Locale.ENGLISH);
+    final InputStream in = new BufferedInputStream(Files.newInputStream(archivePath));
+    try {
+      if (name.endsWith(".zip")) {
+        return new CorpusArchive(archivePath, new ZipArchiveInputStream(in));
+      } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+        return new CorpusArchive(archivePath,
+            new TarArchiveInputStream(new BufferedInputStream(new GZIPInputStream(in))));
+      } else if (name.endsWith(".tar")) {
+        return new CorpusArchive(archivePath, new TarArchiveInputStream(in));
+      } else {
+        throw new IOException("Unknown archive type: " + archivePath);
+      }
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Calls {@code visitor} on each file in the archive whose path matches {@code memberPattern}.
+   *
+   * The stream passed to the visitor is only valid until the visitor returns, and closing it has
+   * no effect. Visiting stops early if the visitor returns false.
+   *
+   * Returns whether all matching members were visited.
+   */
+  public boolean forEachMatchingMember(PathMatcher memberPattern, MemberVisitor visitor)
+      throws Exception {
+    ArchiveEntry entry;
+    while ((entry = archiveStream.getNextEntry()) != null) {
+      if (entry.isDirectory() || !archiveStream.canReadEntryData(entry)) {
+        continue;
+      }
+      final Path memberPath = archivePath.resolve(entry.getName());
+      if (memberPattern.matches(memberPath)) {
+        if (!visitor.visit(memberPath, CloseShieldInputStream.wrap(archiveStream))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    archiveStream.close();
+  }
+
+  public interface MemberVisitor {
+
+    /**
+     * Returns whether to continue on to the following members.
+     */
+    boolean visit(Path memberPath, InputStream memberStream) throws Exception;
+  }
+}
@@ -0,0 +1,197 @@
+package edu.isi.vista.gigawordIndexer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Watches a corpus directory tree for new or changed corpus files, for the indexer's watch mode.
+ *
+ * <p>New corpus packs are usually copied or extracted into the tree over minutes, so a file is
+ * only handed on once there have been no changes to it for a debounce interval. Corpus files are
+ * those matching the indexer's pattern for the format; a change anywhere inside a matching
+ * directory (as for CORD-19, whose corpus "files" are directories) counts as a change to that
+ * directory. New subdirectories are watched as they appear.
+ *
+ * <p>{@link #watch(ReadyFileHandler)} runs until the watcher is {@link #close() closed}, e.g. from
+ * a shutdown hook.
+ */
+final class CorpusWatcher implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(CorpusWatcher.class);
+
+  private final Path root;
+
+  private final PathMatcher corpusFilePattern;
+
+  private final long debounceMillis;
+
+  private final WatchService watchService;
+
+  private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+  // corpus files which have changed, and when they last changed
+  private final Map<Path, Long> pendingFiles = new HashMap<>();
+
+  /**
+   * Something which handles a corpus file once it has stopped changing.
+   */
+  interface ReadyFileHandler {
+
+    void handle(Path corpusFile) throws Exception;
+  }
+
+  CorpusWatcher(Path root, PathMatcher corpusFilePattern, long debounceMillis)
+      throws IOException {
+    checkArgument(Files.isDirectory(root), "Can only watch a corpus directory, not %s", root);
+    checkArgument(debounceMillis >= 0, "Debounce interval must not be negative");
+    this.root = root;
+    this.corpusFilePattern = corpusFilePattern;
+    this.debounceMillis = debounceMillis;
+    this.watchService = FileSystems.getDefault().newWatchService();
+    registerTree(root, false);
+  }
+
+  /**
+   * Waits for corpus files to change, calling {@code handler} on each once it has not changed for
+   * the debounce interval. Returns when the watcher is closed.
+   */
+  void watch(ReadyFileHandler handler) throws Exception {
+    log.info("Watching {} for new or changed corpus files", root);
+    try {
+      while (true) {
+        final WatchKey key;
+        if (pendingFiles.isEmpty()) {
+          key = watchService.take();
+        } else {
+          key = watchService.poll(millisUntilNextReady(), TimeUnit.MILLISECONDS);
+        }
+        if (key != null) {
+          processEvents(key);
+        }
+        for (Path readyFile : takeReadyFiles()) {
+          if (Files.exists(readyFile)) {
+            log.info("Corpus file {} is new or changed; indexing it", readyFile);
+            handler.handle(readyFile);
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      log.info("Stopped watching {}", root);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void processEvents(WatchKey key) throws IOException {
+    final Path directory = watchedDirectories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // we missed events, so look at everything again
+        log.warn("Missed file system events under {}; rescanning it", directory);
+        registerTree(directory, true);
+        continue;
+      }
+      final Path changed = directory.resolve((Path) event.context());
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+        // files may have been created in it before we started watching it
+        registerTree(changed, true);
+      }
+      markChanged(changed);
+    }
+    if (!key.reset()) {
+      watchedDirectories.remove(key);
+    }
+  }
+
+  /**
+   * Watches {@code directory} and every directory below it. If {@code markExisting}, the corpus
+   * files already in them are treated as changed.
+   */
+  private void registerTree(Path directory, boolean markExisting) throws IOException {
+    final List<Path> paths;
+    try (Stream<Path> walk = Files.walk(directory)) {
+      paths = walk.collect(Collectors.toList());
+    }
+    for (Path path : paths) {
+      if (Files.isDirectory(path)) {
+        watchedDirectories.put(path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.OVERFLOW), path);
+      }
+      if (markExisting) {
+        markChanged(path);
+      }
+    }
+  }
+
+  /**
+   * Records a change to {@code path}, if it is or is inside a corpus file.
+   */
+  private void markChanged(Path path) {
+    for (Path candidate = path; candidate != null && candidate.startsWith(root);
+        candidate = candidate.getParent()) {
+      if (corpusFilePattern.matches(candidate)) {
+        pendingFiles.put(candidate, System.nanoTime());
+        return;
+      }
+    }
+  }
+
+  private long millisUntilNextReady() {
+    long oldestChange = Long.MAX_VALUE;
+    for (long changed : pendingFiles.values()) {
+      oldestChange = Math.min(oldestChange, changed);
+    }
+    final long sinceOldestChange =
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldestChange);
+    return Math.max(1, debounceMillis - sinceOldestChange);
+  }
+
+  private List<Path> takeReadyFiles() {
+    final List<Path> ret = new ArrayList<>();
+    final long now = System.nanoTime();
+    for (Iterator<Map.Entry<Path, Long>> it = pendingFiles.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<Path, Long> pending = it.next();
+      if (TimeUnit.NANOSECONDS.toMillis(now - pending.getValue()) >= debounceMillis) {
+        ret.add(pending.getKey());
+        it.remove();
+      }
+    }
+    // a directory which matches the pattern is indexed with everything in it, so drop anything
+    // inside one. Sorting puts directories before their contents.
+    ret.sort(null);
+    final List<Path> withoutNested = new ArrayList<>();
+    for (Path readyFile : ret) {
+      if (withoutNested.isEmpty()
+          || !readyFile.startsWith(withoutNested.get(withoutNested.size() - 1))) {
+        withoutNested.add(readyFile);
+      }
+    }
+    return withoutNested;
+  }
+}
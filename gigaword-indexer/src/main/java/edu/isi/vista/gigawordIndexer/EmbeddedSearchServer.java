@@ -0,0 +1,794 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import edu.isi.nlp.parameters.Parameters;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.uhighlight.LengthGoalBreakIterator;
+import org.apache.lucene.search.uhighlight.Passage;
+import org.apache.lucene.search.uhighlight.PassageFormatter;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import org.apache.lucene.search.uhighlight.WholeBreakIterator;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A small HTTP server which answers the Elastic Search search requests Inception's external search
+ * makes, from a Lucene index built by {@link BuildOfflineLuceneIndex}.
+ *
+ * <p>Running an Elastic Search cluster for a small corpus on a laptop, or in a test, is heavy. This
+ * serves the same documents with the same {@code _source} format (Inception's
+ * {@code ElasticSearchSource}) from a single process with no other dependencies. It implements
+ * only this subset of the REST API, for a single index:
+ * <ul>
+ *   <li>{@code GET|HEAD /}: server information, so clients can ping it</li>
+ *   <li>{@code GET /_cluster/health}: always green</li>
+ *   <li>{@code HEAD /<index>}: whether the index exists</li>
+ *   <li>{@code GET|POST /<index>[/<type>]/_search}: the {@code query} (see {@link SearchQueryTranslator}),
+ *   {@code from}, {@code size}, {@code _source} filtering, sorting by {@code _score} or
+ *   {@code _doc}, and {@code highlight} with {@code fields}, {@code pre_tags}, {@code post_tags},
+ *   {@code fragment_size} and {@code number_of_fragments}. A {@code function_score} query with a
+ *   {@code random_score} function orders its hits randomly. Scrolling and aggregations are not
+ *   supported.</li>
+ *   <li>{@code GET|POST /<index>[/<type>]/_count}</li>
+ *   <li>{@code GET|HEAD /<index>/<type>/<id>} and {@code GET /<index>/<type>/<id>/_source}</li>
+ * </ul>
+ * The index may be addressed by its name, {@code _all}, or a wildcard pattern matching its name,
+ * so an alias used by Inception projects works unchanged.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code indexName}: the name to serve the index under</li>
+ *   <li>{@code indexDirectory}: the output directory of {@link BuildOfflineLuceneIndex}</li>
+ *   <li>{@code corpusDirectoryPath} (optional): if present and {@code indexDirectory} holds no
+ *   index yet (or {@code rebuildIndex} is true), the corpus is first indexed into
+ *   {@code indexDirectory}, using {@code format}, {@code lang} and the other corpus parameters of
+ *   {@link BuildOfflineLuceneIndex}</li>
+ *   <li>{@code host} (optional, default localhost): the address to listen on</li>
+ *   <li>{@code port} (optional, default 9200)</li>
+ *   <li>{@code serverThreads} (optional, default the number of processors): how many requests to
+ *   handle at once</li>
+ * </ul>
+ *
+ * <p>Tests can instead call {@link #start(File, String, String, int, int)} with port 0 and point a
+ * client at {@link #getPort()}.
+ */
+public final class EmbeddedSearchServer implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(EmbeddedSearchServer.class);
+
+  private static final String USAGE = "EmbeddedSearchServer param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_INDEX_NAME = "indexName";
+
+  private static final String PARAM_INDEX_DIRECTORY = "indexDirectory";
+
+  private static final String PARAM_CORPUS_DIRECTORY_PATH = "corpusDirectoryPath";
+
+  private static final String PARAM_REBUILD_INDEX = "rebuildIndex";
+
+  private static final String PARAM_HOST = "host";
+
+  private static final String PARAM_PORT = "port";
+
+  private static final String PARAM_SERVER_THREADS = "serverThreads";
+
+  // the version of Elastic Search whose responses we imitate, that of our client libraries
+  private static final String ELASTIC_SEARCH_VERSION = "6.5.2";
+
+  // the mapping type the indexer uses
+  private static final String DOCUMENT_TYPE = "texts";
+
+  private static final int DEFAULT_SIZE = 10;
+
+  private static final int DEFAULT_FRAGMENT_SIZE = 100;
+
+  private static final int DEFAULT_NUMBER_OF_FRAGMENTS = 5;
+
+  private static final Set<String> SOURCE_AND_ID_FIELDS =
+      ImmutableSet.of(BuildOfflineLuceneIndex.ID_FIELD, BuildOfflineLuceneIndex.SOURCE_FIELD);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private final String indexName;
+
+  private final DirectoryReader reader;
+
+  private final IndexSearcher searcher;
+
+  private final SearchQueryTranslator translator = new SearchQueryTranslator();
+
+  private final HttpServer server;
+
+  private final ExecutorService serverExecutor;
+
+  private EmbeddedSearchServer(String indexName, DirectoryReader reader, HttpServer server,
+      ExecutorService serverExecutor) {
+    this.indexName = indexName;
+    this.reader = reader;
+    this.searcher = new IndexSearcher(reader);
+    this.server = server;
+    this.serverExecutor = serverExecutor;
+  }
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    try {
+      final String indexName = parameters.getString(PARAM_INDEX_NAME);
+      final File indexDirectory = parameters.getCreatableDirectory(PARAM_INDEX_DIRECTORY);
+      if (parameters.isPresent(PARAM_CORPUS_DIRECTORY_PATH)
+          && (parameters.getOptionalBoolean(PARAM_REBUILD_INDEX).or(false)
+          || !indexExists(indexDirectory))) {
+        log.info("Indexing the corpus into {} before serving it", indexDirectory);
+        BuildOfflineLuceneIndex.build(parameters, indexDirectory);
+      }
+
+      final EmbeddedSearchServer server = start(indexDirectory, indexName,
+          parameters.getOptionalString(PARAM_HOST).or("localhost"),
+          parameters.getOptionalPositiveInteger(PARAM_PORT).or(9200),
+          parameters.getOptionalPositiveInteger(PARAM_SERVER_THREADS)
+              .or(Runtime.getRuntime().availableProcessors()));
+      Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+    } catch (Exception e) {
+      log.error("Search server failed with an exception:", e);
+      System.exit(1);
+    }
+  }
+
+  private static boolean indexExists(File indexDirectory) throws IOException {
+    try (FSDirectory directory = FSDirectory.open(
+        new File(indexDirectory, BuildOfflineLuceneIndex.INDEX_DIRECTORY_NAME).toPath())) {
+      return DirectoryReader.indexExists(directory);
+    }
+  }
+
+  /**
+   * Starts serving the index in {@code indexDirectory} (the output directory of
+   * {@link BuildOfflineLuceneIndex}) as {@code indexName}.
+   *
+   * @param port the port to listen on, or 0 for any free port
+   */
+  public static EmbeddedSearchServer start(File indexDirectory, String indexName, String host,
+      int port, int threads) throws IOException {
+    final DirectoryReader reader = DirectoryReader.open(FSDirectory.open(
+        new File(indexDirectory, BuildOfflineLuceneIndex.INDEX_DIRECTORY_NAME).toPath()));
+    final HttpServer httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+    final ExecutorService serverExecutor = Executors.newFixedThreadPool(threads);
+    final EmbeddedSearchServer ret =
+        new EmbeddedSearchServer(indexName, reader, httpServer, serverExecutor);
+    httpServer.createContext("/", ret::handle);
+    httpServer.setExecutor(serverExecutor);
+    httpServer.start();
+    log.info("Serving {} documents of index {} at http://{}:{}/", reader.numDocs(), indexName,
+        host, ret.getPort());
+    return ret;
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    serverExecutor.shutdown();
+    try {
+      serverExecutor.awaitTermination(10, TimeUnit.SECONDS);
+      reader.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      throw new RuntimeException("Could not close index reader", e);
+    }
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    final String method = exchange.getRequestMethod();
+    final String path = exchange.getRequestURI().getRawPath();
+    final Map<String, String> urlParameters = parseQuery(exchange.getRequestURI().getRawQuery());
+    final List<String> segments = new ArrayList<>();
+    for (String segment : path.split("/")) {
+      if (!segment.isEmpty()) {
+        segments.add(urlDecode(segment));
+      }
+    }
+
+    try {
+      final byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = ByteStreams.toByteArray(in);
+      }
+      final JsonNode request = body.length > 0 ? mapper.readTree(body) : mapper.createObjectNode();
+
+      if (segments.isEmpty()) {
+        respond(exchange, 200, info());
+      } else if (segments.get(0).equals("_cluster") && segments.size() >= 2
+          && segments.get(1).equals("health")) {
+        respond(exchange, 200, health());
+      } else if (segments.get(0).equals("_search")) {
+        respond(exchange, 200, search(request, urlParameters));
+      } else if (!servesIndex(segments.get(0))) {
+        respond(exchange, 404, error(404, "index_not_found_exception",
+            "no such index [" + segments.get(0) + "]"));
+      } else if (segments.size() == 1 && method.equals("HEAD")) {
+        respond(exchange, 200, mapper.createObjectNode());
+      } else if (isIndexEndpoint(segments, "_search")) {
+        respond(exchange, 200, search(request, urlParameters));
+      } else if (isIndexEndpoint(segments, "_count")) {
+        respond(exchange, 200, count(request));
+      } else if (segments.size() == 3 || (segments.size() == 4
+          && segments.get(3).equals("_source"))) {
+        final ObjectNode document = get(segments.get(2));
+        final boolean found = document.get("found").asBoolean();
+        respond(exchange, found ? 200 : 404,
+            segments.size() == 4 && found ? document.get("_source") : document);
+      } else {
+        respond(exchange, 400, mapper.createObjectNode().put("error",
+            "no handler found for uri [" + path + "] and method [" + method + "]")
+            .put("status", 400));
+      }
+    } catch (IllegalArgumentException | JsonProcessingException e) {
+      respond(exchange, 400, error(400, "parsing_exception", e.getMessage()));
+    } catch (Exception e) {
+      log.warn("Failed to handle {} {}", method, path, e);
+      respond(exchange, 500, error(500, "exception", e.toString()));
+    }
+  }
+
+  /**
+   * Whether {@code segments} address {@code endpoint} of an index, optionally restricted to a
+   * mapping type, e.g. {@code /<index>/_search} or {@code /<index>/<type>/_search}. These have to
+   * be matched before a document is looked up, or {@code _search} would be taken for its ID.
+   */
+  private static boolean isIndexEndpoint(List<String> segments, String endpoint) {
+    return (segments.size() == 2 || segments.size() == 3)
+        && segments.get(segments.size() - 1).equals(endpoint);
+  }
+
+  private ObjectNode info() {
+    final ObjectNode ret = mapper.createObjectNode();
+    ret.put("name", "embedded");
+    ret.put("cluster_name", "embedded");
+    ret.put("cluster_uuid", "_na_");
+    final ObjectNode version = ret.putObject("version");
+    version.put("number", ELASTIC_SEARCH_VERSION);
+    version.put("build_flavor", "oss");
+    version.put("build_type", "embedded");
+    version.put("build_hash", "_na_");
+    version.put("build_date", "_na_");
+    version.put("build_snapshot", false);
+    version.put("lucene_version", Version.LATEST.toString());
+    version.put("minimum_wire_compatibility_version", ELASTIC_SEARCH_VERSION);
+    version.put("minimum_index_compatibility_version", ELASTIC_SEARCH_VERSION);
+    ret.put("tagline", "You Know, for Search");
+    return ret;
+  }
+
+  private ObjectNode health() {
+    final ObjectNode ret = mapper.createObjectNode();
+    ret.put("cluster_name", "embedded");
+    ret.put("status", "green");
+    ret.put("timed_out", false);
+    ret.put("number_of_nodes", 1);
+    ret.put("number_of_data_nodes", 1);
+    ret.put("active_primary_shards", 1);
+    ret.put("active_shards", 1);
+    ret.put("relocating_shards", 0);
+    ret.put("initializing_shards", 0);
+    ret.put("unassigned_shards", 0);
+    return ret;
+  }
+
+  /**
+   * Whether {@code indexExpression}, a comma-separated list of index names or patterns, includes
+   * our index.
+   */
+  private boolean servesIndex(String indexExpression) {
+    for (String index : indexExpression.split(",")) {
+      if (index.equals("_all") || index.equals(indexName)) {
+        return true;
+      }
+      if (index.contains("*") && Pattern.matches(
+          Pattern.quote(index).replace("*", "\\E.*\\Q"), indexName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private ObjectNode search(JsonNode request, Map<String, String> urlParameters)
+      throws IOException {
+    if (urlParameters.containsKey("scroll")) {
+      throw new IllegalArgumentException("Scrolling is not supported");
+    }
+    if (request.has("aggs") || request.has("aggregations")) {
+      throw new IllegalArgumentException("Aggregations are not supported");
+    }
+    final long start = System.nanoTime();
+    final int from = urlParameters.containsKey("from")
+        ? Integer.parseInt(urlParameters.get("from")) : request.path("from").asInt(0);
+    final int size = urlParameters.containsKey("size")
+        ? Integer.parseInt(urlParameters.get("size")) : request.path("size").asInt(DEFAULT_SIZE);
+    final JsonNode queryJson = request.get("query");
+    final Query query = translator.translate(queryJson);
+
+    final TopDocs topDocs;
+    if (queryJson != null && SearchQueryTranslator.isRandomScore(queryJson)) {
+      topDocs = randomTopDocs(query, from + size,
+          SearchQueryTranslator.randomSeed(queryJson, System.nanoTime()));
+    } else if (sortsByDocOrder(request.get("sort"))) {
+      topDocs = searcher.search(query, Math.max(1, from + size),
+          Sort.INDEXORDER);
+    } else {
+      topDocs = searcher.search(query, Math.max(1, from + size));
+    }
+
+    final ScoreDoc[] page = from < topDocs.scoreDocs.length
+        ? Arrays.copyOfRange(topDocs.scoreDocs, from, Math.min(topDocs.scoreDocs.length, from + size))
+        : new ScoreDoc[0];
+    final Map<String, List<List<String>>> highlights =
+        highlight(request.get("highlight"), query, page);
+
+    final ObjectNode ret = mapper.createObjectNode();
+    ret.put("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    ret.put("timed_out", false);
+    putShards(ret);
+    final ObjectNode hits = ret.putObject("hits");
+    hits.put("total", topDocs.totalHits);
+    if (Float.isNaN(topDocs.getMaxScore()) || page.length == 0) {
+      hits.putNull("max_score");
+    } else {
+      hits.put("max_score", topDocs.getMaxScore());
+    }
+    final ArrayNode hitArray = hits.putArray("hits");
+    for (int i = 0; i < page.length; ++i) {
+      final Document document = searcher.doc(page[i].doc, SOURCE_AND_ID_FIELDS);
+      final ObjectNode hit = hitArray.addObject();
+      hit.put("_index", indexName);
+      hit.put("_type", DOCUMENT_TYPE);
+      hit.put("_id", document.get(BuildOfflineLuceneIndex.ID_FIELD));
+      if (Float.isNaN(page[i].score)) {
+        hit.putNull("_score");
+      } else {
+        hit.put("_score", page[i].score);
+      }
+      final JsonNode source = filterSource(readSource(document), request.get("_source"));
+      if (source != null) {
+        hit.set("_source", source);
+      }
+      if (!highlights.isEmpty()) {
+        final ObjectNode hitHighlights = mapper.createObjectNode();
+        for (Map.Entry<String, List<List<String>>> field : highlights.entrySet()) {
+          final List<String> fragments = field.getValue().get(i);
+          if (fragments != null && !fragments.isEmpty()) {
+            final ArrayNode fragmentArray = hitHighlights.putArray(field.getKey());
+            fragments.forEach(fragmentArray::add);
+          }
+        }
+        if (hitHighlights.size() > 0) {
+          hit.set("highlight", hitHighlights);
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static boolean sortsByDocOrder(JsonNode sort) {
+    if (sort == null) {
+      return false;
+    }
+    final List<JsonNode> sortFields =
+        sort.isArray() ? ImmutableList.copyOf(sort) : ImmutableList.of(sort);
+    if (sortFields.size() != 1) {
+      throw new IllegalArgumentException("Only sorting by a single field is supported");
+    }
+    final String field = sortFields.get(0).isObject()
+        ? sortFields.get(0).fieldNames().next() : sortFields.get(0).asText();
+    if (field.equals("_doc")) {
+      return true;
+    } else if (field.equals("_score")) {
+      return false;
+    }
+    throw new IllegalArgumentException("Only sorting by _score or _doc is supported");
+  }
+
+  /**
+   * Picks {@code n} of the documents matching {@code query} at random. Each document gets a score
+   * from a hash of its ID in the index and the {@code seed}, so a seed gives a stable order.
+   */
+  private TopDocs randomTopDocs(Query query, int n, long seed) throws IOException {
+    // the n highest scores seen so far, lowest first
+    final PriorityQueue<ScoreDoc> best =
+        new PriorityQueue<>(Math.max(1, n), (a, b) -> Float.compare(a.score, b.score));
+    final long[] totalHits = {0};
+    searcher.search(query, new SimpleCollector() {
+      private int docBase;
+
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) {
+        docBase = context.docBase;
+      }
+
+      @Override
+      public void collect(int doc) {
+        ++totalHits[0];
+        final float score = randomScore(seed, docBase + doc);
+        if (best.size() < n) {
+          best.add(new ScoreDoc(docBase + doc, score));
+        } else if (n > 0 && score > best.peek().score) {
+          best.poll();
+          best.add(new ScoreDoc(docBase + doc, score));
+        }
+      }
+
+      @Override
+      public boolean needsScores() {
+        return false;
+      }
+    });
+    final ScoreDoc[] ret = new ScoreDoc[best.size()];
+    for (int i = ret.length - 1; i >= 0; --i) {
+      ret[i] = best.poll();
+    }
+    return new TopDocs(totalHits[0], ret, ret.length > 0 ? ret[0].score : Float.NaN);
+  }
+
+  // a score in [0, 1) from the SplitMix64 hash of the seed and document number
+  private static float randomScore(long seed, int doc) {
+    long z = seed + 0x9E3779B97F4A7C15L * (doc + 1);
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    return (z >>> 40) / (float) (1L << 24);
+  }
+
+  /**
+   * Highlights the {@code page} of hits as requested by {@code highlightRequest}, returning for
+   * each field the list of fragments of each hit (null where there were none).
+   */
+  private Map<String, List<List<String>>> highlight(JsonNode highlightRequest, Query query,
+      ScoreDoc[] page) throws IOException {
+    final Map<String, List<List<String>>> ret = new LinkedHashMap<>();
+    if (highlightRequest == null || page.length == 0) {
+      return ret;
+    }
+    final String preTag = highlightRequest.path("pre_tags").path(0).asText("<em>");
+    final String postTag = highlightRequest.path("post_tags").path(0).asText("</em>");
+    final int[] docIds = new int[page.length];
+    for (int i = 0; i < page.length; ++i) {
+      docIds[i] = page[i].doc;
+    }
+
+    for (Iterator<Map.Entry<String, JsonNode>> it = highlightRequest.path("fields").fields();
+        it.hasNext(); ) {
+      final Map.Entry<String, JsonNode> fieldRequest = it.next();
+      final String field = fieldRequest.getKey();
+      // only the text field is indexed with the offsets needed for highlighting
+      if (!field.equals(BuildOfflineLuceneIndex.TEXT_FIELD)) {
+        continue;
+      }
+      final JsonNode options = fieldRequest.getValue();
+      final int fragmentSize = options.path("fragment_size")
+          .asInt(highlightRequest.path("fragment_size").asInt(DEFAULT_FRAGMENT_SIZE));
+      final int numberOfFragments = options.path("number_of_fragments")
+          .asInt(highlightRequest.path("number_of_fragments").asInt(DEFAULT_NUMBER_OF_FRAGMENTS));
+
+      final SourceHighlighter highlighter = new SourceHighlighter(searcher,
+          translator.getAnalyzer(), preTag, postTag, fragmentSize, numberOfFragments);
+      final int[] maxPassages = new int[] {Math.max(1, numberOfFragments)};
+      final Object[] highlighted = highlighter.highlight(field, query, docIds, maxPassages);
+      final List<List<String>> fragments = new ArrayList<>(page.length);
+      for (int i = 0; i < page.length; ++i) {
+        @SuppressWarnings("unchecked")
+        final List<String> docFragments = (List<String>) highlighted[i];
+        fragments.add(docFragments);
+      }
+      ret.put(field, fragments);
+    }
+    return ret;
+  }
+
+  private ObjectNode count(JsonNode request) throws IOException {
+    final ObjectNode ret = mapper.createObjectNode();
+    ret.put("count", searcher.count(translator.translate(request.get("query"))));
+    putShards(ret);
+    return ret;
+  }
+
+  private ObjectNode get(String id) throws IOException {
+    final ObjectNode ret = mapper.createObjectNode();
+    ret.put("_index", indexName);
+    ret.put("_type", DOCUMENT_TYPE);
+    ret.put("_id", id);
+    final TopDocs topDocs =
+        searcher.search(new TermQuery(new Term(BuildOfflineLuceneIndex.ID_FIELD, id)), 1);
+    if (topDocs.scoreDocs.length == 0) {
+      ret.put("found", false);
+    } else {
+      ret.put("_version", 1);
+      ret.put("found", true);
+      ret.set("_source", readSource(searcher.doc(topDocs.scoreDocs[0].doc, SOURCE_AND_ID_FIELDS)));
+    }
+    return ret;
+  }
+
+  private static JsonNode readSource(Document document) throws IOException {
+    final BytesRef source = document.getBinaryValue(BuildOfflineLuceneIndex.SOURCE_FIELD);
+    return mapper.readTree(source.bytes, source.offset, source.length);
+  }
+
+  /**
+   * Applies {@code _source} filtering to {@code source}, returning null if no source should be
+   * returned. Patterns may end in {@code *}.
+   */
+  private static JsonNode filterSource(JsonNode source, JsonNode sourceRequest) {
+    if (sourceRequest == null) {
+      return source;
+    }
+    if (sourceRequest.isBoolean()) {
+      return sourceRequest.asBoolean() ? source : null;
+    }
+    final List<String> includes = new ArrayList<>();
+    final List<String> excludes = new ArrayList<>();
+    if (sourceRequest.isTextual()) {
+      includes.add(sourceRequest.asText());
+    } else if (sourceRequest.isArray()) {
+      sourceRequest.forEach(pattern -> includes.add(pattern.asText()));
+    } else {
+      sourceRequest.path("includes").forEach(pattern -> includes.add(pattern.asText()));
+      sourceRequest.path("excludes").forEach(pattern -> excludes.add(pattern.asText()));
+    }
+    return filterObject((ObjectNode) source, "", includes, excludes);
+  }
+
+  private static ObjectNode filterObject(ObjectNode object, String prefix, List<String> includes,
+      List<String> excludes) {
+    final ObjectNode ret = mapper.createObjectNode();
+    for (Iterator<Map.Entry<String, JsonNode>> it = object.fields(); it.hasNext(); ) {
+      final Map.Entry<String, JsonNode> field = it.next();
+      final String path = prefix + field.getKey();
+      if (matchesAny(path, excludes, false)) {
+        continue;
+      }
+      if (includes.isEmpty() || matchesAny(path, includes, false)) {
+        ret.set(field.getKey(), field.getValue());
+      } else if (field.getValue().isObject() && matchesAny(path, includes, true)) {
+        // some of the fields inside this one are included
+        final ObjectNode filtered =
+            filterObject((ObjectNode) field.getValue(), path + ".", includes, excludes);
+        if (filtered.size() > 0) {
+          ret.set(field.getKey(), filtered);
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Whether {@code path} matches (or, if {@code asParent}, contains fields which may match) one of
+   * {@code patterns}.
+   */
+  private static boolean matchesAny(String path, List<String> patterns, boolean asParent) {
+    for (String pattern : patterns) {
+      if (asParent) {
+        if (pattern.startsWith(path + ".")) {
+          return true;
+        }
+      } else if (pattern.equals(path) || path.startsWith(pattern + ".")
+          || (pattern.endsWith("*") && path.startsWith(
+              pattern.substring(0, pattern.length() - 1)))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void putShards(ObjectNode response) {
+    final ObjectNode shards = response.putObject("_shards");
+    shards.put("total", 1);
+    shards.put("successful", 1);
+    shards.put("skipped", 0);
+    shards.put("failed", 0);
+  }
+
+  private static ObjectNode error(int status, String type, String reason) {
+    final ObjectNode ret = mapper.createObjectNode();
+    final ObjectNode error = ret.putObject("error");
+    final ObjectNode rootCause = error.putArray("root_cause").addObject();
+    rootCause.put("type", type);
+    rootCause.put("reason", reason);
+    error.put("type", type);
+    error.put("reason", reason);
+    ret.put("status", status);
+    return ret;
+  }
+
+  private static void respond(HttpExchange exchange, int status, JsonNode body)
+      throws IOException {
+    final byte[] bytes = mapper.writeValueAsBytes(body);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    final Map<String, String> ret = new LinkedHashMap<>();
+    if (rawQuery != null) {
+      for (String parameter : rawQuery.split("&")) {
+        final int equals = parameter.indexOf('=');
+        if (equals > 0) {
+          ret.put(urlDecode(parameter.substring(0, equals)),
+              urlDecode(parameter.substring(equals + 1)));
+        } else if (!parameter.isEmpty()) {
+          ret.put(urlDecode(parameter), "");
+        }
+      }
+    }
+    return ret;
+  }
+
+  private static String urlDecode(String s) {
+    try {
+      return URLDecoder.decode(s, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError("UTF-8 is always supported", e);
+    }
+  }
+
+  /**
+   * A highlighter which reads the text to highlight from the stored {@code _source}, since the
+   * text field itself is not stored, and returns each hit's fragments separately as Elastic Search
+   * does rather than joined into one string.
+   */
+  private static final class SourceHighlighter extends UnifiedHighlighter {
+
+    private final String preTag;
+
+    private final String postTag;
+
+    private final int fragmentSize;
+
+    private final int numberOfFragments;
+
+    private SourceHighlighter(IndexSearcher searcher, Analyzer analyzer, String preTag,
+        String postTag, int fragmentSize, int numberOfFragments) {
+      super(searcher, analyzer);
+      this.preTag = preTag;
+      this.postTag = postTag;
+      this.fragmentSize = fragmentSize;
+      this.numberOfFragments = numberOfFragments;
+      // Elastic Search highlights the whole text, however long
+      setMaxLength(Integer.MAX_VALUE - 1);
+    }
+
+    private Object[] highlight(String field, Query query, int[] docIds, int[] maxPassages)
+        throws IOException {
+      return highlightFieldsAsObjects(new String[] {field}, query, docIds, maxPassages)
+          .get(field);
+    }
+
+    @Override
+    protected BreakIterator getBreakIterator(String field) {
+      if (numberOfFragments == 0) {
+        // as in Elastic Search, 0 fragments means highlight the whole text as one fragment
+        return new WholeBreakIterator();
+      }
+      return LengthGoalBreakIterator.createMinLength(
+          BreakIterator.getSentenceInstance(Locale.ROOT), fragmentSize);
+    }
+
+    @Override
+    protected int getMaxNoHighlightPassages(String field) {
+      return 0;
+    }
+
+    @Override
+    protected PassageFormatter getFormatter(String field) {
+      return new PassageFormatter() {
+        @Override
+        public Object format(Passage[] passages, String content) {
+          final List<String> ret = new ArrayList<>();
+          for (Passage passage : passages) {
+            final StringBuilder fragment = new StringBuilder();
+            int position = passage.getStartOffset();
+            for (int i = 0; i < passage.getNumMatches(); ++i) {
+              final int matchStart = passage.getMatchStarts()[i];
+              final int matchEnd = passage.getMatchEnds()[i];
+              // matches may overlap, e.g. for phrases
+              if (matchStart >= position) {
+                fragment.append(content, position, matchStart);
+                fragment.append(preTag).append(content, matchStart, matchEnd).append(postTag);
+                position = matchEnd;
+              }
+            }
+            fragment.append(content, position, passage.getEndOffset());
+            ret.add(fragment.toString().trim());
+          }
+          return ret;
+        }
+      };
+    }
+
+    @Override
+    protected List<CharSequence[]> loadFieldValues(String[] fields, DocIdSetIterator docIter,
+        int cacheCharsThreshold) throws IOException {
+      final List<CharSequence[]> ret = new ArrayList<>();
+      for (int doc = docIter.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+          doc = docIter.nextDoc()) {
+        final JsonNode source = readSource(searcher.doc(doc, SOURCE_AND_ID_FIELDS));
+        final CharSequence[] values = new CharSequence[fields.length];
+        for (int i = 0; i < fields.length; ++i) {
+          JsonNode value = source;
+          for (String component : fields[i].split("\\.")) {
+            value = value.path(component);
+          }
+          values[i] = value.asText("");
+        }
+        ret.add(values);
+      }
+      return ret;
+    }
+  }
+}
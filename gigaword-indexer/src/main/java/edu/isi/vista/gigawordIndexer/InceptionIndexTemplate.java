@@ -0,0 +1,128 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.Resources;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
+import org.elasticsearch.action.admin.indices.get.GetIndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Creates Elastic Search indices with explicit settings and mappings tuned for Inception's
+ * external search, rather than relying on dynamic mapping.
+ *
+ * <p>The shipped template ({@code inception_index.json}) maps all {@code metadata.*} fields as
+ * keywords without doc values (so they are neither analyzed nor carry norms), indexes
+ * {@code doc.text} with offsets so highlighting does not need to re-analyze the stored text, and
+ * stores the source with {@code best_compression}.
+ */
+public final class InceptionIndexTemplate {
+
+  private static final Logger log = LoggerFactory.getLogger(InceptionIndexTemplate.class);
+
+  private static final String DEFAULT_TEMPLATE_RESOURCE = "inception_index.json";
+
+  private final ObjectNode template;
+
+  private InceptionIndexTemplate(ObjectNode template) {
+    this.template = template;
+  }
+
+  /**
+   * Loads the template shipped with the indexer.
+   */
+  public static InceptionIndexTemplate loadDefault() throws IOException {
+    return fromJson(Resources.toString(
+        Resources.getResource(InceptionIndexTemplate.class, DEFAULT_TEMPLATE_RESOURCE),
+        StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Loads a user-provided template. This should have the same form as the body of an Elastic
+   * Search create index request.
+   */
+  public static InceptionIndexTemplate fromFile(File templateFile) throws IOException {
+    return fromJson(com.google.common.io.Files.asCharSource(templateFile, StandardCharsets.UTF_8)
+        .read());
+  }
+
+  private static InceptionIndexTemplate fromJson(String json) throws IOException {
+    return new InceptionIndexTemplate((ObjectNode) new ObjectMapper().readTree(json));
+  }
+
+  /**
+   * Returns a copy of this template with the given number of primary shards and replicas.
+   */
+  public InceptionIndexTemplate withShards(int numberOfShards, int numberOfReplicas) {
+    return withNumberOfShards(numberOfShards).withNumberOfReplicas(numberOfReplicas);
+  }
+
+  /**
+   * Returns a copy of this template with the given number of primary shards.
+   */
+  public InceptionIndexTemplate withNumberOfShards(int numberOfShards) {
+    checkArgument(numberOfShards > 0, "Number of shards must be positive");
+    return withIndexSetting("number_of_shards", numberOfShards);
+  }
+
+  /**
+   * Returns a copy of this template with the given number of replicas of each shard.
+   */
+  public InceptionIndexTemplate withNumberOfReplicas(int numberOfReplicas) {
+    checkArgument(numberOfReplicas >= 0, "Number of replicas must be non-negative");
+    return withIndexSetting("number_of_replicas", numberOfReplicas);
+  }
+
+  private InceptionIndexTemplate withIndexSetting(String name, int value) {
+    final ObjectNode copy = template.deepCopy();
+    copy.with("settings").with("index").put(name, value);
+    return new InceptionIndexTemplate(copy);
+  }
+
+  /**
+   * The template as the JSON body of a create index request.
+   */
+  public String toJson() {
+    return template.toString();
+  }
+
+  /**
+   * Creates {@code indexName} from this template unless an index with that name already exists.
+   *
+   * Returns whether a new index was created. If another client creates the index at the same time,
+   * this returns false rather than failing.
+   */
+  public boolean createIndexIfAbsent(RestHighLevelClient client, String indexName)
+      throws IOException {
+    if (client.indices().exists(new GetIndexRequest().indices(indexName), RequestOptions.DEFAULT)) {
+      log.info("Index {} already exists; its settings and mappings will not be changed",
+          indexName);
+      return false;
+    }
+    log.info("Creating index {} with settings {}", indexName, template.get("settings"));
+    try {
+      client.indices().create(new CreateIndexRequest(indexName).source(toJson(), XContentType.JSON),
+          RequestOptions.DEFAULT);
+    } catch (ElasticsearchStatusException e) {
+      if (e.status() == RestStatus.BAD_REQUEST
+          && e.getMessage().contains("resource_already_exists_exception")) {
+        log.info("Index {} was created by another client in the meantime", indexName);
+        return false;
+      }
+      throw e;
+    }
+    return true;
+  }
+}
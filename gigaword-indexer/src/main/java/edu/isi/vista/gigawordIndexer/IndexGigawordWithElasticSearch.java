@@ -1,13 +1,16 @@
 package edu.isi.vista.gigawordIndexer;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import edu.isi.nlp.parameters.Parameters;
+import edu.isi.vista.corpus.BoundedIoExecutor;
 import org.apache.http.HttpHost;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -15,15 +18,26 @@ import org.elasticsearch.common.xcontent.XContentFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.OptionalInt;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -44,10 +58,29 @@ public class IndexGigawordWithElasticSearch {
           "\tThe required parameters are:\n" +
           "\tindexName: the name of the index in a running Elastic Search server to add the documents to\n" +
           "\tcorpusDirectoryPath: the path to a directory where corpus (i.e. LDC2011T07 English Gigaword 5th edition)\n" +
-          "\t\thas been extracted. \n" +
+          "\t\thas been extracted, or to the .tar, .tar.gz, .tgz or .zip file it is distributed as, or to a\n" +
+          "\t\tsingle corpus file (e.g. one .ltf.zip). \n" +
           "\tformat: LTF, annotated_gigaword or gigaword" +
           "\tcompressed: true if the gigaword documents are expected to be compressed, false otherwise" +
           "\tthreshold: a number between 0 and 1 indicating the percentage of failed indexing doc before terminating program\n" +
+          "\tpassageLength (optional): if specified, each document is split into passages of at most this many\n" +
+          "\t\tcharacters which are indexed as separate documents. sentenceLimit is ignored in this mode.\n" +
+          "\tcreateIndex (optional): if true, create the index with explicit settings and mappings if it does not\n" +
+          "\t\talready exist. indexTemplate may point to a template to use instead of the shipped one, and\n" +
+          "\t\tnumberOfShards and numberOfReplicas, if given, override the template's values (5 and 1 in\n" +
+          "\t\tthe shipped template).\n" +
+          "\tbulkMaxRetries (optional, default 5): how many times to resubmit documents rejected by an\n" +
+          "\t\toverloaded cluster. Documents still failing after that count towards the threshold.\n" +
+          "\tbulkConcurrency (optional, default 1): how many bulk requests may be in flight at once.\n" +
+          "\tspoolDirectory (optional): if specified, bulk requests which cannot be delivered because the\n" +
+          "\t\tcluster is unavailable are written to disk here and replayed in the background once it\n" +
+          "\t\trecovers, rather than stopping indexing. Each spool file is replayed once it reaches\n" +
+          "\t\tspoolSegmentMB (default 64) or the run ends, and spoolRetrySeconds (default 30) sets how\n" +
+          "\t\toften replay is retried.\n" +
+          "\twatch (optional, default false): if true, keep running after indexing the corpus directory and\n" +
+          "\t\tindex corpus files added to or changed in it, once they have not changed for\n" +
+          "\t\twatchDebounceSeconds (default 60). If watchIndexExisting (default true) is false, the files\n" +
+          "\t\talready there are not indexed first. Stop with Ctrl-C or by killing the process.\n" +
           "Additional parameters can be used to point to an Elastic Search server running somewhere besides the " +
           "standard ports on localhost. For these, please see the source code.";
 
@@ -62,13 +95,13 @@ public class IndexGigawordWithElasticSearch {
 
   private static final String PARAM_CORPUS_DIRECTORY_PATH = "corpusDirectoryPath";
 
-  private static final String PARAM_FORMAT = "format";
+  static final String PARAM_FORMAT = "format";
 
   private static final String PARAM_COMPRESSED = "compressed";
 
-  private static final String PARAM_LANGUAGE = "lang";
+  static final String PARAM_LANGUAGE = "lang";
 
-  private static final String PARAM_INDEX_NAME = "indexName";
+  static final String PARAM_INDEX_NAME = "indexName";
 
   private static final String PARAM_HOSTNAME_PRIMARY = "primaryHostName";
 
@@ -85,16 +118,68 @@ public class IndexGigawordWithElasticSearch {
   private static final String PARAM_DRY_RUN = "dryRun";
 
   /**
-   * Limits how many documents will be indexed. This is useful mostly for testing purposes.
+   * If present, documents are split into passages of at most this many characters and each passage
+   * is indexed as its own document. See {@link ArticlePassages}.
    */
-  private static final String MAX_DOCS_TO_PROCESS_PARAM = "maxDocsToProcess";
+  private static final String PARAM_PASSAGE_LENGTH = "passageLength";
+
+  /**
+   * If true, the index is created from an {@link InceptionIndexTemplate} before indexing begins
+   * (unless it already exists).
+   */
+  private static final String PARAM_CREATE_INDEX = "createIndex";
+
+  private static final String PARAM_INDEX_TEMPLATE = "indexTemplate";
+
+  private static final String PARAM_NUMBER_OF_SHARDS = "numberOfShards";
+
+  private static final String PARAM_NUMBER_OF_REPLICAS = "numberOfReplicas";
+
+  /**
+   * How many times to resubmit documents which failed for transient reasons, and how long to wait
+   * before the first retry. See {@link RetryingBulkSubmitter}.
+   */
+  private static final String PARAM_BULK_MAX_RETRIES = "bulkMaxRetries";
+
+  private static final String PARAM_BULK_INITIAL_BACKOFF_MILLIS = "bulkInitialBackoffMillis";
+
+  /**
+   * How many bulk requests may be in flight at once. This is enforced by a
+   * {@link BoundedIoExecutor}, so it may be very large in the {@code virtual-threads} build.
+   */
+  private static final String PARAM_BULK_CONCURRENCY = "bulkConcurrency";
+
+  /**
+   * If present, a directory to spool undeliverable bulk requests to. See {@link BulkSpool}.
+   */
+  private static final String PARAM_SPOOL_DIRECTORY = "spoolDirectory";
+
+  private static final String PARAM_SPOOL_SEGMENT_MB = "spoolSegmentMB";
+
+  private static final String PARAM_SPOOL_RETRY_SECONDS = "spoolRetrySeconds";
+
+  /**
+   * If true, the indexer stays running after the initial pass and indexes new or changed corpus
+   * files as they appear. See {@link CorpusWatcher}.
+   */
+  private static final String PARAM_WATCH = "watch";
+
+  private static final String PARAM_WATCH_DEBOUNCE_SECONDS = "watchDebounceSeconds";
+
+  private static final String PARAM_WATCH_INDEX_EXISTING = "watchIndexExisting";
 
-  private static int totalDoc = 0;
+  private static final int DEFAULT_WATCH_DEBOUNCE_SECONDS = 60;
 
-  private static int indexFailed = 0;
+  // how long a shutdown waits for in-flight indexing to finish in watch mode
+  private static final long WATCH_SHUTDOWN_WAIT_MILLIS = TimeUnit.MINUTES.toMillis(5);
 
-  @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-  private static OptionalInt maxDocumentsToIndex = OptionalInt.empty();
+  // the Elastic Search client's own default connection pool size
+  private static final int DEFAULT_MAX_CONNECTIONS = 30;
+
+  /**
+   * Limits how many documents will be indexed. This is useful mostly for testing purposes.
+   */
+  private static final String MAX_DOCS_TO_PROCESS_PARAM = "maxDocsToProcess";
 
   private static final int BATCH_SIZE = 100;
 
@@ -103,8 +188,6 @@ public class IndexGigawordWithElasticSearch {
           "chinese", "Chinese",
           "arabic", "Arabic");
 
-  // make error-prone not complain about the use of allMatch below
-  @SuppressWarnings("ReturnValueIgnored")
   public static void main(String[] argv) throws IOException {
 
     // get parameter file
@@ -117,50 +200,228 @@ public class IndexGigawordWithElasticSearch {
       System.exit(1);
     }
 
-    try (RestHighLevelClient client = buildElasticSearchClient(parameters)) {
-      final String indexName = parameters.getString(PARAM_INDEX_NAME);
-      final String format = parameters.getString(PARAM_FORMAT);
-      final boolean compressed = parameters.getOptionalBoolean(PARAM_COMPRESSED).or(true);
-      final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
-      final double fractionDocAllowToFail =
-          Double.parseDouble(parameters.getOptionalString(PARAM_FRACTIOIN_DOCS_ALLOWED_TO_FAIL)
-              .or("0.0"));
-      final int sentenceLimit = parameters.getOptionalInteger(SENTENCE_LIMIT).or(100);
-      final boolean dryRun = parameters.getOptionalBoolean(PARAM_DRY_RUN).or(false);
-      final Path corpusDirPath = parameters.getExistingDirectory(PARAM_CORPUS_DIRECTORY_PATH).toPath();
-      if (parameters.isPresent(MAX_DOCS_TO_PROCESS_PARAM)) {
-        maxDocumentsToIndex = OptionalInt.of(
-                parameters.getPositiveInteger(MAX_DOCS_TO_PROCESS_PARAM));
+    final int bulkConcurrency =
+        parameters.getOptionalPositiveInteger(PARAM_BULK_CONCURRENCY).or(1);
+    final IndexingProgress progress = new IndexingProgress();
+    // closed in reverse order, so all bulk requests are finished before the spool is drained
+    try (RestHighLevelClient client = buildElasticSearchClient(parameters, bulkConcurrency);
+        BulkSpool spool = buildBulkSpool(parameters, client,
+            new SpooledJobs(client).add(parameters, progress));
+        BoundedIoExecutor bulkExecutor = BoundedIoExecutor.create("bulk", bulkConcurrency)) {
+      indexCorpus(parameters, client, buildBulkSubmitter(parameters, client), spool, bulkExecutor,
+          progress);
+    } catch (Exception e) {
+      log.error("Indexing failed with an exception:", e);
+      System.exit(1);
+    }
+
+    // only now that the spool has been delivered do these include documents which failed on replay
+    log.info("{} documents indexed, {} failed", progress.indexedDocs(), progress.failedDocs());
+    if (progress.exceedsFailureThreshold(fractionDocsAllowedToFail(parameters))) {
+      log.error("Failed documents exceeded threshold");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Indexes the corpus described by {@code parameters} into the index it names, counting the
+   * documents in {@code progress}. The client, bulk submitter, spool and bulk executor may be shared
+   * with other corpora being indexed at the same time, in which case the connection, bulk and spool
+   * parameters in {@code parameters} are not used; see {@link IndexMultipleCorpora}.
+   */
+  static void indexCorpus(Parameters parameters, RestHighLevelClient client,
+      RetryingBulkSubmitter bulkSubmitter, @Nullable BulkSpool spool,
+      BoundedIoExecutor bulkExecutor, IndexingProgress progress) throws Exception {
+    final String indexName = parameters.getString(PARAM_INDEX_NAME);
+    final String format = parameters.getString(PARAM_FORMAT);
+    final boolean compressed = parameters.getOptionalBoolean(PARAM_COMPRESSED).or(true);
+    final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
+    final double fractionDocAllowToFail = fractionDocsAllowedToFail(parameters);
+    final int sentenceLimit = parameters.getOptionalInteger(SENTENCE_LIMIT).or(100);
+    final boolean dryRun = parameters.getOptionalBoolean(PARAM_DRY_RUN).or(false);
+    // 0 indicates whole documents should be indexed
+    final int passageLength = parameters.getOptionalPositiveInteger(PARAM_PASSAGE_LENGTH).or(0);
+    // this may also be an archive the corpus is distributed as
+    final Path corpusDirPath = new File(parameters.getString(PARAM_CORPUS_DIRECTORY_PATH)).toPath();
+    final PathMatcher filePattern = corpusFilePattern(format, lang, compressed);
+    if (!Files.isDirectory(corpusDirPath) && !CorpusArchive.isArchive(corpusDirPath)
+        && !isSingleCorpusFile(corpusDirPath, filePattern)) {
+      throw new RuntimeException(corpusDirPath
+          + " is neither a directory, a supported archive nor a " + format + " corpus file");
+    }
+    final boolean watch = isWatchMode(parameters);
+    if (watch && !Files.isDirectory(corpusDirPath)) {
+      throw new RuntimeException("Watch mode requires a corpus directory, not " + corpusDirPath);
+    }
+    final OptionalInt maxDocumentsToIndex = parameters.isPresent(MAX_DOCS_TO_PROCESS_PARAM)
+        ? OptionalInt.of(parameters.getPositiveInteger(MAX_DOCS_TO_PROCESS_PARAM))
+        : OptionalInt.empty();
+
+    final InceptionIndexTemplate indexTemplate =
+        parameters.getOptionalBoolean(PARAM_CREATE_INDEX).or(false)
+            ? buildIndexTemplate(parameters) : null;
+    if (indexTemplate != null && !dryRun) {
+      indexTemplate.createIndexIfAbsent(client, indexName);
+    }
+
+    // indexes the articles of a single corpus file, returning whether to continue. The document
+    // limit and failure threshold apply to the documents counted in fileProgress.
+    final Function<IndexingProgress, CorpusFileIndexer> indexCorpusFile = fileProgress ->
+        (concatenatedFile, openedArticleSource) -> {
+      log.info("Examining file {}", concatenatedFile);
+      log.info("Total documents before processing: {}", progress.totalDocs());
+      try (ArticleSource articleSource = openedArticleSource) {
+        // we batch the documents in groups of 100 so we can get the efficiency gains
+        // from batching without making huge requests of unbounded size
+        final Iterable<List<Article>> batchedArticles = partition(articleSource, BATCH_SIZE);
+
+        boolean shouldContinue = index(bulkSubmitter, spool, bulkExecutor,
+                batchedArticles, indexName, lang, fractionDocAllowToFail, sentenceLimit,
+                passageLength, dryRun, fileProgress, maxDocumentsToIndex);
+        if (!shouldContinue) {
+          log.info(
+                  "Indexing terminated early without error, probably due to the user "
+                          + "requesting a limit on the number of documents indexed");
+          return false;
+        }
       }
+      log.info("Total documents after processing: {}", progress.totalDocs());
+      return true;
+    };
+
+    if (watch) {
+      watchCorpusDirectory(parameters, corpusDirPath, filePattern, format, compressed,
+          indexCorpusFile, progress);
+    } else {
+      forEachCorpusFile(corpusDirPath, filePattern, format, compressed,
+          indexCorpusFile.apply(progress));
+    }
+  }
+
+  /**
+   * The fraction of the documents of the corpus described by {@code parameters} which may fail
+   * before indexing it is considered to have failed.
+   */
+  static double fractionDocsAllowedToFail(Parameters parameters) {
+    return Double.parseDouble(
+        parameters.getOptionalString(PARAM_FRACTIOIN_DOCS_ALLOWED_TO_FAIL).or("0.0"));
+  }
 
-      final PathMatcher filePattern;
-      if (format.equalsIgnoreCase("LTF")) {
-        filePattern = FileSystems.getDefault().getPathMatcher("glob:**.ltf.zip");
-      } else if (format.equalsIgnoreCase("ace")) {
-        // Source files (unannotated) are in the .sgm format
-        // Only checks each adj subdirectory to avoid duplicate source files
-        // (as fp1, fp2 and timex2 use the same source files)
-        final String aceDirectoryName = languageToAceDirectoryName.get(lang.toLowerCase());
-        if (aceDirectoryName == null) {
-          throw new RuntimeException("The ACE corpus does not contain files of the " +
-                  "specified language");
+  /**
+   * Whether {@code parameters} ask for watch mode, which {@link IndexMultipleCorpora} cannot run.
+   */
+  static boolean isWatchMode(Parameters parameters) {
+    return parameters.getOptionalBoolean(PARAM_WATCH).or(false);
+  }
+
+  /**
+   * Indexes the corpus directory (unless {@code watchIndexExisting} is false) and then each corpus
+   * file which is added to or changed in it, until the process is asked to shut down. The client
+   * and bulk machinery stay open throughout, so new files are indexed without any start-up cost.
+   *
+   * <p>The initial pass is counted in {@code progress} as a whole, but each file indexed after it
+   * is counted in a {@link IndexingProgress#forFile() progress of its own}, so that reaching the
+   * document limit or failure threshold on one file does not cut short every file after it.
+   */
+  private static void watchCorpusDirectory(Parameters parameters, Path corpusDirPath,
+      PathMatcher filePattern, String format, boolean compressed,
+      Function<IndexingProgress, CorpusFileIndexer> indexCorpusFile, IndexingProgress progress)
+      throws Exception {
+    final long debounceMillis = TimeUnit.SECONDS.toMillis(
+        parameters.getOptionalInteger(PARAM_WATCH_DEBOUNCE_SECONDS)
+            .or(DEFAULT_WATCH_DEBOUNCE_SECONDS));
+    // start watching before the initial pass so files added during it are not missed
+    try (CorpusWatcher watcher = new CorpusWatcher(corpusDirPath, filePattern, debounceMillis)) {
+      final Thread indexingThread = Thread.currentThread();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        log.info("Shutting down; finishing indexing in progress");
+        try {
+          watcher.close();
+          // let main close the client, flushing outstanding bulk requests and the spool
+          indexingThread.join(WATCH_SHUTDOWN_WAIT_MILLIS);
+        } catch (IOException e) {
+          log.warn("Failed to stop watching the corpus directory", e);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         }
-        filePattern = FileSystems.getDefault()
-                .getPathMatcher("glob:**/" + aceDirectoryName + "/**/adj/*.sgm");
-
-      } else if (format.equalsIgnoreCase("covid19")) {
-        final String dirNames = "(comm_use_subset|noncomm_use_subset|pmc_custom_license|biorxiv_medrxiv)";
-        // the directories have two levels with the same name
-        filePattern = FileSystems.getDefault().getPathMatcher("regex:.*" + dirNames + "/" + dirNames);
-      } else if (!compressed){
-        filePattern = FileSystems.getDefault()
-                .getPathMatcher("glob:**/data/**/**");
-      } else {
-        filePattern = FileSystems.getDefault()
-                .getPathMatcher("glob:**/data/**/*.gz");
+      }, "watch-shutdown"));
+
+      if (parameters.getOptionalBoolean(PARAM_WATCH_INDEX_EXISTING).or(true)) {
+        forEachCorpusFile(corpusDirPath, filePattern, format, compressed,
+            indexCorpusFile.apply(progress));
+        log.info("Indexed the existing corpus files: {} documents indexed, {} failed",
+            progress.indexedDocs(), progress.failedDocs());
+      }
+      // The watcher only hands on files matching the corpus pattern, so each is indexed as a single
+      // corpus file. A document limit or the failure threshold may stop an individual file short,
+      // and a file may turn out to be unreadable, but we keep watching regardless.
+      watcher.watch(corpusFile -> {
+        try {
+          indexCorpusFile.apply(progress.forFile())
+              .index(corpusFile, getArticleSource(format, compressed, corpusFile));
+        } catch (Exception e) {
+          log.error("Failed to index corpus file {}; continuing to watch", corpusFile, e);
+        }
+      });
+    }
+  }
+
+  /**
+   * Gets a matcher for the files within the corpus directory (or archive) which contain documents
+   * of the given format.
+   */
+  static PathMatcher corpusFilePattern(String format, String lang, boolean compressed) {
+    final PathMatcher filePattern;
+    if (format.equalsIgnoreCase("LTF")) {
+      filePattern = FileSystems.getDefault().getPathMatcher("glob:**.ltf.zip");
+    } else if (format.equalsIgnoreCase("ace")) {
+      // Source files (unannotated) are in the .sgm format
+      // Only checks each adj subdirectory to avoid duplicate source files
+      // (as fp1, fp2 and timex2 use the same source files)
+      final String aceDirectoryName = languageToAceDirectoryName.get(lang.toLowerCase());
+      if (aceDirectoryName == null) {
+        throw new RuntimeException("The ACE corpus does not contain files of the " +
+                "specified language");
       }
+      filePattern = FileSystems.getDefault()
+              .getPathMatcher("glob:**/" + aceDirectoryName + "/**/adj/*.sgm");
+
+    } else if (format.equalsIgnoreCase("covid19")) {
+      final String dirNames = "(comm_use_subset|noncomm_use_subset|pmc_custom_license|biorxiv_medrxiv)";
+      // the directories have two levels with the same name
+      filePattern = FileSystems.getDefault().getPathMatcher("regex:.*" + dirNames + "/" + dirNames);
+    } else if (!compressed){
+      filePattern = FileSystems.getDefault()
+              .getPathMatcher("glob:**/data/**/**");
+    } else {
+      filePattern = FileSystems.getDefault()
+              .getPathMatcher("glob:**/data/**/*.gz");
+    }
+    return filePattern;
+  }
 
-      try (Stream<Path> corpusFiles = Files.walk(corpusDirPath)) {
+  /**
+   * Calls {@code corpusFileIndexer} on each file of the corpus matching {@code filePattern} until it
+   * returns false. {@code corpusPath} may be a directory, a {@link CorpusArchive} or a single file
+   * matching {@code filePattern}. The last is checked first, since some corpus files (e.g.
+   * {@code .ltf.zip}) would otherwise be taken for archives.
+   */
+  // make error-prone not complain about the use of allMatch below
+  @SuppressWarnings("ReturnValueIgnored")
+  static void forEachCorpusFile(Path corpusPath, PathMatcher filePattern, String format,
+      boolean compressed, CorpusFileIndexer corpusFileIndexer) throws Exception {
+    if (isSingleCorpusFile(corpusPath, filePattern)) {
+      corpusFileIndexer.index(corpusPath, getArticleSource(format, compressed, corpusPath));
+    } else if (CorpusArchive.isArchive(corpusPath)) {
+      // stream the matching members straight out of the archive rather than extracting it
+      log.info("Reading corpus files directly from archive {}", corpusPath);
+      try (CorpusArchive archive = CorpusArchive.open(corpusPath)) {
+        archive.forEachMatchingMember(filePattern,
+            (member, memberStream) -> corpusFileIndexer.index(member,
+                getArticleSource(format, compressed, member, memberStream)));
+      }
+    } else {
+      try (Stream<Path> corpusFiles = Files.walk(corpusPath)) {
         //noinspection ResultOfMethodCallIgnored
         corpusFiles
             .filter(filePattern::matches)
@@ -168,37 +429,21 @@ public class IndexGigawordWithElasticSearch {
             // continue
             .allMatch(
                 concatenatedFile -> {
-                  log.info("Examining file {}", concatenatedFile);
-                  log.info("Total documents before processing: {}", totalDoc);
-                    try (ArticleSource articleSource = getArticleSource(format, compressed,
-                            concatenatedFile)) {
-                      // we batch the documents in groups of 100 so we can get the efficiency gains
-                      // from batching without making huge requests of unbounded size
-                      final Iterable<List<Article>> batchedArticles = partition(articleSource, BATCH_SIZE);
-
-                      boolean shouldContinue = index(client, batchedArticles, indexName, lang,
-                              fractionDocAllowToFail, sentenceLimit, dryRun);
-                      if (!shouldContinue) {
-                        log.info(
-                                "Indexing terminated early without error, probably due to the user "
-                                        + "requesting a limit on the number of documents indexed");
-                        return false;
-                      }
+                  try {
+                    return corpusFileIndexer.index(concatenatedFile,
+                        getArticleSource(format, compressed, concatenatedFile));
                   } catch (Exception e) {
                     throw new RuntimeException(e);
                   }
-                  log.info("Total documents after processing: {}", totalDoc);
-                  return true;
                 });
-        }
-
-      log.info("{} documents indexed, {} failed", totalDoc-indexFailed, indexFailed);
-    } catch (Exception e) {
-      log.error("Indexing failed with an exception:", e);
-      System.exit(1);
+      }
     }
   }
 
+  private static boolean isSingleCorpusFile(Path corpusPath, PathMatcher filePattern) {
+    return Files.isRegularFile(corpusPath) && filePattern.matches(corpusPath);
+  }
+
   private static ArticleSource getArticleSource(String format, boolean compressed,
           Path sourceFile) throws Exception
   {
@@ -223,7 +468,250 @@ public class IndexGigawordWithElasticSearch {
     }
   }
 
-  private static RestHighLevelClient buildElasticSearchClient(Parameters parameters) {
+  /**
+   * Like {@link #getArticleSource(String, boolean, Path)}, but for a corpus file which is a member
+   * of a {@link CorpusArchive}. {@code memberStream} must be fully consumed by the returned source
+   * before moving on to the next member.
+   */
+  private static ArticleSource getArticleSource(String format, boolean compressed,
+      Path memberPath, InputStream memberStream) throws Exception {
+    if (format.equalsIgnoreCase("ace")) {
+      return AceDocument.AceDocumentFromStream(memberStream);
+    } else if (format.equalsIgnoreCase("ltf")) {
+      return LTFDocuments.fromLTFZippedStream(memberStream);
+    } else if (format.equalsIgnoreCase("annotated_gigaword")) {
+      log.warn("Indexing an annotated version of Gigaword.");
+      return ConcatenatedAnnotatedGigawordDocuments.fromAnnotatedGigwordGZippedStream(memberStream);
+    } else if (format.equalsIgnoreCase("gigaword")) {
+      if (compressed) {
+        return ConcatenatedGigawordDocuments.fromGigawordGZippedStream(memberStream);
+      } else {
+        return ConcatenatedGigawordDocuments.fromGigawordStream(memberStream);
+      }
+    } else if (format.equalsIgnoreCase("covid19")) {
+      throw new RuntimeException("The covid19 format cannot be read from an archive; "
+          + "please extract it first. Could not read " + memberPath);
+    } else {
+      throw new RuntimeException("Unknown input for parameter format. " +
+              "Possible values are \"ace\", \"ltf\", \"annotated_gigaword\" and \"gigaword\".");
+    }
+  }
+
+  /**
+   * Counts the documents of a corpus which have been processed so far. These are updated by the
+   * thread indexing the corpus and, for documents which fail when replayed from a
+   * {@link BulkSpool}, by the spool's thread. They may be read from others to report progress.
+   */
+  static final class IndexingProgress {
+
+    private final AtomicInteger totalDocs = new AtomicInteger();
+
+    private final AtomicInteger failedDocs = new AtomicInteger();
+
+    // also counts the documents counted here
+    @Nullable
+    private final IndexingProgress parent;
+
+    IndexingProgress() {
+      this(null);
+    }
+
+    private IndexingProgress(@Nullable IndexingProgress parent) {
+      this.parent = parent;
+    }
+
+    /**
+     * A progress counting only the documents of a single corpus file, which are also counted in
+     * this one.
+     */
+    IndexingProgress forFile() {
+      return new IndexingProgress(this);
+    }
+
+    private void countDocument() {
+      totalDocs.incrementAndGet();
+      if (parent != null) {
+        parent.countDocument();
+      }
+    }
+
+    private void countFailures(int numFailures) {
+      failedDocs.addAndGet(numFailures);
+      if (parent != null) {
+        parent.countFailures(numFailures);
+      }
+    }
+
+    /**
+     * All documents read from the corpus, whether or not they were indexed.
+     */
+    int totalDocs() {
+      return totalDocs.get();
+    }
+
+    int failedDocs() {
+      return failedDocs.get();
+    }
+
+    int indexedDocs() {
+      return totalDocs() - failedDocs();
+    }
+
+    boolean exceedsFailureThreshold(double fractionDocAllowToFail) {
+      return (double) failedDocs() / (double) totalDocs() > fractionDocAllowToFail;
+    }
+
+    private void checkFailureThreshold(double fractionDocAllowToFail) {
+      if (exceedsFailureThreshold(fractionDocAllowToFail)) {
+        throw new RuntimeException("Failed documents exceeded threshold");
+      }
+    }
+  }
+
+  /**
+   * The indexing jobs whose bulk requests may be spooled, by the index each writes to, so that
+   * requests replayed from the spool are handled as the job which spooled them would have handled
+   * them: its index is created from its template before anything is replayed into it, and
+   * documents which fail on replay count towards its failures. All jobs must be added before the
+   * spool is opened, since it may start replaying segments left over from an earlier run straight
+   * away.
+   *
+   * <p>If several jobs write to the same index, replay failures are counted against the first of
+   * them. In passage mode, a document whose passages fail in different replayed batches may be
+   * counted more than once.
+   */
+  static final class SpooledJobs implements BulkSpool.IndexOwners {
+
+    private final RestHighLevelClient client;
+
+    private final Map<String, SpooledJob> jobsByIndex = new HashMap<>();
+
+    SpooledJobs(RestHighLevelClient client) {
+      this.client = client;
+    }
+
+    /**
+     * Adds the job indexing the corpus described by {@code jobParameters}, which counts its
+     * documents in {@code progress}.
+     */
+    SpooledJobs add(Parameters jobParameters, IndexingProgress progress) throws IOException {
+      final InceptionIndexTemplate indexTemplate =
+          jobParameters.getOptionalBoolean(PARAM_CREATE_INDEX).or(false)
+              && !jobParameters.getOptionalBoolean(PARAM_DRY_RUN).or(false)
+              ? buildIndexTemplate(jobParameters) : null;
+      jobsByIndex.putIfAbsent(jobParameters.getString(PARAM_INDEX_NAME),
+          new SpooledJob(indexTemplate, progress,
+              jobParameters.isPresent(PARAM_PASSAGE_LENGTH)));
+      return this;
+    }
+
+    @Override
+    public void prepareIndex(String index) throws IOException {
+      final SpooledJob job = jobsByIndex.get(index);
+      if (job != null && job.indexTemplate != null) {
+        job.indexTemplate.createIndexIfAbsent(client, index);
+      }
+    }
+
+    @Override
+    public void documentsFailed(String index, List<String> documentIds) {
+      final SpooledJob job = jobsByIndex.get(index);
+      if (job != null) {
+        // counted in the same unit as IndexingProgress.totalDocs, as in collectFinishedBulks
+        job.progress.countFailures(job.passages
+            ? (int) documentIds.stream().map(ArticlePassages::parentIdOf).distinct().count()
+            : documentIds.size());
+      }
+    }
+
+    private static final class SpooledJob {
+
+      @Nullable
+      private final InceptionIndexTemplate indexTemplate;
+
+      private final IndexingProgress progress;
+
+      private final boolean passages;
+
+      private SpooledJob(@Nullable InceptionIndexTemplate indexTemplate,
+          IndexingProgress progress, boolean passages) {
+        this.indexTemplate = indexTemplate;
+        this.progress = progress;
+        this.passages = passages;
+      }
+    }
+  }
+
+  /**
+   * Indexes all the articles from a single file of the corpus.
+   */
+  interface CorpusFileIndexer {
+
+    /**
+     * Returns whether indexing should continue on to the remaining corpus files. The
+     * {@code articleSource} will be closed.
+     */
+    boolean index(Path corpusFile, ArticleSource articleSource) throws Exception;
+  }
+
+  /**
+   * The template given by {@code indexTemplate}, {@code numberOfShards} and
+   * {@code numberOfReplicas}, which {@link BuildOfflineLuceneIndex} also accepts.
+   */
+  static InceptionIndexTemplate buildIndexTemplate(Parameters parameters)
+      throws IOException {
+    InceptionIndexTemplate template;
+    if (parameters.isPresent(PARAM_INDEX_TEMPLATE)) {
+      template = InceptionIndexTemplate.fromFile(parameters.getExistingFile(PARAM_INDEX_TEMPLATE));
+    } else {
+      template = InceptionIndexTemplate.loadDefault();
+    }
+    // the template's own shard settings apply unless these are given
+    if (parameters.isPresent(PARAM_NUMBER_OF_SHARDS)) {
+      template = template.withNumberOfShards(
+          parameters.getPositiveInteger(PARAM_NUMBER_OF_SHARDS));
+    }
+    if (parameters.isPresent(PARAM_NUMBER_OF_REPLICAS)) {
+      template = template.withNumberOfReplicas(parameters.getInteger(PARAM_NUMBER_OF_REPLICAS));
+    }
+    return template;
+  }
+
+  static RetryingBulkSubmitter buildBulkSubmitter(Parameters parameters,
+      RestHighLevelClient client) {
+    return new RetryingBulkSubmitter(client,
+        parameters.getOptionalInteger(PARAM_BULK_MAX_RETRIES).or(5),
+        parameters.getOptionalInteger(PARAM_BULK_INITIAL_BACKOFF_MILLIS).or(500));
+  }
+
+  /**
+   * Opens the spool for undeliverable bulk requests of {@code jobs}, or returns null if none was
+   * requested.
+   */
+  @Nullable
+  static BulkSpool buildBulkSpool(Parameters parameters, RestHighLevelClient client,
+      SpooledJobs jobs) throws IOException {
+    if (!parameters.isPresent(PARAM_SPOOL_DIRECTORY)) {
+      return null;
+    }
+    return BulkSpool.open(parameters.getCreatableDirectory(PARAM_SPOOL_DIRECTORY).toPath(),
+        buildBulkSubmitter(parameters, client), jobs,
+        parameters.getOptionalPositiveInteger(PARAM_SPOOL_SEGMENT_MB).or(64) * 1024L * 1024L,
+        TimeUnit.SECONDS.toMillis(
+            parameters.getOptionalPositiveInteger(PARAM_SPOOL_RETRY_SECONDS).or(30)));
+  }
+
+  static RestHighLevelClient buildElasticSearchClient(Parameters parameters) {
+    return buildElasticSearchClient(parameters, DEFAULT_MAX_CONNECTIONS);
+  }
+
+  /**
+   * Like {@link #buildElasticSearchClient(Parameters)}, but with a connection pool large enough
+   * for {@code maxConcurrentRequests} requests to be in flight at once.
+   */
+  static RestHighLevelClient buildElasticSearchClient(Parameters parameters,
+      int maxConcurrentRequests) {
+    final int maxConnections = Math.max(DEFAULT_MAX_CONNECTIONS, maxConcurrentRequests);
     return new RestHighLevelClient(
             RestClient.builder(
                     new HttpHost(
@@ -237,32 +725,51 @@ public class IndexGigawordWithElasticSearch {
                             parameters
                                     .getOptionalPositiveInteger(PARAM_PORT_SECONDARY)
                                     .or(DEFAULT_PORT_SEC),
-                            "http")));
+                            "http"))
+                    .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                            .setMaxConnTotal(maxConnections)
+                            .setMaxConnPerRoute(maxConnections)));
   }
 
   /**
    * Indexes the provided documents.
    *
+   * If {@code passageLength} is positive, each document is split into passages which are indexed
+   * separately and the sentence limit is not applied.
+   *
    * Returns whether or not the indexing process should continue.
    */
   private static boolean index(
-      RestHighLevelClient client,
+      RetryingBulkSubmitter bulkSubmitter,
+      @Nullable BulkSpool spool,
+      BoundedIoExecutor bulkExecutor,
       Iterable<List<Article>> iterator,
       String indexName,
       String lang,
       double fractionDocAllowToFail,
       int sentenceLimit,
-          boolean dryRun) throws IOException {
+      int passageLength,
+      boolean dryRun,
+      IndexingProgress progress,
+      OptionalInt maxDocumentsToIndex) throws IOException {
+    final List<Future<List<BulkItemResponse.Failure>>> pendingBulks = new ArrayList<>();
     for (List<Article> articles : iterator) {
       final BulkRequest bulkRequest = new BulkRequest();
       for (Article article : articles) {
         if (article.failed()) { // error occurred
-          indexFailed += 1;
-          if ((double)indexFailed/(double)(totalDoc) > fractionDocAllowToFail) {
-            throw new RuntimeException("Failed documents exceeded threshold");
+          progress.countFailures(1);
+          progress.checkFailureThreshold(fractionDocAllowToFail);
+        } else if (passageLength > 0) {
+          if (!dryRun) {
+            for (ArticlePassages.Passage passage : ArticlePassages.split(article, passageLength)) {
+              XContentBuilder sourceBuilder =
+                  buildPassageSourceObject(passage, lang, "", new Date().toString(), "");
+              bulkRequest.add(
+                  new IndexRequest(indexName, "texts", passage.getId()).source(sourceBuilder));
+            }
           }
         } else if (article.getSegments() > sentenceLimit) {
-          indexFailed += 1;
+          progress.countFailures(1);
           log.warn("Document not indexed because it exceeded the size limit of {}: {}, {}",
               sentenceLimit , article.getSegments(), article.getId());
         } else if (!dryRun) {
@@ -271,22 +778,107 @@ public class IndexGigawordWithElasticSearch {
           bulkRequest.add(
               new IndexRequest(indexName, "texts", article.getId()).source(sourceBuilder));
         }
-        totalDoc += 1;
+        progress.countDocument();
       }
       if (bulkRequest.numberOfActions() > 0) {
-        BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
-        if (bulkResponse.hasFailures()) {
-          throw new RuntimeException(bulkResponse.buildFailureMessage());
-        }
+        // rejected documents are retried; only those which still fail count as failed.
+        // This blocks if bulkConcurrency requests are already in flight.
+        pendingBulks.add(
+            bulkExecutor.submit(() -> deliverBulk(bulkSubmitter, spool, bulkRequest)));
       }
+      collectFinishedBulks(pendingBulks, progress, passageLength > 0, fractionDocAllowToFail,
+          false);
 
-      if (maxDocumentsToIndex.isPresent() && totalDoc >= maxDocumentsToIndex.getAsInt()) {
+      if (maxDocumentsToIndex.isPresent()
+          && progress.totalDocs() >= maxDocumentsToIndex.getAsInt()) {
+        collectFinishedBulks(pendingBulks, progress, passageLength > 0, fractionDocAllowToFail,
+            true);
         return false;
       }
     }
+    collectFinishedBulks(pendingBulks, progress, passageLength > 0, fractionDocAllowToFail,
+        true);
     return true;
   }
 
+  /**
+   * Sends {@code bulkRequest} to the cluster, returning the failures of documents which could not
+   * be indexed.
+   *
+   * If there is a {@code spool}, the request is spooled instead if the cluster is unavailable, and
+   * documents which the cluster is still rejecting after all retries are spooled rather than
+   * counted as failures. While the spool has a backlog, requests go straight to it. A request
+   * which the cluster refuses outright for any other reason (e.g. {@code 413} because it is too
+   * large) would be refused again on replay, so all its documents count as failed instead.
+   */
+  private static List<BulkItemResponse.Failure> deliverBulk(RetryingBulkSubmitter bulkSubmitter,
+      @Nullable BulkSpool spool, BulkRequest bulkRequest) throws IOException {
+    if (spool == null) {
+      return bulkSubmitter.submit(bulkRequest);
+    }
+    if (spool.hasBacklog()) {
+      spool.append(bulkRequest);
+      return ImmutableList.of();
+    }
+    try {
+      final BulkRequest undelivered = new BulkRequest();
+      final List<BulkItemResponse.Failure> failures =
+          bulkSubmitter.submit(bulkRequest, undelivered);
+      if (undelivered.numberOfActions() > 0) {
+        spool.append(undelivered);
+      }
+      return failures;
+    } catch (IOException | ElasticsearchException e) {
+      if (!RetryingBulkSubmitter.isClusterUnavailable(e)) {
+        log.warn("Bulk request of {} documents was refused: {}", bulkRequest.numberOfActions(),
+            e.toString());
+        return RetryingBulkSubmitter.failuresOfRefusedRequest(bulkRequest, e);
+      }
+      log.warn("Could not deliver bulk request, spooling it: {}", e.toString());
+      spool.append(bulkRequest);
+      return ImmutableList.of();
+    }
+  }
+
+  /**
+   * Counts the documents which failed in those of {@code pendingBulks} which have finished and
+   * removes them from the list. If {@code waitForAll}, first waits for all of them to finish.
+   *
+   * If {@code passages}, the bulk items are passages, and a document counts as failed once however
+   * many of its passages failed, so failures are counted in the same unit as
+   * {@link IndexingProgress#totalDocs()}.
+   */
+  private static void collectFinishedBulks(
+      List<Future<List<BulkItemResponse.Failure>>> pendingBulks, IndexingProgress progress,
+      boolean passages, double fractionDocAllowToFail, boolean waitForAll) throws IOException {
+    final Iterator<Future<List<BulkItemResponse.Failure>>> it = pendingBulks.iterator();
+    while (it.hasNext()) {
+      final Future<List<BulkItemResponse.Failure>> pendingBulk = it.next();
+      if (!waitForAll && !pendingBulk.isDone()) {
+        continue;
+      }
+      final int permanentFailures;
+      try {
+        final List<BulkItemResponse.Failure> failures = pendingBulk.get();
+        // all the passages of a document are in the same bulk request
+        permanentFailures = passages
+            ? (int) failures.stream().map(failure -> ArticlePassages.parentIdOf(failure.getId()))
+                .distinct().count()
+            : failures.size();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while waiting for bulk request", e);
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), IOException.class);
+        throw new RuntimeException(e.getCause());
+      }
+      it.remove();
+      progress.countFailures(permanentFailures);
+    }
+    // this also catches documents which have since failed on replay from the spool
+    progress.checkFailureThreshold(fractionDocAllowToFail);
+  }
+
 
   /**
    * The source format is according to Inception's ElasticSearch-based external search.
@@ -297,7 +889,7 @@ public class IndexGigawordWithElasticSearch {
    * <p>Reference Inception's source code for ElasticSearchSource:
    * https://github.com/inception-project/inception/blob/master/inception-external-search-elastic/src/main/java/de/tudarmstadt/ukp/inception/externalsearch/elastic/model/ElasticSearchSource.java
    */
-  private static XContentBuilder buildSourceObject(
+  static XContentBuilder buildSourceObject(
       Article article, String language, String source, String timestamp, String uri)
       throws IOException {
 
@@ -315,4 +907,31 @@ public class IndexGigawordWithElasticSearch {
         .endObject()
         .endObject();
   }
+
+  /**
+   * Like {@link #buildSourceObject(Article, String, String, String, String)}, but for a single
+   * passage of a document. In addition to the usual metadata, we record the ID of the document the
+   * passage was taken from and the passage's character offsets within it.
+   */
+  static XContentBuilder buildPassageSourceObject(
+      ArticlePassages.Passage passage, String language, String source, String timestamp,
+      String uri) throws IOException {
+
+    return XContentFactory.jsonBuilder()
+        .startObject()
+        .startObject("doc")
+        .field("text", passage.getText())
+        .endObject()
+        .startObject("metadata")
+        .field("id", passage.getId())
+        .field("language", language)
+        .field("source", source)
+        .field("timestamp", timestamp)
+        .field("uri", uri)
+        .field("parent_id", passage.getParentId())
+        .field("begin", passage.getBegin())
+        .field("end", passage.getEnd())
+        .endObject()
+        .endObject();
+  }
 }
@@ -0,0 +1,312 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
+import edu.isi.nlp.parameters.Parameters;
+import edu.isi.vista.corpus.BoundedIoExecutor;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several indexing jobs, each described by a parameter file for
+ * {@link IndexGigawordWithElasticSearch}, at the same time in a single JVM.
+ *
+ * <p>Running the jobs together lets them share one Elastic Search client and one limit on bulk
+ * requests in flight, so together they put no more load on the cluster than
+ * {@code bulkConcurrency} allows, while corpora which are slow to parse no longer hold up the
+ * others. Each job keeps its own index name, format, language and other indexing parameters, and
+ * its own failure threshold: a job which fails is reported without stopping the others.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code jobs}: comma-separated paths of the indexer parameter files to run. Their
+ *   connection, bulk and spool parameters are ignored in favour of those given here. Watch mode
+ *   is not supported.</li>
+ *   <li>{@code maxConcurrentJobs} (optional, default all of them): how many jobs may be parsing
+ *   their corpora at once</li>
+ *   <li>{@code bulkConcurrency} (optional, default the number of jobs): how many bulk requests may
+ *   be in flight at once across all jobs</li>
+ *   <li>{@code progressReportSeconds} (optional, default 60): how often to log the combined
+ *   progress of all jobs</li>
+ *   <li>{@code metricsFile} (optional): if specified, a tab-separated report of each job's
+ *   document counts and throughput is written here at the end</li>
+ *   <li>the connection ({@code primaryHostName} etc.), {@code bulkMaxRetries},
+ *   {@code bulkInitialBackoffMillis} and spool parameters of {@link IndexGigawordWithElasticSearch},
+ *   which apply to all jobs</li>
+ * </ul>
+ *
+ * <p>The program exits with status 1 if any job failed.
+ */
+public class IndexMultipleCorpora {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexMultipleCorpora.class);
+
+  private static final String USAGE = "IndexMultipleCorpora param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_JOBS = "jobs";
+
+  private static final String PARAM_MAX_CONCURRENT_JOBS = "maxConcurrentJobs";
+
+  private static final String PARAM_BULK_CONCURRENCY = "bulkConcurrency";
+
+  private static final String PARAM_PROGRESS_REPORT_SECONDS = "progressReportSeconds";
+
+  private static final String PARAM_METRICS_FILE = "metricsFile";
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    try {
+      if (!indexAll(parameters)) {
+        System.exit(1);
+      }
+    } catch (Exception e) {
+      log.error("Indexing failed with an exception:", e);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Runs all the jobs, returning whether they all succeeded.
+   */
+  private static boolean indexAll(Parameters parameters) throws Exception {
+    final List<IndexingJob> jobs = new ArrayList<>();
+    for (String jobParamsPath : parameters.getStringList(PARAM_JOBS)) {
+      final File jobParamsFile = new File(jobParamsPath.trim());
+      if (!jobParamsFile.isFile()) {
+        throw new RuntimeException("Job parameter file " + jobParamsFile + " does not exist");
+      }
+      final Parameters jobParameters = Parameters.loadSerifStyle(jobParamsFile);
+      if (IndexGigawordWithElasticSearch.isWatchMode(jobParameters)) {
+        throw new RuntimeException("Watch mode is not supported when running several jobs; "
+            + "run " + jobParamsFile + " on its own instead");
+      }
+      jobs.add(new IndexingJob(jobParamsFile, jobParameters));
+    }
+    if (jobs.isEmpty()) {
+      throw new RuntimeException("No jobs given in " + PARAM_JOBS);
+    }
+
+    final int maxConcurrentJobs =
+        parameters.getOptionalPositiveInteger(PARAM_MAX_CONCURRENT_JOBS).or(jobs.size());
+    final int bulkConcurrency =
+        parameters.getOptionalPositiveInteger(PARAM_BULK_CONCURRENCY).or(jobs.size());
+    log.info("Running {} indexing jobs, at most {} at once, with at most {} bulk requests in "
+        + "flight", jobs.size(), maxConcurrentJobs, bulkConcurrency);
+
+    final ScheduledExecutorService progressReporter =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          final Thread thread = new Thread(runnable, "progress-report");
+          thread.setDaemon(true);
+          return thread;
+        });
+    final long reportSeconds =
+        parameters.getOptionalPositiveInteger(PARAM_PROGRESS_REPORT_SECONDS).or(60);
+    progressReporter.scheduleAtFixedRate(() -> logProgress(jobs), reportSeconds, reportSeconds,
+        TimeUnit.SECONDS);
+
+    final ExecutorService jobExecutor = Executors.newFixedThreadPool(maxConcurrentJobs);
+    // closed in reverse order, so all bulk requests are finished before the spool is drained
+    try (RestHighLevelClient client =
+            IndexGigawordWithElasticSearch.buildElasticSearchClient(parameters, bulkConcurrency);
+        BulkSpool spool = IndexGigawordWithElasticSearch.buildBulkSpool(parameters, client,
+            spooledJobs(client, jobs));
+        BoundedIoExecutor bulkExecutor = BoundedIoExecutor.create("bulk", bulkConcurrency)) {
+      // built from our parameters rather than each job's, so the retry settings apply to all jobs
+      final RetryingBulkSubmitter bulkSubmitter =
+          IndexGigawordWithElasticSearch.buildBulkSubmitter(parameters, client);
+      final List<Future<?>> runningJobs = new ArrayList<>();
+      for (IndexingJob job : jobs) {
+        runningJobs.add(
+            jobExecutor.submit(() -> job.run(client, bulkSubmitter, spool, bulkExecutor)));
+      }
+      for (Future<?> runningJob : runningJobs) {
+        try {
+          runningJob.get();
+        } catch (ExecutionException e) {
+          // jobs record their own failures, so this is unexpected
+          throw new RuntimeException(e.getCause());
+        }
+      }
+    } finally {
+      jobExecutor.shutdownNow();
+      progressReporter.shutdownNow();
+    }
+
+    // documents which failed on replay from the spool are only all counted once it is closed
+    for (IndexingJob job : jobs) {
+      job.checkFailureThreshold();
+    }
+    logReport(jobs);
+    if (parameters.isPresent(PARAM_METRICS_FILE)) {
+      final File metricsFile = parameters.getCreatableFile(PARAM_METRICS_FILE);
+      Files.write(metricsFile.toPath(), metricsReport(jobs), StandardCharsets.UTF_8);
+      log.info("Wrote indexing metrics to {}", metricsFile);
+    }
+    return jobs.stream().allMatch(IndexingJob::succeeded);
+  }
+
+  private static IndexGigawordWithElasticSearch.SpooledJobs spooledJobs(
+      RestHighLevelClient client, List<IndexingJob> jobs) throws IOException {
+    final IndexGigawordWithElasticSearch.SpooledJobs ret =
+        new IndexGigawordWithElasticSearch.SpooledJobs(client);
+    for (IndexingJob job : jobs) {
+      ret.add(job.parameters, job.progress);
+    }
+    return ret;
+  }
+
+  private static void logProgress(List<IndexingJob> jobs) {
+    int totalDocs = 0;
+    int failedDocs = 0;
+    int runningJobs = 0;
+    for (IndexingJob job : jobs) {
+      totalDocs += job.progress.totalDocs();
+      failedDocs += job.progress.failedDocs();
+      if (job.isRunning()) {
+        runningJobs += 1;
+      }
+    }
+    log.info("Progress: {} jobs running, {} documents read by all jobs, {} failed", runningJobs,
+        totalDocs, failedDocs);
+  }
+
+  private static void logReport(List<IndexingJob> jobs) {
+    int indexedDocs = 0;
+    int failedDocs = 0;
+    for (IndexingJob job : jobs) {
+      log.info("{}: {}", job.name, job.summary());
+      indexedDocs += job.progress.indexedDocs();
+      failedDocs += job.progress.failedDocs();
+    }
+    log.info("All jobs: {} documents indexed, {} failed; {} of {} jobs succeeded", indexedDocs,
+        failedDocs, jobs.stream().filter(IndexingJob::succeeded).count(), jobs.size());
+  }
+
+  private static List<String> metricsReport(List<IndexingJob> jobs) {
+    final Joiner tabJoiner = Joiner.on('\t');
+    final List<String> ret = new ArrayList<>();
+    ret.add(tabJoiner.join("job", "index", "format", "lang", "status", "documents", "indexed",
+        "failed", "seconds", "documentsPerSecond"));
+    for (IndexingJob job : jobs) {
+      final double seconds = job.elapsedSeconds();
+      ret.add(tabJoiner.join(job.name, job.indexName, job.format, job.lang,
+          job.succeeded() ? "succeeded" : "failed", job.progress.totalDocs(),
+          job.progress.indexedDocs(), job.progress.failedDocs(), String.format("%.1f", seconds),
+          String.format("%.1f", seconds > 0 ? job.progress.totalDocs() / seconds : 0.0)));
+    }
+    return ret;
+  }
+
+  /**
+   * A single corpus to index, and how its indexing went.
+   */
+  private static final class IndexingJob {
+
+    private final String name;
+
+    private final Parameters parameters;
+
+    private final String indexName;
+
+    private final String format;
+
+    private final String lang;
+
+    private final IndexGigawordWithElasticSearch.IndexingProgress progress =
+        new IndexGigawordWithElasticSearch.IndexingProgress();
+
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+
+    private volatile boolean finished = false;
+
+    private volatile Exception failure = null;
+
+    private IndexingJob(File paramsFile, Parameters parameters) {
+      this.name = paramsFile.getName().replaceFirst("\\.params$", "");
+      this.parameters = parameters;
+      this.indexName = parameters.getString(IndexGigawordWithElasticSearch.PARAM_INDEX_NAME);
+      this.format = parameters.getString(IndexGigawordWithElasticSearch.PARAM_FORMAT);
+      this.lang =
+          parameters.getOptionalString(IndexGigawordWithElasticSearch.PARAM_LANGUAGE).or("EN");
+    }
+
+    private void run(RestHighLevelClient client, RetryingBulkSubmitter bulkSubmitter,
+        BulkSpool spool, BoundedIoExecutor bulkExecutor) {
+      log.info("Starting job {}: indexing {} {} documents into {}", name, lang, format, indexName);
+      synchronized (stopwatch) {
+        stopwatch.start();
+      }
+      try {
+        IndexGigawordWithElasticSearch.indexCorpus(parameters, client, bulkSubmitter, spool,
+            bulkExecutor, progress);
+        log.info("Finished job {}: {}", name, summary());
+      } catch (Exception e) {
+        failure = e;
+        log.error("Job " + name + " failed with an exception:", e);
+      } finally {
+        synchronized (stopwatch) {
+          stopwatch.stop();
+        }
+        finished = true;
+      }
+    }
+
+    /**
+     * Fails a job which finished without error if its failure threshold has been exceeded since.
+     */
+    private void checkFailureThreshold() {
+      if (succeeded() && progress.exceedsFailureThreshold(
+          IndexGigawordWithElasticSearch.fractionDocsAllowedToFail(parameters))) {
+        failure = new RuntimeException("Failed documents exceeded threshold");
+        log.error("Job {} failed: too many of its spooled documents failed on replay", name);
+      }
+    }
+
+    private boolean isRunning() {
+      synchronized (stopwatch) {
+        return stopwatch.isRunning();
+      }
+    }
+
+    private boolean succeeded() {
+      return finished && failure == null;
+    }
+
+    private double elapsedSeconds() {
+      synchronized (stopwatch) {
+        return stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000.0;
+      }
+    }
+
+    private String summary() {
+      final double seconds = elapsedSeconds();
+      return String.format("%s; %d documents indexed, %d failed in %.0f s (%.1f documents/s)",
+          succeeded() ? "succeeded" : failure != null ? "failed: " + failure : "not finished",
+          progress.indexedDocs(), progress.failedDocs(), seconds,
+          seconds > 0 ? progress.totalDocs() / seconds : 0.0);
+    }
+  }
+}
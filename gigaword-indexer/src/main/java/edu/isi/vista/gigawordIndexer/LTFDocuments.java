@@ -7,28 +7,36 @@ import edu.isi.nlp.corpora.LctlText;
 import edu.isi.nlp.corpora.LtfDocument;
 import edu.isi.nlp.corpora.LtfReader;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkState;
 import static java.util.stream.Collectors.toList;
 
 public class LTFDocuments implements ArticleSource {
   private static final Logger log = LoggerFactory.getLogger(LTFDocuments.class);
 
-  private ZipFile zipFile;
+  // provides the bytes of each LTF XML file in the zip
+  private final Supplier<Iterator<byte[]>> ltfEntries;
+
+  private final Closeable zip;
 
   @Override
   public void close() throws IOException {
-    zipFile.close();
+    zip.close();
   }
 
   @Override
@@ -36,12 +44,62 @@ public class LTFDocuments implements ArticleSource {
     return new ArticlesIterator();
   }
 
-  private LTFDocuments(ZipFile zipFile) {
-    this.zipFile = zipFile;
+  private LTFDocuments(Supplier<Iterator<byte[]>> ltfEntries, Closeable zip) {
+    this.ltfEntries = ltfEntries;
+    this.zip = zip;
   }
 
   static LTFDocuments fromLTFZippedFile(Path p) throws IOException {
-    return new LTFDocuments(new ZipFile(p.toFile(), StandardCharsets.UTF_8));
+    final ZipFile zipFile = new ZipFile(p.toFile(), StandardCharsets.UTF_8);
+    return new LTFDocuments(
+        () -> zipFile.stream()
+            .filter(LTFDocuments::isLtfEntry)
+            .map(entry -> {
+              try (InputStream is = zipFile.getInputStream(entry)) {
+                return IOUtils.toByteArray(is);
+              } catch (IOException ioe) {
+                throw new RuntimeException("Exception loading LTFs", ioe);
+              }
+            })
+            .iterator(),
+        zipFile);
+  }
+
+  /**
+   * Reads a zip of LTF files from a stream, e.g. a member of a {@link CorpusArchive}. Unlike
+   * documents from {@link #fromLTFZippedFile(Path)}, these can only be iterated over once. The
+   * underlying stream is not closed.
+   */
+  static LTFDocuments fromLTFZippedStream(InputStream in) {
+    final ZipInputStream zipStream = new ZipInputStream(in, StandardCharsets.UTF_8);
+    final Iterator<byte[]> entries = new AbstractIterator<byte[]>() {
+      @Override
+      protected byte[] computeNext() {
+        try {
+          ZipEntry entry;
+          while ((entry = zipStream.getNextEntry()) != null) {
+            if (isLtfEntry(entry)) {
+              return IOUtils.toByteArray(zipStream);
+            }
+          }
+          return endOfData();
+        } catch (IOException ioe) {
+          throw new RuntimeException("Exception loading LTFs", ioe);
+        }
+      }
+    };
+    final AtomicBoolean iterated = new AtomicBoolean(false);
+    return new LTFDocuments(
+        () -> {
+          checkState(!iterated.getAndSet(true), "LTF zip streams can only be iterated once");
+          return entries;
+        },
+        // the stream belongs to the caller
+        () -> { });
+  }
+
+  private static boolean isLtfEntry(ZipEntry entry) {
+    return entry.getName() != null && entry.getName().endsWith(".ltf.xml");
   }
 
 
@@ -51,10 +109,7 @@ public class LTFDocuments implements ArticleSource {
     // we iterate at two levels here.
     // At the top level, we iterate over entries in the zip file
     // which correspond to LTF XML files
-    private Iterator<? extends ZipEntry> ltfZipEntries = zipFile.stream()
-            .filter(
-                    entry -> entry.getName() != null && entry.getName().endsWith(".ltf.xml"))
-            .iterator();
+    private Iterator<byte[]> ltfZipEntries = ltfEntries.get();
 
     // at the next level, we iterate over ltf documents within each LTF XML file
     // (usually there is only one, but in theory there could be multiple)
@@ -64,37 +119,30 @@ public class LTFDocuments implements ArticleSource {
 
     @Override
     protected Article computeNext() {
-      try {
-        // if we run out of documents in the current zip file entry...
-        while (!articlesInLtfDocIterator.hasNext()) {
-          // we should move on to the next zip entry...
-          if (ltfZipEntries.hasNext()) {
-            articlesInLtfDocIterator = articlesForLtfEntry(ltfZipEntries.next());
-          } else {
-            // and if we are out of zip entries, we are out of documents.
-            return endOfData();
-          }
+      // if we run out of documents in the current zip file entry...
+      while (!articlesInLtfDocIterator.hasNext()) {
+        // we should move on to the next zip entry...
+        if (ltfZipEntries.hasNext()) {
+          articlesInLtfDocIterator = articlesForLtfEntry(ltfZipEntries.next());
+        } else {
+          // and if we are out of zip entries, we are out of documents.
+          return endOfData();
         }
-
-        return articlesInLtfDocIterator.next();
-      } catch (IOException ioe) {
-        throw new RuntimeException("Exception loading LTFs", ioe);
       }
+
+      return articlesInLtfDocIterator.next();
     }
 
-    private Iterator<Article> articlesForLtfEntry(ZipEntry entry) throws IOException {
-      try (InputStream is = zipFile.getInputStream(entry)) {
-        byte[] bytes = IOUtils.toByteArray(is);
-        try {
-          LctlText lctlText = reader.read(ByteSource.wrap(bytes).asCharSource(StandardCharsets.UTF_8));
-          return lctlText.getDocuments().stream()
-                  .map(
-                          doc -> new Article(doc.getId(),
-                                  doc.getOriginalText().content().utf16CodeUnits(),
-                                  doc.getSegments().size())).collect(toList()).iterator();
-        } catch (Exception e) {
-            return ImmutableList.of(Article.failedArticle("failed", "failed")).iterator();
-        }
+    private Iterator<Article> articlesForLtfEntry(byte[] bytes) {
+      try {
+        LctlText lctlText = reader.read(ByteSource.wrap(bytes).asCharSource(StandardCharsets.UTF_8));
+        return lctlText.getDocuments().stream()
+                .map(
+                        doc -> new Article(doc.getId(),
+                                doc.getOriginalText().content().utf16CodeUnits(),
+                                doc.getSegments().size())).collect(toList()).iterator();
+      } catch (Exception e) {
+          return ImmutableList.of(Article.failedArticle("failed", "failed")).iterator();
       }
     }
   }
@@ -0,0 +1,172 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.google.common.collect.ImmutableList;
+import org.elasticsearch.action.admin.cluster.snapshots.create.CreateSnapshotResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.node.InternalSettingsPreparer;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeValidationException;
+import org.elasticsearch.snapshots.SnapshotInfo;
+import org.elasticsearch.snapshots.SnapshotState;
+import org.elasticsearch.transport.Netty4Plugin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.OptionalInt;
+
+/**
+ * Builds an Elastic Search snapshot of an index without a cluster, by indexing into a single
+ * Elastic Search node running inside this process and snapshotting the result into a shared file
+ * system ({@code fs}) repository.
+ *
+ * <p>Since Elastic Search itself writes the shards, with their sequence numbers, versions and
+ * shard state, the repository can be registered with any Elastic Search 6 cluster and the snapshot
+ * restored from it as usual. The node only listens for transport connections on localhost, has no
+ * HTTP interface and keeps its data in a scratch directory, which can be deleted once the snapshot
+ * has been written.
+ */
+final class OfflineSnapshotBuilder implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(OfflineSnapshotBuilder.class);
+
+  // the name the repository is registered under in the embedded node; it is not part of the
+  // snapshot, so the cluster it is restored into may call it anything
+  private static final String REPOSITORY_NAME = "offline";
+
+  private final Node node;
+
+  private final Client client;
+
+  private OfflineSnapshotBuilder(Node node) {
+    this.node = node;
+    this.client = node.client();
+  }
+
+  /**
+   * Starts a node keeping its data in {@code scratchDirectory} and writing snapshots to
+   * {@code repositoryDirectory}.
+   */
+  static OfflineSnapshotBuilder start(Path scratchDirectory, Path repositoryDirectory)
+      throws IOException, NodeValidationException {
+    Files.createDirectories(scratchDirectory);
+    Files.createDirectories(repositoryDirectory);
+    final Settings settings = Settings.builder()
+        .put("cluster.name", "offline-snapshot-builder")
+        .put("node.name", "offline-snapshot-builder")
+        .put("path.home", scratchDirectory.toAbsolutePath().toString())
+        .put("path.data", scratchDirectory.resolve("data").toAbsolutePath().toString())
+        .put("path.repo", repositoryDirectory.toAbsolutePath().toString())
+        .put("discovery.type", "single-node")
+        .put("network.host", "127.0.0.1")
+        .put("http.enabled", false)
+        .build();
+    log.info("Starting an embedded Elastic Search node in {}", scratchDirectory);
+    final OfflineSnapshotBuilder ret =
+        new OfflineSnapshotBuilder(new EmbeddedNode(settings).start());
+    ret.client.admin().cluster().preparePutRepository(REPOSITORY_NAME)
+        .setType("fs")
+        .setSettings(Settings.builder()
+            .put("location", repositoryDirectory.toAbsolutePath().toString()))
+        .get();
+    return ret;
+  }
+
+  /**
+   * Creates {@code indexName} from {@code template}. It is not refreshed until
+   * {@link #snapshot(String, String, OptionalInt)}, since nothing searches it before then.
+   */
+  void createIndex(String indexName, InceptionIndexTemplate template) {
+    client.admin().indices().prepareCreate(indexName)
+        .setSource(template.toJson(), XContentType.JSON)
+        .get();
+    client.admin().indices().prepareUpdateSettings(indexName)
+        .setSettings(Settings.builder().put("index.refresh_interval", "-1"))
+        .get();
+    // replicas are never assigned on a single node, so the index will only become yellow
+    client.admin().cluster().prepareHealth(indexName).setWaitForYellowStatus().get();
+  }
+
+  /**
+   * Indexes {@code bulkRequest}, returning the failures of documents which could not be indexed.
+   * This may be called from several threads at once.
+   */
+  List<BulkItemResponse.Failure> index(BulkRequest bulkRequest) {
+    final BulkResponse response = client.bulk(bulkRequest).actionGet();
+    if (!response.hasFailures()) {
+      return ImmutableList.of();
+    }
+    final ImmutableList.Builder<BulkItemResponse.Failure> ret = ImmutableList.builder();
+    for (BulkItemResponse item : response.getItems()) {
+      if (item.isFailed()) {
+        log.warn("Failed to index document {}: {}", item.getId(), item.getFailureMessage());
+        ret.add(item.getFailure());
+      }
+    }
+    return ret.build();
+  }
+
+  /**
+   * Writes a snapshot of {@code indexName} called {@code snapshotName} to the repository, after
+   * restoring the index's default refresh interval and, if {@code maxSegments} is present, force
+   * merging it down to that many segments per shard.
+   */
+  SnapshotInfo snapshot(String indexName, String snapshotName, OptionalInt maxSegments) {
+    client.admin().indices().prepareUpdateSettings(indexName)
+        .setSettings(Settings.builder().putNull("index.refresh_interval"))
+        .get();
+    client.admin().indices().prepareRefresh(indexName).get();
+    if (maxSegments.isPresent()) {
+      log.info("Merging index down to {} segments per shard", maxSegments.getAsInt());
+      client.admin().indices().prepareForceMerge(indexName)
+          .setMaxNumSegments(maxSegments.getAsInt())
+          .get();
+    }
+    client.admin().indices().prepareFlush(indexName).setWaitIfOngoing(true).get();
+
+    log.info("Writing snapshot {} of index {}", snapshotName, indexName);
+    final CreateSnapshotResponse response =
+        client.admin().cluster().prepareCreateSnapshot(REPOSITORY_NAME, snapshotName)
+            .setIndices(indexName)
+            .setIncludeGlobalState(false)
+            .setWaitForCompletion(true)
+            .get();
+    final SnapshotInfo snapshot = response.getSnapshotInfo();
+    if (snapshot.state() != SnapshotState.SUCCESS) {
+      throw new RuntimeException("Snapshot " + snapshotName + " did not succeed: "
+          + snapshot.state() + ", " + snapshot.failedShards() + " shards failed: "
+          + snapshot.reason());
+    }
+    return snapshot;
+  }
+
+  @Override
+  public void close() throws IOException {
+    node.close();
+  }
+
+  /**
+   * A node with the transport it needs to start, which the Elastic Search distribution would
+   * otherwise load as a module.
+   */
+  private static final class EmbeddedNode extends Node {
+
+    private EmbeddedNode(Settings settings) {
+      super(InternalSettingsPreparer.prepareEnvironment(settings, null),
+          ImmutableList.of(Netty4Plugin.class), true);
+    }
+
+    @Override
+    protected void registerDerivedNodeNameWithLogger(String nodeName) {
+      // the node name is always set, so there is nothing to register
+    }
+  }
+}
@@ -0,0 +1,333 @@
+package edu.isi.vista.gigawordIndexer;
+
+import edu.isi.nlp.parameters.Parameters;
+import edu.isi.vista.corpus.BoundedIoExecutor;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that every document of a corpus made it into an index built by
+ * {@link IndexGigawordWithElasticSearch}, and that the index holds nothing else.
+ *
+ * <p>The document IDs of the corpus are read either with the same {@link ArticleSource}s the
+ * indexer uses or from a stored list. The IDs in the index are read with a sliced scroll, each
+ * slice on its own thread, fetching no document sources. Both lists are then sorted and merged,
+ * and the IDs only in the corpus and only in the index are written to files. Holding the IDs takes
+ * about 100 bytes per document, i.e. about 2 GB of heap for both sides of English Gigaword.
+ *
+ * <p>The program takes one argument, a parameter file with the following parameters:
+ * <ul>
+ *   <li>{@code indexName}: the index (or alias) to check</li>
+ *   <li>{@code corpusIdList}: a file listing the document IDs of the corpus, one per line.
+ *   If absent, they are read from {@code corpusDirectoryPath} using {@code format},
+ *   {@code compressed} and {@code lang}, as for {@link IndexGigawordWithElasticSearch}.</li>
+ *   <li>{@code saveCorpusIdList} (optional): if the corpus IDs were read from the corpus, also
+ *   write them here, for use as {@code corpusIdList} in later runs</li>
+ *   <li>{@code passages} (optional, default false): whether the index holds passages (see
+ *   {@code passageLength} for the indexer). If so, the IDs of the documents the passages were taken
+ *   from are compared with the corpus.</li>
+ *   <li>{@code missingIdsFile}: where to write the IDs which are in the corpus but not the
+ *   index</li>
+ *   <li>{@code extraIdsFile}: where to write the IDs which are in the index but not the
+ *   corpus</li>
+ *   <li>{@code scrollSlices} (optional, default 4): how many slices to scroll in parallel. The
+ *   number of shards of the index is a good choice.</li>
+ *   <li>{@code scrollBatchSize} (optional, default 5000): how many IDs to fetch per request</li>
+ *   <li>{@code scrollKeepAliveMinutes} (optional, default 5)</li>
+ * </ul>
+ * The Elastic Search server is specified using the same parameters as for
+ * {@link IndexGigawordWithElasticSearch}. The program exits with status 2 if the corpus and index
+ * differ.
+ */
+public class ReconcileIndexWithCorpus {
+
+  private static final Logger log = LoggerFactory.getLogger(ReconcileIndexWithCorpus.class);
+
+  private static final String USAGE = "ReconcileIndexWithCorpus param_file\n" +
+      "\tSee class Javadoc for parameters";
+
+  private static final String PARAM_INDEX_NAME = "indexName";
+
+  private static final String PARAM_CORPUS_ID_LIST = "corpusIdList";
+
+  private static final String PARAM_SAVE_CORPUS_ID_LIST = "saveCorpusIdList";
+
+  private static final String PARAM_CORPUS_DIRECTORY_PATH = "corpusDirectoryPath";
+
+  private static final String PARAM_FORMAT = "format";
+
+  private static final String PARAM_COMPRESSED = "compressed";
+
+  private static final String PARAM_LANGUAGE = "lang";
+
+  private static final String PARAM_PASSAGES = "passages";
+
+  private static final String PARAM_MISSING_IDS_FILE = "missingIdsFile";
+
+  private static final String PARAM_EXTRA_IDS_FILE = "extraIdsFile";
+
+  private static final String PARAM_SCROLL_SLICES = "scrollSlices";
+
+  private static final String PARAM_SCROLL_BATCH_SIZE = "scrollBatchSize";
+
+  private static final String PARAM_SCROLL_KEEP_ALIVE_MINUTES = "scrollKeepAliveMinutes";
+
+  private static final String PARENT_ID_FIELD = "metadata.parent_id";
+
+  public static void main(String[] argv) throws IOException {
+    Parameters parameters = null;
+
+    if (argv.length == 1) {
+      parameters = Parameters.loadSerifStyle(new File(argv[0]));
+    } else {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+
+    final boolean consistent;
+    final int slices = parameters.getOptionalPositiveInteger(PARAM_SCROLL_SLICES).or(4);
+    try (RestHighLevelClient client =
+        IndexGigawordWithElasticSearch.buildElasticSearchClient(parameters, slices)) {
+      consistent = reconcile(parameters, client, slices);
+    } catch (Exception e) {
+      log.error("Reconciliation failed with an exception:", e);
+      System.exit(1);
+      return;
+    }
+    System.exit(consistent ? 0 : 2);
+  }
+
+  /**
+   * Returns whether the corpus and index contain the same IDs.
+   */
+  private static boolean reconcile(Parameters parameters, RestHighLevelClient client, int slices)
+      throws Exception {
+    final String indexName = parameters.getString(PARAM_INDEX_NAME);
+    final boolean passages = parameters.getOptionalBoolean(PARAM_PASSAGES).or(false);
+    final File missingIdsFile = parameters.getCreatableFile(PARAM_MISSING_IDS_FILE);
+    final File extraIdsFile = parameters.getCreatableFile(PARAM_EXTRA_IDS_FILE);
+    final int batchSize = parameters.getOptionalPositiveInteger(PARAM_SCROLL_BATCH_SIZE).or(5000);
+    final TimeValue keepAlive = TimeValue.timeValueMinutes(
+        parameters.getOptionalPositiveInteger(PARAM_SCROLL_KEEP_ALIVE_MINUTES).or(5));
+
+    // the index is scrolled while the corpus is read, since both mostly wait on I/O
+    final BoundedIoExecutor scrollExecutor = BoundedIoExecutor.create("scroll", slices + 1);
+    final String[] indexIds;
+    final String[] corpusIds;
+    try {
+      final Future<String[]> indexIdsFuture = scrollExecutor.submit(
+          () -> readIndexIds(client, scrollExecutor, indexName, slices, batchSize, keepAlive,
+              passages));
+      corpusIds = sortedDistinct(readCorpusIds(parameters));
+      indexIds = indexIdsFuture.get();
+    } finally {
+      scrollExecutor.close();
+    }
+    log.info("{} distinct IDs in the corpus, {} in index {}", corpusIds.length, indexIds.length,
+        indexName);
+
+    // sorted merge of the two lists
+    int missing = 0;
+    int extra = 0;
+    try (Writer missingOut = Files.newBufferedWriter(missingIdsFile.toPath(),
+        StandardCharsets.UTF_8);
+        Writer extraOut = Files.newBufferedWriter(extraIdsFile.toPath(), StandardCharsets.UTF_8)) {
+      int c = 0;
+      int i = 0;
+      while (c < corpusIds.length || i < indexIds.length) {
+        final int comparison;
+        if (c == corpusIds.length) {
+          comparison = 1;
+        } else if (i == indexIds.length) {
+          comparison = -1;
+        } else {
+          comparison = corpusIds[c].compareTo(indexIds[i]);
+        }
+        if (comparison < 0) {
+          missingOut.write(corpusIds[c++]);
+          missingOut.write('\n');
+          ++missing;
+        } else if (comparison > 0) {
+          extraOut.write(indexIds[i++]);
+          extraOut.write('\n');
+          ++extra;
+        } else {
+          ++c;
+          ++i;
+        }
+      }
+    }
+    log.info("{} IDs are missing from the index (written to {}); {} IDs in the index are not in "
+        + "the corpus (written to {})", missing, missingIdsFile, extra, extraIdsFile);
+    return missing == 0 && extra == 0;
+  }
+
+  private static List<String> readCorpusIds(Parameters parameters) throws Exception {
+    final List<String> ret = new ArrayList<>();
+    if (parameters.isPresent(PARAM_CORPUS_ID_LIST)) {
+      final File idList = parameters.getExistingFile(PARAM_CORPUS_ID_LIST);
+      log.info("Reading corpus IDs from {}", idList);
+      try (BufferedReader in = Files.newBufferedReader(idList.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (!line.trim().isEmpty()) {
+            ret.add(line.trim());
+          }
+        }
+      }
+      return ret;
+    }
+
+    final String format = parameters.getString(PARAM_FORMAT);
+    final boolean compressed = parameters.getOptionalBoolean(PARAM_COMPRESSED).or(true);
+    final String lang = parameters.getOptionalString(PARAM_LANGUAGE).or("EN");
+    final Path corpusPath = new File(parameters.getString(PARAM_CORPUS_DIRECTORY_PATH)).toPath();
+    log.info("Reading corpus IDs from {}", corpusPath);
+    IndexGigawordWithElasticSearch.forEachCorpusFile(corpusPath,
+        IndexGigawordWithElasticSearch.corpusFilePattern(format, lang, compressed), format,
+        compressed, (corpusFile, openedArticleSource) -> {
+          try (ArticleSource articleSource = openedArticleSource) {
+            for (Article article : articleSource) {
+              // failed articles were not indexed, so they will be reported as missing
+              if (article.getId() != null) {
+                ret.add(article.getId());
+              }
+            }
+          }
+          return true;
+        });
+
+    if (parameters.isPresent(PARAM_SAVE_CORPUS_ID_LIST)) {
+      final File idList = parameters.getCreatableFile(PARAM_SAVE_CORPUS_ID_LIST);
+      try (BufferedWriter out = Files.newBufferedWriter(idList.toPath(), StandardCharsets.UTF_8)) {
+        for (String id : ret) {
+          out.write(id);
+          out.newLine();
+        }
+      }
+      log.info("Saved {} corpus IDs to {}", ret.size(), idList);
+    }
+    return ret;
+  }
+
+  /**
+   * Reads all IDs in the index with a sliced scroll, each slice running on {@code executor}. If
+   * {@code passages}, the IDs of the documents the passages were taken from are read instead.
+   */
+  private static String[] readIndexIds(RestHighLevelClient client, BoundedIoExecutor executor,
+      String indexName, int slices, int batchSize, TimeValue keepAlive, boolean passages)
+      throws Exception {
+    log.info("Scrolling index {} with {} slices", indexName, slices);
+    final long start = System.nanoTime();
+    final List<Future<List<String>>> sliceIds = new ArrayList<>();
+    for (int slice = 0; slice < slices; ++slice) {
+      final int sliceId = slice;
+      sliceIds.add(executor.submit(() -> scrollSlice(client, indexName, sliceId, slices,
+          batchSize, keepAlive, passages)));
+    }
+    final List<String> ret = new ArrayList<>();
+    for (Future<List<String>> ids : sliceIds) {
+      ret.addAll(ids.get());
+    }
+    log.info("Read {} IDs from index {} in {} s", ret.size(), indexName,
+        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+    return sortedDistinct(ret);
+  }
+
+  private static List<String> scrollSlice(RestHighLevelClient client, String indexName,
+      int sliceId, int slices, int batchSize, TimeValue keepAlive, boolean passages)
+      throws IOException {
+    final SearchSourceBuilder source = new SearchSourceBuilder()
+        .size(batchSize)
+        // index order is the cheapest order to scroll in
+        .sort("_doc", SortOrder.ASC);
+    if (passages) {
+      source.fetchSource(PARENT_ID_FIELD, null);
+    } else {
+      source.fetchSource(false);
+    }
+    // Elastic Search rejects a slice whose max is 1
+    if (slices > 1) {
+      source.slice(new SliceBuilder(sliceId, slices));
+    }
+
+    final List<String> ret = new ArrayList<>();
+    SearchResponse response = client.search(
+        new SearchRequest(indexName).source(source).scroll(keepAlive), RequestOptions.DEFAULT);
+    String scrollId = response.getScrollId();
+    try {
+      while (response.getHits().getHits().length > 0) {
+        for (SearchHit hit : response.getHits().getHits()) {
+          ret.add(passages ? parentId(hit) : hit.getId());
+        }
+        response = client.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive),
+            RequestOptions.DEFAULT);
+        scrollId = response.getScrollId();
+      }
+    } finally {
+      final ClearScrollRequest clearScroll = new ClearScrollRequest();
+      clearScroll.addScrollId(scrollId);
+      try {
+        client.clearScroll(clearScroll, RequestOptions.DEFAULT);
+      } catch (IOException e) {
+        // the scroll will expire anyway
+        log.warn("Could not clear scroll for slice {}: {}", sliceId, e.toString());
+      }
+    }
+    log.debug("Slice {} of {} had {} hits", sliceId, slices, ret.size());
+    return ret;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static String parentId(SearchHit hit) {
+    final Map<String, Object> metadata =
+        (Map<String, Object>) hit.getSourceAsMap().get("metadata");
+    if (metadata == null || metadata.get("parent_id") == null) {
+      // not a passage, so it is its own parent
+      return hit.getId();
+    }
+    return metadata.get("parent_id").toString();
+  }
+
+  private static String[] sortedDistinct(List<String> ids) {
+    final String[] sorted = ids.toArray(new String[0]);
+    ids.clear();
+    Arrays.parallelSort(sorted);
+    int distinct = 0;
+    for (int i = 0; i < sorted.length; ++i) {
+      if (i == 0 || !sorted[i].equals(sorted[distinct - 1])) {
+        sorted[distinct++] = sorted[i];
+      }
+    }
+    if (distinct < sorted.length) {
+      log.info("Ignoring {} duplicate IDs", sorted.length - distinct);
+    }
+    return Arrays.copyOf(sorted, distinct);
+  }
+}
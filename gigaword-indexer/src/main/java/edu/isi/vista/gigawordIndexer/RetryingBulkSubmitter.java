@@ -0,0 +1,172 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Submits bulk requests, resubmitting only those items which failed for transient reasons.
+ *
+ * <p>A bulk response can report failures for individual items even when the request as a whole
+ * succeeded. Items rejected because the cluster is overloaded (e.g. a full write queue) or a shard
+ * was temporarily unavailable are retried with exponential backoff; everything which already
+ * succeeded is not resent. Items which fail for other reasons (e.g. mapping errors) will not
+ * succeed on retry and are returned to the caller as permanent failures.
+ */
+final class RetryingBulkSubmitter {
+
+  private static final Logger log = LoggerFactory.getLogger(RetryingBulkSubmitter.class);
+
+  private static final ImmutableSet<RestStatus> RETRYABLE_STATUSES = ImmutableSet.of(
+      RestStatus.TOO_MANY_REQUESTS,
+      RestStatus.SERVICE_UNAVAILABLE,
+      RestStatus.GATEWAY_TIMEOUT,
+      RestStatus.REQUEST_TIMEOUT,
+      RestStatus.BAD_GATEWAY);
+
+  private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+  private final RestHighLevelClient client;
+
+  private final int maxRetries;
+
+  private final long initialBackoffMillis;
+
+  RetryingBulkSubmitter(RestHighLevelClient client, int maxRetries, long initialBackoffMillis) {
+    checkArgument(maxRetries >= 0, "Max retries must be non-negative");
+    checkArgument(initialBackoffMillis >= 0, "Backoff must be non-negative");
+    this.client = client;
+    this.maxRetries = maxRetries;
+    this.initialBackoffMillis = initialBackoffMillis;
+  }
+
+  static boolean isRetryable(BulkItemResponse.Failure failure) {
+    return RETRYABLE_STATUSES.contains(failure.getStatus());
+  }
+
+  /**
+   * Whether {@code e}, thrown while sending a bulk request, means the cluster could not take the
+   * request for the time being: it could not be reached, or it answered with a retryable status or
+   * a server error. Sending the request again later may then succeed. Any other error, such as
+   * {@code 400 Bad Request} for a malformed request or {@code 413 Payload Too Large}, will recur
+   * however often the request is sent.
+   */
+  static boolean isClusterUnavailable(Exception e) {
+    final RestStatus status = statusOf(e);
+    // no status means no response, e.g. the connection was refused or timed out
+    return status == null || RETRYABLE_STATUSES.contains(status) || status.getStatus() >= 500;
+  }
+
+  /**
+   * The failures to report for each item of {@code bulkRequest} when the request as a whole was
+   * refused with {@code e} for a reason other than the cluster being unavailable.
+   */
+  static List<BulkItemResponse.Failure> failuresOfRefusedRequest(BulkRequest bulkRequest,
+      Exception e) {
+    final RestStatus status = statusOf(e);
+    final ImmutableList.Builder<BulkItemResponse.Failure> ret = ImmutableList.builder();
+    for (DocWriteRequest<?> request : bulkRequest.requests()) {
+      ret.add(new BulkItemResponse.Failure(request.index(), request.type(), request.id(), e,
+          status != null ? status : RestStatus.BAD_REQUEST));
+    }
+    return ret.build();
+  }
+
+  @Nullable
+  private static RestStatus statusOf(Exception e) {
+    if (e instanceof ElasticsearchException) {
+      return ((ElasticsearchException) e).status();
+    } else if (e instanceof ResponseException) {
+      return RestStatus.fromCode(
+          ((ResponseException) e).getResponse().getStatusLine().getStatusCode());
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Submits {@code bulkRequest}, retrying retryable item failures.
+   *
+   * Returns the failures of items which could not be indexed, either because they failed
+   * permanently or because they were still failing after the maximum number of retries.
+   */
+  List<BulkItemResponse.Failure> submit(BulkRequest bulkRequest) throws IOException {
+    return submit(bulkRequest, null);
+  }
+
+  /**
+   * Like {@link #submit(BulkRequest)}, but if {@code undelivered} is non-null, items which were
+   * still being rejected for transient reasons after the maximum number of retries are added to it
+   * instead of being returned as failures.
+   */
+  List<BulkItemResponse.Failure> submit(BulkRequest bulkRequest, @Nullable BulkRequest undelivered)
+      throws IOException {
+    final ImmutableList.Builder<BulkItemResponse.Failure> permanentFailures =
+        ImmutableList.builder();
+    BulkRequest toSubmit = bulkRequest;
+
+    for (int attempt = 0; toSubmit.numberOfActions() > 0; ++attempt) {
+      if (attempt > 0) {
+        sleepBeforeRetry(attempt, toSubmit.numberOfActions());
+      }
+      final BulkResponse bulkResponse = client.bulk(toSubmit, RequestOptions.DEFAULT);
+      if (!bulkResponse.hasFailures()) {
+        break;
+      }
+
+      final List<DocWriteRequest<?>> submittedRequests = toSubmit.requests();
+      final BulkRequest retryRequest = new BulkRequest();
+      for (BulkItemResponse item : bulkResponse.getItems()) {
+        if (!item.isFailed()) {
+          continue;
+        }
+        // items are reported in the same order as the requests which produced them
+        final DocWriteRequest<?> request = submittedRequests.get(item.getItemId());
+        if (isRetryable(item.getFailure()) && attempt < maxRetries) {
+          retryRequest.add(request);
+        } else if (isRetryable(item.getFailure()) && undelivered != null) {
+          undelivered.add(request);
+        } else {
+          log.warn("Failed to index document {} into {}: {}", item.getId(), item.getIndex(),
+              item.getFailureMessage());
+          permanentFailures.add(item.getFailure());
+        }
+      }
+      toSubmit = retryRequest;
+    }
+    return permanentFailures.build();
+  }
+
+  private void sleepBeforeRetry(int attempt, int numItems) {
+    // exponential backoff with jitter so that many clients don't retry in lockstep
+    final long maxDelay =
+        Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempt - 1, 20));
+    final long delay = ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1);
+    log.info("Retrying {} rejected bulk items (attempt {}/{}) after {} ms", numItems, attempt,
+        maxRetries, delay);
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting to retry bulk request", e);
+    }
+  }
+}
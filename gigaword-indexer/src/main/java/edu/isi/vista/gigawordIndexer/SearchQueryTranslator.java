@@ -0,0 +1,298 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.queryparser.simple.SimpleQueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.QueryBuilder;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates the query DSL of Elastic Search search requests into Lucene queries against an index
+ * built by {@link BuildOfflineLuceneIndex}, for {@link EmbeddedSearchServer}.
+ *
+ * <p>This supports the queries Inception's external search and our own tools send, and a few
+ * common ones besides: {@code match_all}, {@code match}, {@code match_phrase}, {@code term},
+ * {@code terms}, {@code ids}, {@code prefix}, {@code query_string}, {@code simple_query_string},
+ * {@code bool}, {@code constant_score} and {@code function_score}. The functions of a
+ * {@code function_score} query are not applied here; see {@link #isRandomScore(JsonNode)}.
+ * Anything else is rejected with an {@link IllegalArgumentException}.
+ */
+final class SearchQueryTranslator {
+
+  private static final ImmutableMap<String, BooleanClause.Occur> BOOL_CLAUSES = ImmutableMap.of(
+      "must", BooleanClause.Occur.MUST,
+      "filter", BooleanClause.Occur.FILTER,
+      "should", BooleanClause.Occur.SHOULD,
+      "must_not", BooleanClause.Occur.MUST_NOT);
+
+  private final Analyzer analyzer;
+
+  private final QueryBuilder queryBuilder;
+
+  SearchQueryTranslator() {
+    final ImmutableMap.Builder<String, Analyzer> keywordFields = ImmutableMap.builder();
+    keywordFields.put(BuildOfflineLuceneIndex.ID_FIELD, new KeywordAnalyzer());
+    for (String field : BuildOfflineLuceneIndex.METADATA_KEYWORD_FIELDS) {
+      keywordFields.put(BuildOfflineLuceneIndex.METADATA_FIELD_PREFIX + field,
+          new KeywordAnalyzer());
+    }
+    this.analyzer = new PerFieldAnalyzerWrapper(BuildOfflineLuceneIndex.newTextAnalyzer(),
+        keywordFields.build());
+    this.queryBuilder = new QueryBuilder(analyzer);
+  }
+
+  /**
+   * The analyzer for each field of the index, which is also needed for highlighting.
+   */
+  Analyzer getAnalyzer() {
+    return analyzer;
+  }
+
+  /**
+   * Whether {@code query} is a {@code function_score} query which orders its hits randomly, as
+   * Inception's "random order" option does.
+   */
+  static boolean isRandomScore(JsonNode query) {
+    final JsonNode functionScore = query.get("function_score");
+    if (functionScore == null) {
+      return false;
+    }
+    if (functionScore.has("random_score")) {
+      return true;
+    }
+    for (JsonNode function : functionScore.path("functions")) {
+      if (function.has("random_score")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The seed of a random {@code function_score} query, if it has one.
+   */
+  static long randomSeed(JsonNode query, long defaultSeed) {
+    final JsonNode functionScore = query.path("function_score");
+    JsonNode randomScore = functionScore.path("random_score");
+    for (JsonNode function : functionScore.path("functions")) {
+      if (function.has("random_score")) {
+        randomScore = function.get("random_score");
+      }
+    }
+    return randomScore.has("seed") ? randomScore.get("seed").asLong() : defaultSeed;
+  }
+
+  Query translate(JsonNode query) {
+    if (query == null || query.isNull()) {
+      return new MatchAllDocsQuery();
+    }
+    if (!query.isObject() || query.size() != 1) {
+      throw new IllegalArgumentException("A query must be an object with a single query type, "
+          + "but got " + query);
+    }
+    final Map.Entry<String, JsonNode> typeAndBody = query.fields().next();
+    final String type = typeAndBody.getKey();
+    final JsonNode body = typeAndBody.getValue();
+    final Query ret;
+    switch (type) {
+      case "match_all":
+        ret = new MatchAllDocsQuery();
+        break;
+      case "match_none":
+        ret = new MatchNoDocsQuery();
+        break;
+      case "match":
+        ret = match(body, false);
+        break;
+      case "match_phrase":
+        ret = match(body, true);
+        break;
+      case "term":
+        ret = term(body);
+        break;
+      case "terms":
+        ret = terms(body);
+        break;
+      case "ids":
+        ret = ids(body);
+        break;
+      case "prefix":
+        ret = prefix(body);
+        break;
+      case "query_string":
+        ret = queryString(body);
+        break;
+      case "simple_query_string":
+        ret = simpleQueryString(body);
+        break;
+      case "bool":
+        ret = bool(body);
+        break;
+      case "constant_score":
+        ret = new ConstantScoreQuery(translate(body.get("filter")));
+        break;
+      case "function_score":
+        ret = translate(body.get("query"));
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported query type [" + type + "]");
+    }
+    return boosted(ret, body);
+  }
+
+  private Query match(JsonNode body, boolean phrase) {
+    final Map.Entry<String, JsonNode> fieldAndSpec = singleField(body);
+    final String field = fieldAndSpec.getKey();
+    final JsonNode spec = fieldAndSpec.getValue();
+    final String text = spec.isObject() ? spec.path("query").asText() : spec.asText();
+    final Query ret;
+    if (phrase) {
+      ret = queryBuilder.createPhraseQuery(field, text, spec.path("slop").asInt(0));
+    } else {
+      final BooleanClause.Occur occur =
+          "and".equalsIgnoreCase(spec.path("operator").asText("or"))
+              ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD;
+      ret = queryBuilder.createBooleanQuery(field, text, occur);
+    }
+    // the text analyzed to nothing, e.g. it was all punctuation
+    return ret == null ? new MatchNoDocsQuery() : boosted(ret, spec);
+  }
+
+  private Query term(JsonNode body) {
+    final Map.Entry<String, JsonNode> fieldAndSpec = singleField(body);
+    final JsonNode spec = fieldAndSpec.getValue();
+    final String value = spec.isObject() ? spec.path("value").asText() : spec.asText();
+    return boosted(new TermQuery(new Term(fieldAndSpec.getKey(), value)), spec);
+  }
+
+  private Query terms(JsonNode body) {
+    final BooleanQuery.Builder ret = new BooleanQuery.Builder();
+    String field = null;
+    for (Iterator<Map.Entry<String, JsonNode>> it = body.fields(); it.hasNext(); ) {
+      final Map.Entry<String, JsonNode> entry = it.next();
+      if (entry.getKey().equals("boost")) {
+        continue;
+      }
+      if (field != null || !entry.getValue().isArray()) {
+        throw new IllegalArgumentException("A terms query takes a single field with an array of "
+            + "values: " + body);
+      }
+      field = entry.getKey();
+      for (JsonNode value : entry.getValue()) {
+        ret.add(new TermQuery(new Term(field, value.asText())), BooleanClause.Occur.SHOULD);
+      }
+    }
+    return new ConstantScoreQuery(ret.build());
+  }
+
+  private Query ids(JsonNode body) {
+    final BooleanQuery.Builder ret = new BooleanQuery.Builder();
+    for (JsonNode id : body.path("values")) {
+      ret.add(new TermQuery(new Term(BuildOfflineLuceneIndex.ID_FIELD, id.asText())),
+          BooleanClause.Occur.SHOULD);
+    }
+    return new ConstantScoreQuery(ret.build());
+  }
+
+  private Query prefix(JsonNode body) {
+    final Map.Entry<String, JsonNode> fieldAndSpec = singleField(body);
+    final JsonNode spec = fieldAndSpec.getValue();
+    final String value = spec.isObject() ? spec.path("value").asText() : spec.asText();
+    return boosted(new PrefixQuery(new Term(fieldAndSpec.getKey(), value)), spec);
+  }
+
+  private Query queryString(JsonNode body) {
+    final QueryParser parser = new QueryParser(defaultField(body), analyzer);
+    parser.setDefaultOperator("and".equalsIgnoreCase(body.path("default_operator").asText("or"))
+        ? QueryParser.Operator.AND : QueryParser.Operator.OR);
+    parser.setAllowLeadingWildcard(body.path("allow_leading_wildcard").asBoolean(true));
+    try {
+      return parser.parse(body.path("query").asText());
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Failed to parse query [" + body.path("query").asText()
+          + "]: " + e.getMessage(), e);
+    }
+  }
+
+  private Query simpleQueryString(JsonNode body) {
+    final SimpleQueryParser parser = new SimpleQueryParser(analyzer, defaultField(body));
+    parser.setDefaultOperator("and".equalsIgnoreCase(body.path("default_operator").asText("or"))
+        ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD);
+    final Query ret = parser.parse(body.path("query").asText());
+    return ret == null ? new MatchNoDocsQuery() : ret;
+  }
+
+  private static String defaultField(JsonNode body) {
+    if (body.has("default_field")) {
+      return body.get("default_field").asText();
+    }
+    final JsonNode fields = body.path("fields");
+    if (fields.size() > 1) {
+      throw new IllegalArgumentException("Searching several fields at once is not supported: "
+          + fields);
+    }
+    return fields.size() == 1 ? fields.get(0).asText() : BuildOfflineLuceneIndex.TEXT_FIELD;
+  }
+
+  private Query bool(JsonNode body) {
+    final BooleanQuery.Builder ret = new BooleanQuery.Builder();
+    boolean hasPositiveClause = false;
+    for (Map.Entry<String, BooleanClause.Occur> clauseType : BOOL_CLAUSES.entrySet()) {
+      for (JsonNode clause : asList(body.get(clauseType.getKey()))) {
+        ret.add(translate(clause), clauseType.getValue());
+        hasPositiveClause |= clauseType.getValue() != BooleanClause.Occur.MUST_NOT;
+      }
+    }
+    if (!hasPositiveClause) {
+      // in Lucene, unlike Elastic Search, a query with only must_not clauses matches nothing
+      ret.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+    }
+    if (body.has("minimum_should_match")) {
+      ret.setMinimumNumberShouldMatch(body.get("minimum_should_match").asInt());
+    }
+    return ret.build();
+  }
+
+  /**
+   * Clauses of a {@code bool} query may be a single query or an array of them.
+   */
+  private static List<JsonNode> asList(JsonNode clauses) {
+    if (clauses == null) {
+      return ImmutableList.of();
+    }
+    return clauses.isArray() ? ImmutableList.copyOf(clauses) : ImmutableList.of(clauses);
+  }
+
+  private static Map.Entry<String, JsonNode> singleField(JsonNode body) {
+    if (!body.isObject() || body.size() != 1) {
+      throw new IllegalArgumentException("Expected a single field in " + body);
+    }
+    return body.fields().next();
+  }
+
+  private static Query boosted(Query query, JsonNode spec) {
+    if (spec.isObject() && spec.has("boost")) {
+      return new BoostQuery(query, (float) spec.get("boost").asDouble());
+    }
+    return query;
+  }
+}
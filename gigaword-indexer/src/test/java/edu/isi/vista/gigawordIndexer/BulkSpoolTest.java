@@ -0,0 +1,275 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link BulkSpool} against a stub Elastic Search server which answers bulk requests with
+ * whatever status a test asks for.
+ */
+public class BulkSpoolTest {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final long RETRY_INTERVAL_MILLIS = 50;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private HttpServer server;
+
+  private RestHighLevelClient client;
+
+  private Path spoolDirectory;
+
+  // the status of the next responses to bulk requests
+  private volatile int bulkStatus = 200;
+
+  // documents which the stub fails individually with a 400 when the bulk request succeeds
+  private volatile Set<String> rejectedIds = ImmutableSet.of();
+
+  private final AtomicInteger bulkRequests = new AtomicInteger();
+
+  // what happened, in order: "bulk" for each bulk request and "prepare <index>" for each index
+  private final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+  private final RecordingOwners owners = new RecordingOwners();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/_bulk", this::handleBulk);
+    server.start();
+    client = new RestHighLevelClient(
+        RestClient.builder(new HttpHost("localhost", server.getAddress().getPort(), "http")));
+    spoolDirectory = tempFolder.newFolder("spool").toPath();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    client.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void segmentIsOnlyReplayedOnceSealed() throws Exception {
+    final BulkSpool spool = open(1 << 20);
+    spool.append(bulk("texts", 0, 10));
+    Thread.sleep(5 * RETRY_INTERVAL_MILLIS);
+    assertEquals("an unsealed segment should not be replayed", 0, bulkRequests.get());
+    assertTrue(spool.hasBacklog());
+
+    spool.close();
+    assertEquals(1, bulkRequests.get());
+    assertEquals(10, spool.getReplayedDocuments());
+    assertEquals(0, spool.getFailedDocuments());
+    assertFalse(spool.hasBacklog());
+    assertEquals(ImmutableList.of(), spoolFiles());
+  }
+
+  @Test
+  public void fullSegmentIsReplayedWithoutWaitingForClose() throws Exception {
+    // every append fills a segment
+    final BulkSpool spool = open(1);
+    spool.append(bulk("texts", 0, 10));
+    waitFor(() -> !spool.hasBacklog());
+    assertEquals(10, spool.getReplayedDocuments());
+    spool.close();
+  }
+
+  @Test
+  public void unavailableClusterIsRetriedUntilItRecovers() throws Exception {
+    bulkStatus = 503;
+    final BulkSpool spool = open(1);
+    spool.append(bulk("texts", 0, 150));
+    waitFor(() -> bulkRequests.get() >= 3);
+    assertTrue(spool.hasBacklog());
+    assertEquals(0, spool.getFailedDocuments());
+
+    bulkStatus = 200;
+    spool.close();
+    assertEquals(150, spool.getReplayedDocuments());
+    assertEquals(0, spool.getFailedDocuments());
+    assertEquals(ImmutableList.of(), spoolFiles());
+  }
+
+  @Test
+  public void refusedSegmentIsMovedToDeadLetterFile() throws Exception {
+    bulkStatus = 413;
+    final BulkSpool spool = open(1 << 20);
+    // replayed in batches of 100, so the second batch is never sent
+    spool.append(bulk("texts", 0, 150));
+    spool.close();
+
+    assertEquals(1, bulkRequests.get());
+    assertEquals(0, spool.getReplayedDocuments());
+    assertEquals(150, spool.getFailedDocuments());
+    assertEquals(150, owners.failedIds.size());
+    assertEquals(ImmutableList.of("dead-letter-0000000000.ndjson"), spoolFiles());
+  }
+
+  @Test
+  public void itemFailuresAreReportedToOwners() throws Exception {
+    rejectedIds = ImmutableSet.of("texts-3", "texts-7");
+    final BulkSpool spool = open(1 << 20);
+    spool.append(bulk("texts", 0, 10));
+    spool.close();
+
+    assertEquals(8, spool.getReplayedDocuments());
+    assertEquals(2, spool.getFailedDocuments());
+    assertEquals(ImmutableList.of("texts/texts-3", "texts/texts-7"), owners.failedIds);
+    assertEquals(ImmutableList.of(), spoolFiles());
+  }
+
+  @Test
+  public void leftoverSegmentIsReplayedAfterPreparingItsIndices() throws Exception {
+    final StringBuilder leftover = new StringBuilder();
+    for (String index : ImmutableList.of("a", "b", "a")) {
+      leftover.append("{\"index\":{\"_index\":\"").append(index)
+          .append("\",\"_type\":\"texts\",\"_id\":\"").append(index).append("\"}}\n")
+          .append("{\"doc\":{\"text\":\"x\"}}\n");
+    }
+    // a partial record, as left by an indexer killed while spooling
+    leftover.append("{\"index\":{\"_index\":\"a\",\"_type\":\"texts\",\"_id\":\"partial\"}}\n");
+    Files.write(spoolDirectory.resolve("segment-0000000004.ndjson"),
+        leftover.toString().getBytes(StandardCharsets.UTF_8));
+
+    final BulkSpool spool = open(1 << 20);
+    spool.close();
+    assertEquals(ImmutableList.of("prepare a", "prepare b", "bulk"), events);
+    assertEquals(3, spool.getReplayedDocuments());
+    assertEquals(ImmutableList.of(), spoolFiles());
+  }
+
+  private BulkSpool open(long maxSegmentBytes) throws IOException {
+    return BulkSpool.open(spoolDirectory, new RetryingBulkSubmitter(client, 0, 1), owners,
+        maxSegmentBytes, RETRY_INTERVAL_MILLIS);
+  }
+
+  private static BulkRequest bulk(String index, int firstId, int numDocuments) {
+    final BulkRequest ret = new BulkRequest();
+    for (int i = firstId; i < firstId + numDocuments; ++i) {
+      ret.add(new IndexRequest(index, "texts", index + "-" + i)
+          .source("{\"doc\":{\"text\":\"document " + i + "\"}}", XContentType.JSON));
+    }
+    return ret;
+  }
+
+  private List<String> spoolFiles() throws IOException {
+    try (Stream<Path> files = Files.list(spoolDirectory)) {
+      return files.map(file -> file.getFileName().toString()).sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static void waitFor(Condition condition) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10_000;
+    while (!condition.holds()) {
+      assertTrue("timed out", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+
+    boolean holds();
+  }
+
+  private void handleBulk(HttpExchange exchange) throws IOException {
+    bulkRequests.incrementAndGet();
+    events.add("bulk");
+    final String body =
+        new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+    final int status = bulkStatus;
+    final ObjectNode response = mapper.createObjectNode();
+    if (status != 200) {
+      response.putObject("error").put("type", "stub_exception").put("reason", "stubbed");
+      response.put("status", status);
+    } else {
+      response.put("took", 1);
+      response.put("errors", !rejectedIds.isEmpty());
+      final ArrayNode items = response.putArray("items");
+      final String[] lines = body.split("\n");
+      // action and source lines alternate
+      for (int i = 0; i < lines.length; i += 2) {
+        final JsonNode action = mapper.readTree(lines[i]).get("index");
+        final ObjectNode item = items.addObject().putObject("index");
+        item.put("_index", action.get("_index").asText());
+        item.put("_type", action.get("_type").asText());
+        item.put("_id", action.get("_id").asText());
+        if (rejectedIds.contains(action.get("_id").asText())) {
+          item.put("status", 400);
+          item.putObject("error").put("type", "mapper_parsing_exception")
+              .put("reason", "stubbed");
+        } else {
+          item.put("_version", 1);
+          item.put("result", "created");
+          item.putObject("_shards").put("total", 1).put("successful", 1).put("failed", 0);
+          item.put("_seq_no", 0);
+          item.put("_primary_term", 1);
+          item.put("status", 201);
+        }
+      }
+    }
+    final byte[] responseBytes = mapper.writeValueAsBytes(response);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, responseBytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(responseBytes);
+    }
+  }
+
+  private final class RecordingOwners implements BulkSpool.IndexOwners {
+
+    // index/id of each document reported as failed
+    private final List<String> failedIds = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void prepareIndex(String index) {
+      events.add("prepare " + index);
+    }
+
+    @Override
+    public void documentsFailed(String index, List<String> documentIds) {
+      for (String id : documentIds) {
+        failedIds.add(index + "/" + id);
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package edu.isi.vista.gigawordIndexer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import edu.isi.nlp.parameters.Parameters;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link EmbeddedSearchServer} over HTTP, serving a small Gigaword corpus indexed by
+ * {@link BuildOfflineLuceneIndex}.
+ */
+public class EmbeddedSearchServerTest {
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final int NUM_DOCUMENTS = 20;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private EmbeddedSearchServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    final Path corpusFile = tempFolder.getRoot().toPath()
+        .resolve("corpus/data/afp/afp_eng_201001");
+    Files.createDirectories(corpusFile.getParent());
+    final StringBuilder corpus = new StringBuilder();
+    for (int i = 0; i < NUM_DOCUMENTS; ++i) {
+      // only the even documents mention Geneva
+      corpus.append("<DOC id=\"AFP_ENG_").append(i).append("\" type=\"story\">\n<TEXT>\n<P>\n")
+          .append("The minister said talks would resume in ")
+          .append(i % 2 == 0 ? "Geneva" : "Vienna").append(" on day ").append(i)
+          .append(".\n</P>\n</TEXT>\n</DOC>\n");
+    }
+    Files.write(corpusFile, corpus.toString().getBytes(StandardCharsets.UTF_8));
+
+    final File indexDirectory = tempFolder.newFolder("index");
+    final File paramsFile = tempFolder.newFile("build.params");
+    Files.write(paramsFile.toPath(), ("indexName: gigaword\n"
+        + "corpusDirectoryPath: " + tempFolder.getRoot().toPath().resolve("corpus") + "\n"
+        + "format: gigaword\n"
+        + "compressed: false\n"
+        + "indexingThreads: 2\n").getBytes(StandardCharsets.UTF_8));
+    BuildOfflineLuceneIndex.build(Parameters.loadSerifStyle(paramsFile), indexDirectory);
+
+    server = EmbeddedSearchServer.start(indexDirectory, "gigaword", "localhost", 0, 2);
+  }
+
+  @After
+  public void tearDown() {
+    server.close();
+  }
+
+  @Test
+  public void searchesWithAndWithoutMappingType() throws IOException {
+    final String query = "{\"query\":{\"match\":{\"doc.text\":\"Geneva\"}},\"size\":100}";
+    for (String path : new String[]{"/gigaword/_search", "/gigaword/texts/_search"}) {
+      // HttpURLConnection turns a GET with a body into a POST, so GET matches everything
+      assertEquals("GET " + path, NUM_DOCUMENTS,
+          request("GET", path, null, 200).get("hits").get("total").asInt());
+      final JsonNode response = request("POST", path, query, 200);
+      assertEquals("POST " + path, NUM_DOCUMENTS / 2, response.get("hits").get("total").asInt());
+      assertEquals("POST " + path, NUM_DOCUMENTS / 2, response.get("hits").get("hits").size());
+    }
+  }
+
+  @Test
+  public void countsWithAndWithoutMappingType() throws IOException {
+    final String query = "{\"query\":{\"match\":{\"doc.text\":\"Vienna\"}}}";
+    for (String path : new String[]{"/gigaword/_count", "/gigaword/texts/_count"}) {
+      assertEquals(path, NUM_DOCUMENTS / 2,
+          request("POST", path, query, 200).get("count").asInt());
+    }
+  }
+
+  @Test
+  public void getsDocumentsById() throws IOException {
+    final JsonNode document = request("GET", "/gigaword/texts/AFP_ENG_4", null, 200);
+    assertTrue(document.get("found").asBoolean());
+    assertEquals("AFP_ENG_4", document.get("_id").asText());
+    assertTrue(document.get("_source").get("doc").get("text").asText()
+        .contains("Geneva on day 4"));
+
+    final JsonNode source = request("GET", "/gigaword/texts/AFP_ENG_4/_source", null, 200);
+    assertEquals(document.get("_source"), source);
+
+    request("GET", "/gigaword/texts/no_such_document", null, 404);
+  }
+
+  @Test
+  public void unknownIndexIsNotFound() throws IOException {
+    request("GET", "/other/texts/_search", "{}", 404);
+  }
+
+  private JsonNode request(String method, String path, String body, int expectedStatus)
+      throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection)
+        new URL("http://localhost:" + server.getPort() + path).openConnection();
+    connection.setRequestMethod(method);
+    if (body != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/json");
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    assertEquals(method + " " + path, expectedStatus, connection.getResponseCode());
+    try (InputStream in = expectedStatus < 400
+        ? connection.getInputStream() : connection.getErrorStream()) {
+      return mapper.readTree(ByteStreams.toByteArray(in));
+    } finally {
+      connection.disconnect();
+    }
+  }
+}